@@ -0,0 +1,149 @@
+package jheister;
+
+import org.apache.hadoop.hive.ql.exec.vector.ColumnVector;
+import org.apache.orc.TypeDescription;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.StringJoiner;
+
+/*
+ * One converter on its own: parses a batch worth of pre-encoded JSON values straight into a column vector,
+ * without the row batch, the struct around it or the ORC writer. Scores are per value.
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ConverterBenchmark {
+    private static final int ROWS = 1024;
+
+    @Param({"long", "double", "string", "decimal", "decimal64", "timestamp", "binary", "struct", "list", "map", "book"})
+    public String type;
+
+    private JsonStreamToOrcConverter owner;
+    private JsonStreamToOrcConverter.JsonConverter converter;
+    private ColumnVector vector;
+    private final Utf8JsonReader reader = new Utf8JsonReader();
+    private byte[][] values;
+
+    @Setup
+    public void setUp() throws IOException {
+        TypeDescription schema = TypeDescription.fromString("struct<v:" + orcType() + ">");
+        owner = new JsonStreamToOrcConverter(schema.toString(), "/bench.orc", "",
+                new JsonStreamToOrcConverter.Options()
+                        .writerSettings(Sinks.settings(Sinks.NULL))
+                        .decimal64(type.equals("decimal64")));
+        converter = owner.createConverter(schema.getChildren().get(0));
+        TypeDescription.RowBatchVersion version = type.equals("decimal64")
+                ? TypeDescription.RowBatchVersion.USE_DECIMAL64
+                : TypeDescription.RowBatchVersion.ORIGINAL;
+        vector = schema.createRowBatch(version, ROWS).cols[0];
+
+        Random random = new Random(0);
+        values = new byte[ROWS][];
+        for (int i = 0; i < ROWS; i++) {
+            values[i] = json(random).getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        owner.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public ColumnVector convert() throws IOException {
+        vector.reset();
+        for (int i = 0; i < ROWS; i++) {
+            reader.reset(values[i], 0, values[i].length);
+            converter.convert(reader, vector, i);
+        }
+        return vector;
+    }
+
+    private String orcType() {
+        switch (type) {
+            case "long": return "bigint";
+            case "double": return "double";
+            case "string": return "string";
+            case "decimal": return "decimal(18,4)";
+            case "decimal64": return "decimal(18,4)";
+            case "timestamp": return "timestamp";
+            case "binary": return "binary";
+            case "struct": return "struct<id:string,size:int,price:double>";
+            case "list": return "array<bigint>";
+            case "map": return "map<string,double>";
+            // an order book side: hundreds of levels per record
+            case "book": return "array<struct<price:double,size:int>>";
+            default: throw new IllegalArgumentException("Unknown type " + type);
+        }
+    }
+
+    private String json(Random random) {
+        switch (type) {
+            case "long":
+                return Long.toString(random.nextLong());
+            case "double":
+                return Double.toString(random.nextDouble() * 1000);
+            case "string":
+                return "\"" + word(random, 8 + random.nextInt(24)) + "\"";
+            case "decimal":
+            case "decimal64":
+                return random.nextInt(1_000_000) + "." + String.format("%04d", random.nextInt(10000));
+            case "timestamp":
+                return String.format("\"2020-%02d-%02dT%02d:%02d:%02d.%03d\"", 1 + random.nextInt(12),
+                        1 + random.nextInt(28), random.nextInt(24), random.nextInt(60), random.nextInt(60),
+                        random.nextInt(1000));
+            case "binary":
+                StringBuilder hex = new StringBuilder("\"");
+                for (int i = 0; i < 32; i++) {
+                    hex.append(String.format("%02x", random.nextInt(256)));
+                }
+                return hex.append('"').toString();
+            case "struct":
+                return "{\"id\": \"" + word(random, 12) + "\", \"size\": " + random.nextInt(10000)
+                        + ", \"price\": " + random.nextDouble() * 100 + "}";
+            case "list":
+                StringJoiner list = new StringJoiner(", ", "[", "]");
+                for (int i = 0; i < 8; i++) {
+                    list.add(Long.toString(random.nextInt()));
+                }
+                return list.toString();
+            case "map":
+                StringJoiner map = new StringJoiner(", ", "{", "}");
+                for (int i = 0; i < 4; i++) {
+                    map.add("\"" + word(random, 6) + "\": " + random.nextDouble());
+                }
+                return map.toString();
+            case "book":
+                StringJoiner levels = new StringJoiner(", ", "[", "]");
+                for (int i = 0; i < 200; i++) {
+                    levels.add("{\"price\": " + (10000 + random.nextInt(1000)) / 100.0 + ", \"size\": " + random.nextInt(5000) + "}");
+                }
+                return levels.toString();
+            default:
+                throw new IllegalArgumentException("Unknown type " + type);
+        }
+    }
+
+    static String word(Random random, int length) {
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = (char) ('a' + random.nextInt(26));
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,79 @@
+package jheister;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.util.Progressable;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+
+// Write-only file system that discards everything, so benchmarks can measure encoding without the disk
+class NullFileSystem extends FileSystem {
+    private static final URI URI = java.net.URI.create("null:///");
+
+    NullFileSystem() {
+        setConf(new Configuration());
+    }
+
+    @Override
+    public URI getUri() {
+        return URI;
+    }
+
+    @Override
+    public FSDataOutputStream create(Path path, FsPermission permission, boolean overwrite, int bufferSize,
+                                     short replication, long blockSize, Progressable progress) throws IOException {
+        return new FSDataOutputStream(OutputStream.nullOutputStream(), null);
+    }
+
+    @Override
+    public FSDataInputStream open(Path path, int bufferSize) throws IOException {
+        throw new FileNotFoundException(path.toString());
+    }
+
+    @Override
+    public FSDataOutputStream append(Path path, int bufferSize, Progressable progress) throws IOException {
+        throw new UnsupportedOperationException("append");
+    }
+
+    @Override
+    public boolean rename(Path src, Path dst) {
+        return false;
+    }
+
+    @Override
+    public boolean delete(Path path, boolean recursive) {
+        return false;
+    }
+
+    @Override
+    public FileStatus[] listStatus(Path path) throws IOException {
+        throw new FileNotFoundException(path.toString());
+    }
+
+    @Override
+    public void setWorkingDirectory(Path dir) {
+    }
+
+    @Override
+    public Path getWorkingDirectory() {
+        return new Path("/");
+    }
+
+    @Override
+    public boolean mkdirs(Path path, FsPermission permission) {
+        return true;
+    }
+
+    @Override
+    public FileStatus getFileStatus(Path path) throws IOException {
+        throw new FileNotFoundException(path.toString());
+    }
+}
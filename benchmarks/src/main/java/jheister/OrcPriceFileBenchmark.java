@@ -0,0 +1,65 @@
+package jheister;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.Random;
+import java.util.UUID;
+
+// OrcPriceFile.write for ten days of prices over 10k instruments, including close(). Scores are per row.
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class OrcPriceFileBenchmark {
+    private static final int INSTRUMENTS = 10_000;
+    private static final int DAYS = 10;
+
+    @Param({"false", "true"})
+    public boolean clustered;
+
+    @Param({Sinks.DISK, Sinks.NULL})
+    public String sink;
+
+    private UUID[] ids;
+    private double[] prices;
+    private final LocalDate start = LocalDate.parse("2020-01-01");
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(0);
+        ids = new UUID[INSTRUMENTS];
+        for (int i = 0; i < INSTRUMENTS; i++) {
+            ids[i] = new UUID(random.nextLong(), random.nextLong());
+        }
+        prices = new double[INSTRUMENTS * DAYS];
+        for (int i = 0; i < prices.length; i++) {
+            prices[i] = random.nextDouble() * 100;
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(INSTRUMENTS * DAYS)
+    public void write() throws IOException {
+        String file = Sinks.outputFile(sink);
+        OrcPriceFile priceFile = new OrcPriceFile(file, INSTRUMENTS, clustered, Sinks.settings(sink));
+        int p = 0;
+        for (int day = 0; day < DAYS; day++) {
+            LocalDate date = start.plusDays(day);
+            for (UUID id : ids) {
+                priceFile.write(id, date, prices[p++]);
+            }
+        }
+        priceFile.close();
+        Sinks.delete(sink, file);
+    }
+}
@@ -0,0 +1,38 @@
+package jheister;
+
+import org.apache.hadoop.fs.FileSystem;
+
+import java.io.File;
+import java.io.IOException;
+
+// Where the benchmarks write their ORC output: a temp file on local disk, or nowhere
+class Sinks {
+    static final String DISK = "disk";
+    static final String NULL = "null";
+
+    private static final FileSystem NULL_FS = new NullFileSystem();
+
+    static OrcWriterSettings settings(String sink) {
+        OrcWriterSettings settings = new OrcWriterSettings();
+        if (NULL.equals(sink)) {
+            settings.fileSystem(NULL_FS);
+        }
+        return settings;
+    }
+
+    static String outputFile(String sink) throws IOException {
+        if (NULL.equals(sink)) {
+            return "/bench.orc";
+        }
+        File file = File.createTempFile("bench-", ".orc");
+        file.delete();
+        file.deleteOnExit();
+        return file.getAbsolutePath();
+    }
+
+    static void delete(String sink, String file) {
+        if (DISK.equals(sink)) {
+            new File(file).delete();
+        }
+    }
+}
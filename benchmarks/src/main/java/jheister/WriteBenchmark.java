@@ -0,0 +1,110 @@
+package jheister;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.UUID;
+
+// End to end: every row written, one write() call each or one writeAll() of the NDJSON, and close() of the file,
+// so stripe encoding and compression are included. Scores are per row.
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class WriteBenchmark {
+    private static final int ROWS = 100_000;
+    private static final String FLAT = "struct<price_date:string,id:string,close_price:double,volume:bigint,updated:timestamp>";
+    private static final String NESTED = "struct<id:string,updated:timestamp,tags:array<string>,"
+            + "attributes:map<string,double>,quote:struct<bid:decimal(18,4),ask:decimal(18,4),size:int>>";
+
+    @Param({"flat", "nested"})
+    public String schema;
+
+    @Param({"0", "4"})
+    public int pipelined;
+
+    @Param({Sinks.DISK, Sinks.NULL})
+    public String sink;
+
+    @Param({"1024", "8192"})
+    public int batchSize;
+
+    private byte[][] rows;
+    private byte[] ndjson;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(0);
+        UUID[] ids = new UUID[1000];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = new UUID(random.nextLong(), random.nextLong());
+        }
+        rows = new byte[ROWS][];
+        for (int i = 0; i < ROWS; i++) {
+            String id = ids[random.nextInt(ids.length)].toString();
+            String updated = String.format("2020-01-%02dT%02d:%02d:%02d", 1 + random.nextInt(28),
+                    random.nextInt(24), random.nextInt(60), random.nextInt(60));
+            String json;
+            if (schema.equals("flat")) {
+                json = "{\"price_date\": \"2020-01-01\", \"id\": \"" + id + "\", \"close_price\": " + random.nextDouble() * 100
+                        + ", \"volume\": " + random.nextInt(1_000_000) + ", \"updated\": \"" + updated + "\"}";
+            } else {
+                json = "{\"id\": \"" + id + "\", \"updated\": \"" + updated + "\", "
+                        + "\"tags\": [\"" + ConverterBenchmark.word(random, 5) + "\", \"" + ConverterBenchmark.word(random, 7) + "\"], "
+                        + "\"attributes\": {\"open\": " + random.nextDouble() + ", \"high\": " + random.nextDouble() + "}, "
+                        + "\"quote\": {\"bid\": " + random.nextInt(1000) + ".25, \"ask\": " + random.nextInt(1000) + ".75, "
+                        + "\"size\": " + random.nextInt(500) + "}}";
+            }
+            rows[i] = json.getBytes(StandardCharsets.UTF_8);
+        }
+        ByteArrayOutputStream lines = new ByteArrayOutputStream();
+        for (byte[] row : rows) {
+            lines.write(row, 0, row.length);
+            lines.write('\n');
+        }
+        ndjson = lines.toByteArray();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public long writeAndClose() throws IOException {
+        String file = Sinks.outputFile(sink);
+        JsonStreamToOrcConverter converter = open(file);
+        for (byte[] row : rows) {
+            converter.write(row, 0, row.length);
+        }
+        converter.close();
+        Sinks.delete(sink, file);
+        return converter.getRowCount();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public long writeAllAndClose() throws IOException {
+        String file = Sinks.outputFile(sink);
+        JsonStreamToOrcConverter converter = open(file);
+        converter.writeAll(ndjson, 0, ndjson.length);
+        converter.close();
+        Sinks.delete(sink, file);
+        return converter.getRowCount();
+    }
+
+    private JsonStreamToOrcConverter open(String file) throws IOException {
+        return new JsonStreamToOrcConverter(schema.equals("flat") ? FLAT : NESTED, file, "",
+                new JsonStreamToOrcConverter.Options()
+                        .writerSettings(Sinks.settings(sink))
+                        .pipelined(pipelined)
+                        .batchSize(batchSize));
+    }
+}
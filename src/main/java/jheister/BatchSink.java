@@ -0,0 +1,32 @@
+package jheister;
+
+import org.apache.hadoop.hive.ql.exec.vector.VectorizedRowBatch;
+import org.apache.orc.Writer;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+interface BatchSink extends Closeable {
+    // Takes a filled batch and returns an empty one to carry on filling, which may be the same instance
+    VectorizedRowBatch flush(VectorizedRowBatch batch) throws IOException;
+
+    static BatchSink of(Writer writer) {
+        return of(writer, MetricsRegistry.NONE.histogram(""));
+    }
+
+    static BatchSink of(Writer writer, MetricsRegistry.Histogram addRowBatchNanos) {
+        return new BatchSink() {
+            public VectorizedRowBatch flush(VectorizedRowBatch batch) throws IOException {
+                long start = System.nanoTime();
+                writer.addRowBatch(batch);
+                addRowBatchNanos.record(System.nanoTime() - start);
+                batch.reset();
+                return batch;
+            }
+
+            public void close() throws IOException {
+                writer.close();
+            }
+        };
+    }
+}
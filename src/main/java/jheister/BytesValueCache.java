@@ -0,0 +1,89 @@
+package jheister;
+
+import java.util.Arrays;
+
+/*
+ * Bounded cache of recently seen byte strings with clock eviction. A hit returns the cached copy, which is
+ * never modified afterwards, so it can be handed to BytesColumnVector.setRef instead of copying the value
+ * into the column buffer again.
+ */
+public class BytesValueCache {
+    private final byte[][] values;
+    private final int[] hashes;
+    private final int[] next;
+    private final boolean[] referenced;
+    private final int[] buckets;
+    private int size;
+    private int hand;
+    private long hits;
+    private long misses;
+
+    public BytesValueCache(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Cache capacity must be at least 1 but was " + capacity);
+        }
+        values = new byte[capacity][];
+        hashes = new int[capacity];
+        next = new int[capacity];
+        referenced = new boolean[capacity];
+        buckets = new int[Integer.highestOneBit(Math.max(1, capacity) * 2 - 1) * 2];
+        Arrays.fill(buckets, -1);
+    }
+
+    public byte[] get(byte[] buf, int start, int length) {
+        int hash = hash(buf, start, length);
+        for (int e = buckets[hash & (buckets.length - 1)]; e >= 0; e = next[e]) {
+            if (hashes[e] == hash && Arrays.equals(values[e], 0, values[e].length, buf, start, start + length)) {
+                referenced[e] = true;
+                hits++;
+                return values[e];
+            }
+        }
+        misses++;
+        int e = size < values.length ? size++ : evict();
+        values[e] = Arrays.copyOfRange(buf, start, start + length);
+        hashes[e] = hash;
+        referenced[e] = false;
+        int bucket = hash & (buckets.length - 1);
+        next[e] = buckets[bucket];
+        buckets[bucket] = e;
+        return values[e];
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    private int evict() {
+        while (referenced[hand]) {
+            referenced[hand] = false;
+            hand = (hand + 1) % values.length;
+        }
+        int victim = hand;
+        hand = (hand + 1) % values.length;
+
+        int bucket = hashes[victim] & (buckets.length - 1);
+        if (buckets[bucket] == victim) {
+            buckets[bucket] = next[victim];
+        } else {
+            int e = buckets[bucket];
+            while (next[e] != victim) {
+                e = next[e];
+            }
+            next[e] = next[victim];
+        }
+        return victim;
+    }
+
+    private static int hash(byte[] buf, int start, int length) {
+        int h = 1;
+        for (int i = start; i < start + length; ++i) {
+            h = 31 * h + buf[i];
+        }
+        return h ^ (h >>> 16);
+    }
+}
@@ -1,43 +1,368 @@
 package jheister;
 
+import com.amazonaws.AmazonServiceException;
 import com.amazonaws.regions.Regions;
 import com.amazonaws.services.glue.AWSGlue;
 import com.amazonaws.services.glue.AWSGlueClient;
 import com.amazonaws.services.glue.model.DeleteCrawlerRequest;
 import com.amazonaws.services.glue.model.DeleteDatabaseRequest;
 import com.amazonaws.services.glue.model.EntityNotFoundException;
+import com.amazonaws.services.glue.model.GetPartitionsRequest;
+import com.amazonaws.services.glue.model.GetPartitionsResult;
+import com.amazonaws.services.glue.model.Partition;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3Client;
 import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
 import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
 
+import java.io.Closeable;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.Year;
+import java.time.YearMonth;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
 
+import static java.util.stream.Collectors.toList;
 import static jheister.CreatePriceFeedInAthena.BUCKET_NAME;
 import static jheister.CreatePriceFeedInAthena.FEED_NAME;
 
-public class Cleanup {
-    public static void main(String[] args) {
-        AmazonS3 s3 = AmazonS3Client.builder().withRegion(Regions.EU_WEST_1).build();
-        AWSGlue glue = AWSGlueClient.builder().withRegion(Regions.EU_WEST_1).build();
+/*
+ * Deletes a feed's objects from a bucket: all of them, the partitions entirely before a date, or the
+ * files of partitions Glue doesn't know about. The partitions directly under the feed prefix are found
+ * with one delimited listing and then listed in parallel, each page after the other, and the keys are
+ * deleted in DeleteObjects requests of up to 1000 keys, the most S3 takes, parallelism at a time.
+ *
+ * DeleteObjects can fail for some keys and succeed for the rest, e.g. when S3 slows the prefix down.
+ * Only the keys that failed are sent again, after a backoff doubling on every attempt, and a batch that
+ * still has failures after the last attempt fails the cleanup with its MultiObjectDeleteException.
+ * Batches are independent, so what other batches deleted stays deleted and running again picks up the rest.
+ *
+ * Works against any AmazonS3, so the tests run it against a local directory (LocalS3).
+ */
+public class Cleanup implements Closeable {
+    static final int MAX_KEYS_PER_DELETE = 1000;
+
+    private final AmazonS3 s3;
+    private final String bucket;
+    private final int batchSize;
+    private final int maxAttempts;
+    private final long backoffMillis;
+    private final ExecutorService requests;
+
+    public Cleanup(AmazonS3 s3, String bucket) {
+        this(s3, bucket, new Options());
+    }
+
+    public Cleanup(AmazonS3 s3, String bucket, Options options) {
+        if (options.batchSize < 1 || options.batchSize > MAX_KEYS_PER_DELETE) {
+            throw new IllegalArgumentException("Batch size must be between 1 and " + MAX_KEYS_PER_DELETE + " but was " + options.batchSize);
+        }
+        this.s3 = s3;
+        this.bucket = bucket;
+        this.batchSize = options.batchSize;
+        this.maxAttempts = Math.max(1, options.maxAttempts);
+        this.backoffMillis = options.backoffMillis;
+        AtomicInteger threads = new AtomicInteger();
+        this.requests = Executors.newFixedThreadPool(options.parallelism, r -> {
+            Thread thread = new Thread(r, "cleanup-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public static class Options {
+        private int parallelism = 16;
+        private int batchSize = MAX_KEYS_PER_DELETE;
+        private int maxAttempts = 5;
+        private long backoffMillis = 100;
+
+        // list and delete requests in flight at once
+        public Options parallelism(int requests) {
+            this.parallelism = requests;
+            return this;
+        }
+
+        // keys per DeleteObjects request, at most 1000
+        public Options batchSize(int keys) {
+            this.batchSize = keys;
+            return this;
+        }
+
+        // times a key is sent before its batch fails, including the first
+        public Options maxAttempts(int attempts) {
+            this.maxAttempts = attempts;
+            return this;
+        }
+
+        // wait before the first retry of a batch, doubled for each one after it
+        public Options backoff(Duration backoff) {
+            this.backoffMillis = backoff.toMillis();
+            return this;
+        }
+    }
+
+    // Deletes everything under prefix, returning the number of objects deleted
+    public long deleteAll(String prefix) {
+        return delete(list(prefix, summary -> true));
+    }
+
+    /*
+     * Deletes the partitions under prefix whose dates all fall before the given date, going by the value of
+     * the partition directory: yyyy, yyyy-MM or yyyy-MM-dd as in month=2019-06/. Partitions with other
+     * values, and the files directly under prefix, are kept.
+     */
+    public long deletePartitionsBefore(String prefix, LocalDate date) {
+        List<String> partitions = new ArrayList<>();
+        for (String partition : partitions(prefix)) {
+            LocalDate end = partitionEnd(partition);
+            if (end != null && !end.isAfter(date)) {
+                partitions.add(partition);
+            }
+        }
+        return delete(list(partitions, summary -> true));
+    }
+
+    /*
+     * Deletes the files under prefix that are in a partition directory (a name=value path segment) but not in
+     * any of the registered partition prefixes, e.g. those from registeredPartitions. Files written since
+     * modifiedBefore are kept, as their partition may just not have been crawled yet.
+     */
+    public long deleteOrphans(String prefix, Set<String> registered, Instant modifiedBefore) {
+        return delete(list(prefix, summary -> summary.getLastModified().toInstant().isBefore(modifiedBefore)
+                && isOrphan(summary.getKey(), prefix, registered)));
+    }
+
+    // The key prefixes of a Glue table's partitions in this bucket, e.g. eod_prices/month=2019-06/
+    public Set<String> registeredPartitions(AWSGlue glue, String database, String table) {
+        String bucketUri = "s3://" + bucket + "/";
+        Set<String> prefixes = new HashSet<>();
+        String token = null;
+        do {
+            GetPartitionsResult result = glue.getPartitions(new GetPartitionsRequest()
+                    .withDatabaseName(database)
+                    .withTableName(table)
+                    .withNextToken(token));
+            for (Partition partition : result.getPartitions()) {
+                String location = partition.getStorageDescriptor().getLocation().replaceFirst("^s3[an]?://", "s3://");
+                if (location.startsWith(bucketUri)) {
+                    String key = location.substring(bucketUri.length());
+                    prefixes.add(key.endsWith("/") ? key : key + "/");
+                }
+            }
+            token = result.getNextToken();
+        } while (token != null);
+        return prefixes;
+    }
+
+    // The prefixes directly under prefix, e.g. eod_prices/month=2019-06/ for eod_prices/
+    public List<String> partitions(String prefix) {
+        List<String> partitions = new ArrayList<>();
+        listDirectory(prefix, partitions, summary -> false, new ArrayList<>());
+        return partitions;
+    }
+
+    // Every object under prefix that matches, listing the partitions under it in parallel
+    public List<S3ObjectSummary> list(String prefix, Predicate<S3ObjectSummary> filter) {
+        List<String> partitions = new ArrayList<>();
+        List<S3ObjectSummary> objects = new ArrayList<>();
+        listDirectory(prefix, partitions, filter, objects);
+        objects.addAll(list(partitions, filter));
+        return objects;
+    }
+
+    // one delimited listing: the prefixes under prefix, and the files directly in it that match
+    private void listDirectory(String prefix, List<String> partitions, Predicate<S3ObjectSummary> filter,
+                               List<S3ObjectSummary> objects) {
+        ObjectListing listing = s3.listObjects(new ListObjectsRequest()
+                .withBucketName(bucket)
+                .withPrefix(directory(prefix))
+                .withDelimiter("/"));
+        while (true) {
+            partitions.addAll(listing.getCommonPrefixes());
+            listing.getObjectSummaries().stream().filter(filter).forEach(objects::add);
+            if (!listing.isTruncated()) {
+                return;
+            }
+            listing = s3.listNextBatchOfObjects(listing);
+        }
+    }
+
+    private List<S3ObjectSummary> list(List<String> prefixes, Predicate<S3ObjectSummary> filter) {
+        List<Callable<List<S3ObjectSummary>>> listings = prefixes.stream()
+                .map(prefix -> (Callable<List<S3ObjectSummary>>) () -> {
+                    List<S3ObjectSummary> objects = new ArrayList<>();
+                    ObjectListing listing = s3.listObjects(bucket, prefix);
+                    while (true) {
+                        listing.getObjectSummaries().stream().filter(filter).forEach(objects::add);
+                        if (!listing.isTruncated()) {
+                            return objects;
+                        }
+                        listing = s3.listNextBatchOfObjects(listing);
+                    }
+                })
+                .collect(toList());
+        List<S3ObjectSummary> objects = new ArrayList<>();
+        for (List<S3ObjectSummary> partition : invokeAll(listings, "Listing")) {
+            objects.addAll(partition);
+        }
+        return objects;
+    }
+
+    // Deletes the objects in batches, returning how many were deleted
+    public long delete(List<S3ObjectSummary> objects) {
+        List<Callable<Long>> batches = new ArrayList<>();
+        for (int start = 0; start < objects.size(); start += batchSize) {
+            List<String> keys = objects.subList(start, Math.min(start + batchSize, objects.size())).stream()
+                    .map(S3ObjectSummary::getKey)
+                    .collect(toList());
+            batches.add(() -> deleteBatch(keys));
+        }
+        long deleted = 0;
+        for (long batch : invokeAll(batches, "Deleting")) {
+            deleted += batch;
+        }
+        return deleted;
+    }
+
+    // Deletes the keys in one request, sending the ones that fail again until they're gone or out of attempts
+    private long deleteBatch(List<String> keys) throws InterruptedException {
+        long deleted = 0;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                // quiet, as the response would otherwise list every key deleted
+                s3.deleteObjects(new DeleteObjectsRequest(bucket).withQuiet(true).withKeys(keys.toArray(new String[0])));
+                return deleted + keys.size();
+            } catch (MultiObjectDeleteException e) {
+                deleted += keys.size() - e.getErrors().size();
+                if (attempt == maxAttempts) {
+                    throw e;
+                }
+                keys = e.getErrors().stream().map(MultiObjectDeleteException.DeleteError::getKey).collect(toList());
+            } catch (AmazonServiceException e) {
+                // the client already retried throttling and 5xx a few times, so this is only the slower backoff
+                if (attempt == maxAttempts || e.getErrorType() != AmazonServiceException.ErrorType.Service) {
+                    throw e;
+                }
+            }
+            long backoff = backoffMillis << Math.min(attempt - 1, 16);
+            Thread.sleep(backoff + ThreadLocalRandom.current().nextLong(backoff + 1));
+        }
+    }
 
+    private <T> List<T> invokeAll(List<Callable<T>> tasks, String what) {
+        List<Future<T>> futures = new ArrayList<>();
+        for (Callable<T> task : tasks) {
+            futures.add(requests.submit(task));
+        }
+        List<T> results = new ArrayList<>();
         try {
-            glue.deleteCrawler(new DeleteCrawlerRequest().withName(CreatePriceFeedInAthena.CRAWLER_NAME));
-        } catch (EntityNotFoundException e) {}
+            for (Future<T> future : futures) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            futures.forEach(future -> future.cancel(true));
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(what + " " + bucket + " interrupted", e);
+        } catch (ExecutionException e) {
+            futures.forEach(future -> future.cancel(true));
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(what + " " + bucket + " failed", e.getCause());
+        }
+        return results;
+    }
 
+    // the day after the last one in a partition like eod_prices/month=2019-06/, null if its value isn't a date
+    static LocalDate partitionEnd(String partition) {
+        String name = partition.substring(partition.lastIndexOf('/', partition.length() - 2) + 1, partition.length() - 1);
+        String value = name.substring(name.indexOf('=') + 1);
         try {
-            glue.deleteDatabase(new DeleteDatabaseRequest().withName(CreatePriceFeedInAthena.DB_NAME));
-        } catch (EntityNotFoundException e) {}
+            switch (value.length()) {
+                case 4:
+                    return Year.parse(value).plusYears(1).atDay(1);
+                case 7:
+                    return YearMonth.parse(value).plusMonths(1).atDay(1);
+                case 10:
+                    return LocalDate.parse(value).plusDays(1);
+                default:
+                    return null;
+            }
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
 
+    // in a partition directory below prefix, but in none that is registered
+    static boolean isOrphan(String key, String prefix, Set<String> registered) {
+        boolean partitioned = false;
+        int end = directory(prefix).length();
+        for (int slash = key.indexOf('/', end); slash >= 0; slash = key.indexOf('/', end)) {
+            if (key.substring(end, slash).contains("=")) {
+                partitioned = true;
+                if (registered.contains(key.substring(0, slash + 1))) {
+                    return false;
+                }
+            }
+            end = slash + 1;
+        }
+        return partitioned;
+    }
 
-        while (true) {
-            ObjectListing listing = s3.listObjects(BUCKET_NAME, FEED_NAME);
-            if (listing.getObjectSummaries().isEmpty()) {
-                break;
+    private static String directory(String prefix) {
+        return prefix.isEmpty() || prefix.endsWith("/") ? prefix : prefix + "/";
+    }
+
+    @Override
+    public void close() {
+        requests.shutdownNow();
+    }
+
+    /*
+     * With no arguments drops the crawler and database CreatePriceFeedInAthena made and deletes the feed.
+     * "before yyyy-MM-dd" only deletes the partitions before that date and "orphans" the files of partitions
+     * the crawled table doesn't have, if they're more than a day old.
+     */
+    public static void main(String[] args) {
+        AmazonS3 s3 = AmazonS3Client.builder().withRegion(Regions.EU_WEST_1).build();
+        AWSGlue glue = AWSGlueClient.builder().withRegion(Regions.EU_WEST_1).build();
+
+        try (Cleanup cleanup = new Cleanup(s3, BUCKET_NAME)) {
+            long started = System.nanoTime();
+            long deleted;
+            if (args.length == 2 && args[0].equals("before")) {
+                deleted = cleanup.deletePartitionsBefore(FEED_NAME, LocalDate.parse(args[1]));
+            } else if (args.length == 1 && args[0].equals("orphans")) {
+                Set<String> registered = cleanup.registeredPartitions(glue, CreatePriceFeedInAthena.DB_NAME, FEED_NAME);
+                deleted = cleanup.deleteOrphans(FEED_NAME, registered, Instant.now().minus(Duration.ofDays(1)));
+            } else {
+                try {
+                    glue.deleteCrawler(new DeleteCrawlerRequest().withName(CreatePriceFeedInAthena.CRAWLER_NAME));
+                } catch (EntityNotFoundException e) {}
+
+                try {
+                    glue.deleteDatabase(new DeleteDatabaseRequest().withName(CreatePriceFeedInAthena.DB_NAME));
+                } catch (EntityNotFoundException e) {}
+
+                deleted = cleanup.deleteAll(FEED_NAME);
             }
-            List<DeleteObjectsRequest.KeyVersion> keys = listing.getObjectSummaries().stream().map(s -> new DeleteObjectsRequest.KeyVersion(s.getKey())).collect(Collectors.toList());
-            s3.deleteObjects(new DeleteObjectsRequest(BUCKET_NAME).withKeys(keys));
+            System.out.println("Deleted " + deleted + " objects in " + (System.nanoTime() - started) / 1_000_000 + "ms");
         }
     }
 }
@@ -0,0 +1,109 @@
+package jheister;
+
+import org.apache.hadoop.hive.ql.exec.vector.ColumnVector;
+import org.apache.hadoop.hive.ql.exec.vector.ListColumnVector;
+import org.apache.hadoop.hive.ql.exec.vector.MapColumnVector;
+import org.apache.hadoop.hive.ql.exec.vector.MultiValuedColumnVector;
+import org.apache.hadoop.hive.ql.exec.vector.StructColumnVector;
+
+import java.util.Arrays;
+
+/*
+ * Growing the children of list and map vectors. ColumnVector.ensureSize grows to exactly the size asked
+ * for and copies everything, and ListColumnVector.setElement asks for one row's elements more each time, so
+ * filling a vector with long lists that way copies it over and over. Children are grown geometrically here
+ * instead. Since reset() keeps a vector's arrays, a batch that is reused keeps the capacity it grew to.
+ *
+ * Also undoing rows that were only partly written, which may have added elements to lists and maps.
+ */
+final class ColumnVectors {
+    private ColumnVectors() {
+    }
+
+    // makes room for at least size values, at least doubling the capacity when it grows
+    static void growChild(ColumnVector child, int size) {
+        if (size > child.isNull.length) {
+            child.ensureSize(Math.max(size, child.isNull.length * 2), true);
+        }
+    }
+
+    // ColumnVector.setElement, but growing the children of lists and maps geometrically at any depth
+    static void copyElement(ColumnVector from, int row, ColumnVector to, int toRow) {
+        if (from instanceof StructColumnVector || from instanceof ListColumnVector || from instanceof MapColumnVector) {
+            if (from.isRepeating) {
+                row = 0;
+            }
+            if (!from.noNulls && from.isNull[row]) {
+                to.isNull[toRow] = true;
+                to.noNulls = false;
+                return;
+            }
+            to.isNull[toRow] = false;
+        }
+        if (from instanceof StructColumnVector) {
+            ColumnVector[] fields = ((StructColumnVector) from).fields;
+            for (int f = 0; f < fields.length; f++) {
+                copyElement(fields[f], row, ((StructColumnVector) to).fields[f], toRow);
+            }
+        } else if (from instanceof ListColumnVector) {
+            ListColumnVector in = (ListColumnVector) from;
+            ListColumnVector out = (ListColumnVector) to;
+            int offset = (int) in.offsets[row];
+            int length = (int) in.lengths[row];
+            int start = appendElements(out, toRow, length);
+            growChild(out.child, start + length);
+            for (int i = 0; i < length; i++) {
+                copyElement(in.child, offset + i, out.child, start + i);
+            }
+        } else if (from instanceof MapColumnVector) {
+            MapColumnVector in = (MapColumnVector) from;
+            MapColumnVector out = (MapColumnVector) to;
+            int offset = (int) in.offsets[row];
+            int length = (int) in.lengths[row];
+            int start = appendElements(out, toRow, length);
+            growChild(out.keys, start + length);
+            growChild(out.values, start + length);
+            for (int i = 0; i < length; i++) {
+                copyElement(in.keys, offset + i, out.keys, start + i);
+                copyElement(in.values, offset + i, out.values, start + i);
+            }
+        } else {
+            to.setElement(toRow, row, from);
+        }
+    }
+
+    // Clears the nulls of rows from..to, the last ones written, and drops the list and map elements they added
+    static void discardRows(ColumnVector vector, int from, int to) {
+        Arrays.fill(vector.isNull, from, Math.min(to, vector.isNull.length), false);
+        if (vector instanceof StructColumnVector) {
+            for (ColumnVector field : ((StructColumnVector) vector).fields) {
+                discardRows(field, from, to);
+            }
+        } else if (vector instanceof MultiValuedColumnVector) {
+            MultiValuedColumnVector multi = (MultiValuedColumnVector) vector;
+            // the elements of the last complete row with any end where those of the discarded ones start
+            int end = 0;
+            for (int r = from - 1; r >= 0; r--) {
+                if (vector.noNulls || !vector.isNull[r]) {
+                    end = (int) (multi.offsets[r] + multi.lengths[r]);
+                    break;
+                }
+            }
+            if (vector instanceof ListColumnVector) {
+                discardRows(((ListColumnVector) vector).child, end, multi.childCount);
+            } else {
+                discardRows(((MapColumnVector) vector).keys, end, multi.childCount);
+                discardRows(((MapColumnVector) vector).values, end, multi.childCount);
+            }
+            multi.childCount = end;
+        }
+    }
+
+    private static int appendElements(MultiValuedColumnVector out, int toRow, int length) {
+        int start = out.childCount;
+        out.offsets[toRow] = start;
+        out.lengths[toRow] = length;
+        out.childCount += length;
+        return start;
+    }
+}
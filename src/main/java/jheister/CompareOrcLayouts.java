@@ -0,0 +1,145 @@
+package jheister;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hive.ql.exec.vector.VectorizedRowBatch;
+import org.apache.hadoop.hive.ql.io.sarg.PredicateLeaf;
+import org.apache.hadoop.hive.ql.io.sarg.SearchArgument;
+import org.apache.hadoop.hive.ql.io.sarg.SearchArgumentFactory;
+import org.apache.orc.CompressionKind;
+import org.apache.orc.OrcFile;
+import org.apache.orc.Reader;
+import org.apache.orc.RecordReader;
+import org.apache.orc.StringColumnStatistics;
+import org.apache.orc.StripeStatistics;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.stream.IntStream;
+
+import static java.util.stream.Collectors.toList;
+
+/*
+ * Writes the same month of generated prices under a few layouts and reports size, write time and how much
+ * of the file a point lookup on id has to read. Row groups are counted from what the reader actually
+ * returns with the predicate pushed down, so bloom filters are taken into account.
+ */
+public class CompareOrcLayouts {
+    private static final int ID_COLUMN = 2;
+
+    public static void main(String[] args) throws IOException {
+        int instrumentCount = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        LocalDate start = LocalDate.parse("2019-06-01");
+        LocalDate end = start.plusMonths(1);
+        List<UUID> ids = IntStream.range(0, instrumentCount).mapToObj(i -> UUID.randomUUID()).collect(toList());
+        Random random = new Random();
+        List<UUID> lookups = IntStream.range(0, 10).mapToObj(i -> ids.get(random.nextInt(ids.size()))).collect(toList());
+
+        List<Layout> layouts = Arrays.asList(
+                new Layout("default", false, new OrcWriterSettings()),
+                new Layout("none", false, new OrcWriterSettings().compression(CompressionKind.NONE)),
+                new Layout("snappy", false, new OrcWriterSettings().compression(CompressionKind.SNAPPY)),
+                new Layout("zlib-compression", false, new OrcWriterSettings()
+                        .compressionStrategy(OrcFile.CompressionStrategy.COMPRESSION)),
+                new Layout("no-dictionary", false, new OrcWriterSettings().dictionaryKeySizeThreshold(0)),
+                new Layout("bloom", false, new OrcWriterSettings().bloomFilterColumns("id").bloomFilterFpp(0.01)),
+                new Layout("clustered", true, new OrcWriterSettings()),
+                new Layout("clustered-bloom", true, new OrcWriterSettings().bloomFilterColumns("id").bloomFilterFpp(0.01)),
+                new Layout("clustered-small", true, new OrcWriterSettings()
+                        .stripeSize(8L << 20)
+                        .rowIndexStride(2000)
+                        .bloomFilterColumns("id")
+                        .bloomFilterFpp(0.01)));
+
+        System.out.printf("%-18s %12s %10s %8s %16s %18s  %s%n",
+                "layout", "bytes", "write ms", "stripes", "stripes/lookup", "row groups/lookup", "settings");
+        Configuration conf = new Configuration();
+        for (Layout layout : layouts) {
+            File file = new File("layout-" + layout.name + ".orc");
+            Path path = new Path(file.getAbsolutePath());
+            try {
+                long started = System.nanoTime();
+                write(file, ids, start, end, layout.clustered, layout.settings);
+                long writeMillis = (System.nanoTime() - started) / 1_000_000;
+
+                try (Reader reader = OrcFile.createReader(path, OrcFile.readerOptions(conf))) {
+                    double stripes = 0;
+                    double rowGroups = 0;
+                    for (UUID id : lookups) {
+                        stripes += stripesTouched(reader, id.toString());
+                        rowGroups += rowGroupsTouched(reader, id.toString());
+                    }
+                    System.out.printf("%-18s %12d %10d %8d %16.1f %18.1f  %s%n", layout.name, file.length(), writeMillis,
+                            reader.getStripes().size(), stripes / lookups.size(), rowGroups / lookups.size(), layout.settings);
+                }
+            } finally {
+                // with its .crc
+                FileSystem.getLocal(conf).delete(path, false);
+            }
+        }
+    }
+
+    private static class Layout {
+        private final String name;
+        private final boolean clustered;
+        private final OrcWriterSettings settings;
+
+        Layout(String name, boolean clustered, OrcWriterSettings settings) {
+            this.name = name;
+            this.clustered = clustered;
+            this.settings = settings;
+        }
+    }
+
+    private static void write(File file, List<UUID> ids, LocalDate start, LocalDate end, boolean clustered,
+                              OrcWriterSettings settings) throws IOException {
+        OrcPriceFile orcPriceFile = new OrcPriceFile(file.getPath(), ids.size(), clustered, settings);
+        Random prices = new Random(0);
+        // shuffled from the same order for every layout, so they all get the same rows in the same order
+        List<UUID> order = new ArrayList<>(ids);
+        for (LocalDate date = start; date.isBefore(end); date = date.plusDays(1)) {
+            Collections.shuffle(order, new Random(date.toEpochDay()));
+            for (UUID id : order) {
+                orcPriceFile.write(id, date, prices.nextDouble());
+            }
+        }
+        orcPriceFile.close();
+    }
+
+    private static int stripesTouched(Reader reader, String id) throws IOException {
+        int touched = 0;
+        for (StripeStatistics stripe : reader.getStripeStatistics()) {
+            StringColumnStatistics stats = (StringColumnStatistics) stripe.getColumnStatistics()[ID_COLUMN];
+            if (stats.getMinimum().compareTo(id) <= 0 && stats.getMaximum().compareTo(id) >= 0) {
+                touched++;
+            }
+        }
+        return touched;
+    }
+
+    private static long rowGroupsTouched(Reader reader, String id) throws IOException {
+        SearchArgument sarg = SearchArgumentFactory.newBuilder()
+                .startAnd()
+                .equals("id", PredicateLeaf.Type.STRING, id)
+                .end()
+                .build();
+        RecordReader rows = reader.rows(reader.options()
+                .include(new boolean[]{true, false, true, false})
+                .searchArgument(sarg, new String[]{"price_date", "id", "close_price"}));
+        VectorizedRowBatch batch = reader.getSchema().createRowBatch();
+        long rowsRead = 0;
+        while (rows.nextBatch(batch)) {
+            rowsRead += batch.size;
+        }
+        rows.close();
+        return (rowsRead + reader.getRowIndexStride() - 1) / reader.getRowIndexStride();
+    }
+}
@@ -0,0 +1,168 @@
+package jheister;
+
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.hive.ql.exec.vector.ColumnVector;
+import org.apache.hadoop.hive.ql.exec.vector.VectorizedRowBatch;
+import org.apache.orc.OrcFile;
+import org.apache.orc.TypeDescription;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+
+/*
+ * What a JsonStreamToOrcConverter publishes, all named <name>.<metric>:
+ *
+ *   rows, bytesIn, bytesOut       counters of records, JSON bytes and ORC bytes written
+ *   addRowBatchNanos              histogram of Writer.addRowBatch calls, on the writer thread when pipelined
+ *   stripes, stripeBytes          stripes written and their sizes; the last stripe of a file includes its footer
+ *                                 since ORC only tells us where a stripe starts
+ *   sampledRows                   rows of the sampled batches, what the following are out of
+ *   column.<field>.convertNanos   time spent converting a top-level field
+ *   column.<field>.nulls          nulls written to it, whether null in the JSON or missing
+ *   allocatedBytes                histogram of bytes allocated by the converting thread while filling and
+ *                                 flushing a batch, which includes encoding unless pipelined
+ *
+ * Everything per row is only measured on one batch in sampleEvery, by swapping timed converters into the
+ * root struct for that batch, so other batches pay for a length addition per row and a few calls per batch.
+ */
+class ConverterMetrics implements OrcFile.WriterCallback {
+    private static final com.sun.management.ThreadMXBean THREADS = allocationCounter();
+
+    private final MetricsRegistry.Counter rows;
+    private final MetricsRegistry.Counter bytesIn;
+    private final MetricsRegistry.Counter bytesOut;
+    private final MetricsRegistry.Histogram addRowBatchNanos;
+    private final MetricsRegistry.Counter stripes;
+    private final MetricsRegistry.Histogram stripeBytes;
+    private final MetricsRegistry.Counter sampledRows;
+    private final MetricsRegistry.Counter[] convertNanos;
+    private final MetricsRegistry.Counter[] nulls;
+    private final MetricsRegistry.Histogram allocatedBytes;
+
+    private final JsonStreamToOrcConverter.StructColumnConverter root;
+    private final int sampleEvery;
+    private long batches;
+    private boolean sampling;
+    private long allocatedAtStart;
+
+    private FSDataOutputStream output;
+    // touched by the writer thread when pipelined, and read once it has been joined
+    private long stripeStart = -1;
+
+    ConverterMetrics(MetricsRegistry registry, String name, TypeDescription schema,
+                     JsonStreamToOrcConverter.StructColumnConverter root, int sampleEvery) {
+        this.rows = registry.counter(name + ".rows");
+        this.bytesIn = registry.counter(name + ".bytesIn");
+        this.bytesOut = registry.counter(name + ".bytesOut");
+        this.addRowBatchNanos = registry.histogram(name + ".addRowBatchNanos");
+        this.stripes = registry.counter(name + ".stripes");
+        this.stripeBytes = registry.histogram(name + ".stripeBytes");
+        this.sampledRows = registry.counter(name + ".sampledRows");
+        this.allocatedBytes = registry.histogram(name + ".allocatedBytes");
+        List<String> fields = schema.getFieldNames();
+        this.convertNanos = new MetricsRegistry.Counter[fields.size()];
+        this.nulls = new MetricsRegistry.Counter[fields.size()];
+        for(int c=0; c < fields.size(); ++c) {
+            convertNanos[c] = registry.counter(name + ".column." + fields.get(c) + ".convertNanos");
+            nulls[c] = registry.counter(name + ".column." + fields.get(c) + ".nulls");
+        }
+        this.root = root;
+        this.sampleEvery = Math.max(1, sampleEvery);
+    }
+
+    private static com.sun.management.ThreadMXBean allocationCounter() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean counter = (com.sun.management.ThreadMXBean) threads;
+            if (counter.isThreadAllocatedMemorySupported() && counter.isThreadAllocatedMemoryEnabled()) {
+                return counter;
+            }
+        }
+        return null;
+    }
+
+    MetricsRegistry.Histogram addRowBatchNanos() {
+        return addRowBatchNanos;
+    }
+
+    // the stream a new file is written through, null if the file system didn't hand it out
+    void fileOpened(FSDataOutputStream output) {
+        this.output = output;
+        this.stripeStart = -1;
+    }
+
+    void fileClosed() {
+        if (output != null) {
+            long length = output.getPos();
+            if (stripeStart >= 0) {
+                stripeBytes.record(length - stripeStart);
+            }
+            bytesOut.increment(length);
+            output = null;
+        }
+    }
+
+    // before the batch is handed to the sink, which resets it
+    void batchFilled(VectorizedRowBatch batch, long jsonBytes) {
+        rows.increment(batch.size);
+        bytesIn.increment(jsonBytes);
+        if (sampling) {
+            sampledRows.increment(batch.size);
+            long[] nanos = root.fieldNanos();
+            for(int c=0; c < nulls.length; ++c) {
+                convertNanos[c].increment(nanos[c]);
+                nulls[c].increment(countNulls(batch.cols[c], batch.size));
+            }
+            root.timeFields(false);
+        }
+    }
+
+    // once the sink has taken the batch: ends the sample and decides whether the next batch is one
+    void batchFlushed() {
+        if (sampling && THREADS != null) {
+            allocatedBytes.record(THREADS.getThreadAllocatedBytes(Thread.currentThread().getId()) - allocatedAtStart);
+        }
+        sampling = ++batches % sampleEvery == 0;
+        if (sampling) {
+            root.timeFields(true);
+            if (THREADS != null) {
+                allocatedAtStart = THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+    }
+
+    private static long countNulls(ColumnVector vector, int size) {
+        if (vector.noNulls) {
+            return 0;
+        }
+        if (vector.isRepeating) {
+            return vector.isNull[0] ? size : 0;
+        }
+        long count = 0;
+        for(int r=0; r < size; ++r) {
+            if (vector.isNull[r]) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public void preStripeWrite(OrcFile.WriterContext context) {
+        stripes.increment(1);
+        if (output != null) {
+            // nothing of this stripe is written yet, so this is where the previous one ended
+            long position = output.getPos();
+            if (stripeStart >= 0) {
+                stripeBytes.record(position - stripeStart);
+            }
+            stripeStart = position;
+        }
+    }
+
+    @Override
+    public void preFooterWrite(OrcFile.WriterContext context) {
+        // called before the last stripe is flushed, so there is nothing to measure yet
+    }
+}
@@ -0,0 +1,37 @@
+package jheister;
+
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FilterFileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.util.Progressable;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Hands back the stream of each file created so the bytes written to it can be checked
+class CountingFileSystem extends FilterFileSystem {
+    private final Map<Path, FSDataOutputStream> created = new ConcurrentHashMap<>();
+
+    CountingFileSystem(FileSystem fs) {
+        super(fs);
+    }
+
+    @Override
+    public FSDataOutputStream create(Path path, FsPermission permission, boolean overwrite, int bufferSize,
+                                     short replication, long blockSize, Progressable progress) throws IOException {
+        FSDataOutputStream out = super.create(path, permission, overwrite, bufferSize, replication, blockSize, progress);
+        // hidden files, e.g. manifests, are never taken
+        if (!path.getName().startsWith("_") && !path.getName().startsWith(".")) {
+            created.put(path, out);
+        }
+        return out;
+    }
+
+    // the stream the file was created with, or null if it hasn't been created (since the last call)
+    FSDataOutputStream take(Path path) {
+        return created.remove(path);
+    }
+}
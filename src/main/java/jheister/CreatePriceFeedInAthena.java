@@ -23,9 +23,18 @@ import java.io.IOException;
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Random;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.IntStream;
 
 import static java.util.stream.Collectors.toList;
@@ -66,17 +75,11 @@ public class CreatePriceFeedInAthena {
         AmazonS3 s3 = AmazonS3Client.builder().withRegion(Regions.EU_WEST_1).build();
         AWSGlue glue = AWSGlueClient.builder().withRegion(Regions.EU_WEST_1).build();
 
-        LocalDate date = LocalDate.parse("2019-06-01");
-        while (date.isBefore(LocalDate.parse("2019-09-01"))) {
-            LocalDate endDate = date.plusMonths(1);
-            System.out.println("Generating " + date);
-
-            generatePriceFile("data.orc", date, endDate, 100000);
-
-            String filename = "month=" + DateTimeFormatter.ofPattern("YYYY-MM").format(date);
-            s3.putObject(BUCKET_NAME, FEED_NAME + "/" + filename + "/data.orc", new File("data.orc"));
-            date = endDate;
-        }
+        // stripes are uploaded as multipart parts while the file is still being written
+        OrcWriterSettings upload = new OrcWriterSettings().fileSystem(new S3UploadFileSystem(s3)).manifest("id");
+        int parallelism = Integer.parseInt(PROPERTIES.getProperty("partition.parallelism", "4"));
+        generatePartitions("s3://" + BUCKET_NAME + "/" + FEED_NAME, LocalDate.parse("2019-06-01"), LocalDate.parse("2019-09-01"),
+                100000, parallelism, upload);
 
         System.out.println("Creating athena database");
         glue.createDatabase(new CreateDatabaseRequest().withDatabaseInput(new DatabaseInput().withName(DB_NAME).withDescription("Example created from java")));
@@ -117,18 +120,67 @@ public class CreatePriceFeedInAthena {
     }
 
 
+    /*
+     * Writes one month=yyyy-MM/data.orc partition per month in [start, end) under baseUri, up to parallelism
+     * months at a time. Each partition is its own file, so with S3UploadFileSystem in the settings every
+     * partition uploads while it is generated and the uploads of different months overlap. The months generated
+     * at once share the memory one file sorts its rows in.
+     */
+    public static void generatePartitions(String baseUri, LocalDate start, LocalDate end, int instrumentCount,
+                                          int parallelism, OrcWriterSettings settings) throws InterruptedException {
+        AtomicInteger threads = new AtomicInteger();
+        ExecutorService workers = Executors.newFixedThreadPool(parallelism, r -> new Thread(r, "partition-" + threads.incrementAndGet()));
+        Map<String, Future<Long>> partitions = new LinkedHashMap<>();
+        long started = System.nanoTime();
+        for (LocalDate month = start; month.isBefore(end); month = month.plusMonths(1)) {
+            LocalDate from = month;
+            LocalDate to = month.plusMonths(1).isBefore(end) ? month.plusMonths(1) : end;
+            String partition = "month=" + DateTimeFormatter.ofPattern("yyyy-MM").format(month);
+            partitions.put(partition, workers.submit(() -> {
+                long partitionStarted = System.nanoTime();
+                generatePriceFile(baseUri + "/" + partition + "/data.orc", from, to, instrumentCount, settings,
+                        OrcPriceFile.CLUSTER_MEMORY / parallelism);
+                return (System.nanoTime() - partitionStarted) / 1_000_000;
+            }));
+        }
+        workers.shutdown();
+
+        try {
+            for (Map.Entry<String, Future<Long>> partition : partitions.entrySet()) {
+                System.out.println("Wrote " + partition.getKey() + " in " + partition.getValue().get() + "ms");
+            }
+        } catch (ExecutionException e) {
+            workers.shutdownNow();
+            throw new RuntimeException("Generating partition failed", e.getCause());
+        }
+        System.out.println("Wrote " + partitions.size() + " partitions in " + (System.nanoTime() - started) / 1_000_000 + "ms");
+    }
+
     public static void generatePriceFile(String filename, LocalDate start, LocalDate end, int instrumentCount) {
+        generatePriceFile(filename, start, end, instrumentCount, new OrcWriterSettings());
+    }
+
+    public static void generatePriceFile(String filename, LocalDate start, LocalDate end, int instrumentCount,
+                                         OrcWriterSettings settings) {
+        generatePriceFile(filename, start, end, instrumentCount, settings, OrcPriceFile.CLUSTER_MEMORY);
+    }
+
+    public static void generatePriceFile(String filename, LocalDate start, LocalDate end, int instrumentCount,
+                                         OrcWriterSettings settings, long clusterMemory) {
         try {
-            OrcPriceFile orcPriceFile = new OrcPriceFile(filename);
+            OrcPriceFile orcPriceFile = new OrcPriceFile(filename, instrumentCount, true, settings, clusterMemory,
+                    new File(System.getProperty("java.io.tmpdir")));
 
             LocalDate date = start;
 
             List<UUID> ids = IntStream.range(0, instrumentCount).mapToObj(i -> UUID.randomUUID()).collect(toList());
 
+            // Math.random and the default shuffle share one Random, which partitions generated in parallel contend on
+            Random random = ThreadLocalRandom.current();
             while (date.isBefore(end)) {
-                Collections.shuffle(ids);
+                Collections.shuffle(ids, random);
                 for (UUID id : ids) {
-                    orcPriceFile.write(id, date, Math.random());
+                    orcPriceFile.write(id, date, random.nextDouble());
                 }
                 date = date.plusDays(1);
             }
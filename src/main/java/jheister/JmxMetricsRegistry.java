@@ -0,0 +1,157 @@
+package jheister;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Publishes every metric as an MBean named <domain>:type=Counter|Histogram,name=<name>, so they show up in
+ * jconsole and in anything scraping JMX. Counters report their count and mean rate since creation.
+ * Histograms keep count, min, max and mean exactly and percentiles from power of two buckets, so a
+ * percentile is only accurate to within a factor of two.
+ */
+public class JmxMetricsRegistry implements MetricsRegistry {
+    private final String domain;
+    private final MBeanServer server;
+    private final Map<String, JmxCounter> counters = new ConcurrentHashMap<>();
+    private final Map<String, JmxHistogram> histograms = new ConcurrentHashMap<>();
+
+    public JmxMetricsRegistry() {
+        this("jheister", ManagementFactory.getPlatformMBeanServer());
+    }
+
+    public JmxMetricsRegistry(String domain, MBeanServer server) {
+        this.domain = domain;
+        this.server = server;
+    }
+
+    public Counter counter(String name) {
+        return counters.computeIfAbsent(name, n -> register(n, new JmxCounter(), CounterMBean.class));
+    }
+
+    public Histogram histogram(String name) {
+        return histograms.computeIfAbsent(name, n -> register(n, new JmxHistogram(), HistogramMBean.class));
+    }
+
+    private <T, M extends T> M register(String name, M metric, Class<T> mbeanInterface) {
+        try {
+            ObjectName objectName = new ObjectName(domain + ":type=" + mbeanInterface.getSimpleName().replace("MBean", "")
+                    + ",name=" + ObjectName.quote(name));
+            if (server.isRegistered(objectName)) {
+                // e.g. left by an earlier registry in the same JVM
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(new StandardMBean(metric, mbeanInterface), objectName);
+            return metric;
+        } catch (JMException e) {
+            throw new IllegalArgumentException("Can't register metric " + name, e);
+        }
+    }
+
+    public interface CounterMBean {
+        long getCount();
+
+        double getMeanRatePerSecond();
+    }
+
+    public interface HistogramMBean {
+        long getCount();
+
+        long getMin();
+
+        long getMax();
+
+        double getMean();
+
+        long get50thPercentile();
+
+        long get99thPercentile();
+    }
+
+    static class JmxCounter implements Counter, CounterMBean {
+        private final LongAdder count = new LongAdder();
+        private final long createdNanos = System.nanoTime();
+
+        public void increment(long amount) {
+            count.add(amount);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public double getMeanRatePerSecond() {
+            return count.sum() / Math.max(1e-9, (System.nanoTime() - createdNanos) / 1e9);
+        }
+    }
+
+    static class JmxHistogram implements Histogram, HistogramMBean {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+        private final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+        // bucket b counts values below 2^b, and at least 2^(b - 1) for b > 0
+        private final AtomicLongArray buckets = new AtomicLongArray(64);
+
+        public void record(long value) {
+            count.increment();
+            sum.add(value);
+            if (value < min.get()) {
+                min.accumulateAndGet(value, Math::min);
+            }
+            if (value > max.get()) {
+                max.accumulateAndGet(value, Math::max);
+            }
+            buckets.incrementAndGet(value <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(value));
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getMin() {
+            return count.sum() == 0 ? 0 : min.get();
+        }
+
+        public long getMax() {
+            return count.sum() == 0 ? 0 : max.get();
+        }
+
+        public double getMean() {
+            long n = count.sum();
+            return n == 0 ? 0 : (double) sum.sum() / n;
+        }
+
+        public long get50thPercentile() {
+            return percentile(0.5);
+        }
+
+        public long get99thPercentile() {
+            return percentile(0.99);
+        }
+
+        // upper bound of the bucket the percentile falls in, capped at the largest value seen
+        private long percentile(double quantile) {
+            long total = 0;
+            for (int b = 0; b < buckets.length(); b++) {
+                total += buckets.get(b);
+            }
+            long rank = (long) Math.ceil(total * quantile);
+            long seen = 0;
+            for (int b = 0; b < buckets.length(); b++) {
+                seen += buckets.get(b);
+                if (seen >= rank && seen > 0) {
+                    return b == 0 ? 0 : Math.min(getMax(), b == 63 ? Long.MAX_VALUE : (1L << b) - 1);
+                }
+            }
+            return 0;
+        }
+    }
+}
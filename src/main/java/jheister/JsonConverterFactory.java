@@ -0,0 +1,51 @@
+package jheister;
+
+import org.apache.orc.TypeDescription;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Opens JsonStreamToOrcConverters for many files and schema versions without parsing and checking the same
+ * schemas again each time. Compiled plans are cached per pair of output and record schema, and a plan can
+ * be shared by converters on different threads.
+ *
+ * A feed whose records changed over time can keep writing one output schema: open(tableSchema,
+ * recordSchema, file) takes the schema a batch of records was written with, which may lack fields, order
+ * them differently or use narrower types. Whether that fits is checked once, when its plan is compiled.
+ */
+public class JsonConverterFactory {
+    private final String timestampFormat;
+    private final JsonStreamToOrcConverter.Options options;
+    private final Map<String, JsonStreamToOrcConverter.Plan> plans = new ConcurrentHashMap<>();
+
+    public JsonConverterFactory(String timestampFormat) {
+        this(timestampFormat, new JsonStreamToOrcConverter.Options());
+    }
+
+    public JsonConverterFactory(String timestampFormat, JsonStreamToOrcConverter.Options options) {
+        this.timestampFormat = timestampFormat;
+        this.options = options;
+    }
+
+    public JsonStreamToOrcConverter open(String schema, String outputFile) throws IOException {
+        return open(schema, schema, outputFile);
+    }
+
+    public JsonStreamToOrcConverter open(String tableSchema, String recordSchema, String outputFile) throws IOException {
+        return new JsonStreamToOrcConverter(plan(tableSchema, recordSchema), outputFile, timestampFormat, options);
+    }
+
+    JsonStreamToOrcConverter.Plan plan(String tableSchema, String recordSchema) {
+        return plans.computeIfAbsent(tableSchema + "\n" + recordSchema, key -> {
+            TypeDescription table = TypeDescription.fromString(tableSchema);
+            TypeDescription record = recordSchema.equals(tableSchema) ? table : TypeDescription.fromString(recordSchema);
+            return JsonStreamToOrcConverter.Plan.compile(table, record);
+        });
+    }
+
+    public int size() {
+        return plans.size();
+    }
+}
@@ -1,15 +1,12 @@
 package jheister;
 
-import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
-import com.google.gson.JsonPrimitive;
+import com.google.gson.stream.JsonToken;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
-import org.apache.hadoop.hive.common.type.HiveDecimal;
 import org.apache.hadoop.hive.ql.exec.vector.BytesColumnVector;
 import org.apache.hadoop.hive.ql.exec.vector.ColumnVector;
+import org.apache.hadoop.hive.ql.exec.vector.Decimal64ColumnVector;
 import org.apache.hadoop.hive.ql.exec.vector.DecimalColumnVector;
 import org.apache.hadoop.hive.ql.exec.vector.DoubleColumnVector;
 import org.apache.hadoop.hive.ql.exec.vector.ListColumnVector;
@@ -18,28 +15,48 @@ import org.apache.hadoop.hive.ql.exec.vector.MapColumnVector;
 import org.apache.hadoop.hive.ql.exec.vector.StructColumnVector;
 import org.apache.hadoop.hive.ql.exec.vector.TimestampColumnVector;
 import org.apache.hadoop.hive.ql.exec.vector.VectorizedRowBatch;
+import org.apache.hadoop.hive.serde2.io.HiveDecimalWritable;
 import org.apache.orc.OrcFile;
 import org.apache.orc.TypeDescription;
 import org.apache.orc.Writer;
-import org.threeten.bp.LocalDateTime;
 import org.threeten.bp.ZoneId;
-import org.threeten.bp.ZonedDateTime;
-import org.threeten.bp.format.DateTimeFormatter;
-import org.threeten.bp.temporal.TemporalAccessor;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 
 public class JsonStreamToOrcConverter {
     private final TypeDescription schema;
-    private final JsonConverter[] converters;
-    private final Writer writer;
-    private final VectorizedRowBatch batch;
-    private final List<String> fieldNames;
-    private final DateTimeFormatter dateTimeFormatter;
+    private final StructColumnConverter rootConverter;
+    private final Options options;
+    private BatchSink sink;
+    private String outputFile;
+    private VectorizedRowBatch batch;
+    private final String timestampFormat;
+    private final ZoneId timestampZone;
+    private final boolean decimal64;
+    private final int stringCacheSize;
+    private final Map<Integer, BytesValueCache> stringCaches = new TreeMap<>();
+    private final Utf8JsonReader reader = new Utf8JsonReader();
+    private byte[] copyBuffer = new byte[0];
+    private byte[] chunkBuffer;
+    private long rowCount;
+    // null unless Options.metrics was set
+    private final ConverterMetrics metrics;
+    private long batchBytes;
+    // list and map elements in the batch, at any depth
+    private long childElements;
+    // null unless the writer settings ask for manifests
+    private final ManifestWriter manifest;
+    // whether close() writes the manifests, rather than whoever shares them
+    private final boolean ownsManifest;
 
 
     public static void main(String[] args) throws IOException {
@@ -56,51 +73,439 @@ public class JsonStreamToOrcConverter {
 
 
     public JsonStreamToOrcConverter(String schema, String outputFile, String timestampFormat) throws IOException {
-        this.schema = TypeDescription.fromString(schema);
-        fieldNames = this.schema.getFieldNames();
+        this(schema, outputFile, timestampFormat, new Options());
+    }
+
+    public JsonStreamToOrcConverter(String schema, String outputFile, String timestampFormat, Options options) throws IOException {
+        this(Plan.compile(TypeDescription.fromString(schema)), outputFile, timestampFormat, options);
+    }
+
+    // builds the converter tree from an already compiled plan, see JsonConverterFactory
+    JsonStreamToOrcConverter(Plan plan, String outputFile, String timestampFormat, Options options) throws IOException {
+        this(plan, outputFile, timestampFormat, options, ManifestWriter.of(options.writerSettings, plan.schema), true);
+    }
+
+    // records the files in a manifest shared with other converters, e.g. those of one partition, that its owner writes
+    JsonStreamToOrcConverter(Plan plan, String outputFile, String timestampFormat, Options options,
+                             ManifestWriter manifest) throws IOException {
+        this(plan, outputFile, timestampFormat, options, manifest, false);
+    }
+
+    private JsonStreamToOrcConverter(Plan plan, String outputFile, String timestampFormat, Options options,
+                                     ManifestWriter manifest, boolean ownsManifest) throws IOException {
+        this.schema = plan.schema;
+        this.timestampFormat = timestampFormat;
+        this.timestampZone = options.timestampZone;
+        this.decimal64 = options.decimal64;
+        this.stringCacheSize = options.stringCacheSize;
+        this.options = options;
+        this.rootConverter = new StructColumnConverter(plan);
+        this.metrics = options.metrics == null ? null
+                : new ConverterMetrics(options.metrics, options.metricsName, schema, rootConverter, options.metricsSampling);
+        this.manifest = manifest;
+        this.ownsManifest = ownsManifest;
+
+        batch = createBatch();
+        this.outputFile = outputFile;
+        sink = openSink();
+    }
+
+    private BatchSink sink() throws IOException {
+        if (sink == null) {
+            sink = openSink();
+        }
+        return sink;
+    }
+
+    private BatchSink openSink() throws IOException {
+        Path path = new Path(outputFile);
+        Configuration conf = new Configuration();
+        OrcFile.WriterOptions writerOptions = options.writerSettings.toWriterOptions(conf, schema);
+        MetricsRegistry.Histogram addRowBatchNanos = MetricsRegistry.NONE.histogram("");
+        CountingFileSystem fileSystem = null;
+        if (metrics != null) {
+            fileSystem = new CountingFileSystem(writerOptions.getFileSystem() != null
+                    ? writerOptions.getFileSystem() : path.getFileSystem(conf));
+            writerOptions.fileSystem(fileSystem).callback(metrics);
+        }
+        if (manifest != null) {
+            manifest.writeTo(path, writerOptions);
+        }
+        Writer writer = OrcFile.createWriter(path, writerOptions);
+        if (metrics != null) {
+            metrics.fileOpened(fileSystem.take(path));
+            addRowBatchNanos = metrics.addRowBatchNanos();
+        }
+        BatchSink sink = options.pipelineDepth > 1
+                ? new PipelinedBatchSink(writer, this::createBatch, options.pipelineDepth, addRowBatchNanos)
+                : BatchSink.of(writer, addRowBatchNanos);
+        if (!options.clusterBy.isEmpty()) {
+            sink = new SortingBatchSink(sink, schema, options.clusterBy, options.clusterMemory,
+                    this::createBatch, options.spillDirectory, options.maxChildElements);
+        }
+        return sink;
+    }
+
+    public static class Options {
+        private OrcWriterSettings writerSettings = new OrcWriterSettings();
+        private int pipelineDepth;
+        private ZoneId timestampZone = ZoneId.systemDefault();
+        private boolean decimal64;
+        private int stringCacheSize;
+        private List<String> clusterBy = Collections.emptyList();
+        private long clusterMemory = 256L << 20;
+        private File spillDirectory = new File(System.getProperty("java.io.tmpdir"));
+        private int batchSize = VectorizedRowBatch.DEFAULT_SIZE;
+        private MetricsRegistry metrics;
+        private String metricsName;
+        private int metricsSampling = 64;
+        private long maxChildElements = 1 << 20;
+
+        public Options writerSettings(OrcWriterSettings settings) {
+            this.writerSettings = settings;
+            return this;
+        }
+
+        // Hands full batches to a background writer thread, recycling this many batches between the two
+        public Options pipelined(int batches) {
+            this.pipelineDepth = batches;
+            return this;
+        }
+
+        // Zone for timestamps that don't carry an offset
+        public Options timestampZone(ZoneId zone) {
+            this.timestampZone = zone;
+            return this;
+        }
+
+        // Writes decimal(p<=18,s) columns as scaled longs through Decimal64ColumnVector
+        public Options decimal64(boolean decimal64) {
+            this.decimal64 = decimal64;
+            return this;
+        }
+
+        // Keeps up to this many recent values per string column and references them instead of copying; 0, the default, for none
+        public Options stringCacheSize(int entries) {
+            this.stringCacheSize = entries;
+            return this;
+        }
+
+        // Sorts the output by these top-level fields, spilling sorted runs once the buffered rows exceed the budget
+        public Options clusterBy(String... fields) {
+            this.clusterBy = Arrays.asList(fields);
+            return this;
+        }
+
+        public Options clusterMemory(long bytes) {
+            this.clusterMemory = bytes;
+            return this;
+        }
+
+        public Options spillDirectory(File directory) {
+            this.spillDirectory = directory;
+            return this;
+        }
 
-        List<TypeDescription> fieldTypes = this.schema.getChildren();
+        // Rows per batch handed to the writer; larger batches mean fewer flushes and sink hand-offs
+        public Options batchSize(int rows) {
+            this.batchSize = rows;
+            return this;
+        }
 
-        this.converters = new JsonConverter[fieldTypes.size()];
-        for(int c = 0; c < converters.length; ++c) {
-            converters[c] = createConverter(fieldTypes.get(c));
+        // Flushes a batch early once its lists and maps hold this many elements, so records with long arrays
+        // don't grow the child vectors to batch size times array length
+        public Options maxChildElements(long elements) {
+            this.maxChildElements = elements;
+            return this;
         }
 
-        writer = OrcFile.createWriter(new Path(outputFile), OrcFile.writerOptions(new Configuration()).setSchema(this.schema));
-        batch = this.schema.createRowBatch();
-        this.dateTimeFormatter = DateTimeFormatter.ofPattern(timestampFormat);
+        // Publishes throughput, flush latency and stripe sizes as <name>.rows etc., see ConverterMetrics.
+        // Converters given the same registry and name add up to the same metrics.
+        public Options metrics(MetricsRegistry registry, String name) {
+            this.metrics = registry;
+            this.metricsName = name;
+            return this;
+        }
+
+        // Measures per-column conversion time, nulls and allocation on one batch in this many
+        public Options metricsSampling(int everyNthBatch) {
+            this.metricsSampling = everyNthBatch;
+            return this;
+        }
+
+        Options copy() {
+            Options copy = new Options();
+            copy.writerSettings = writerSettings;
+            copy.pipelineDepth = pipelineDepth;
+            copy.timestampZone = timestampZone;
+            copy.decimal64 = decimal64;
+            copy.stringCacheSize = stringCacheSize;
+            copy.clusterBy = clusterBy;
+            copy.clusterMemory = clusterMemory;
+            copy.spillDirectory = spillDirectory;
+            copy.batchSize = batchSize;
+            copy.metrics = metrics;
+            copy.metricsName = metricsName;
+            copy.metricsSampling = metricsSampling;
+            copy.maxChildElements = maxChildElements;
+            return copy;
+        }
+
+        OrcWriterSettings getWriterSettings() {
+            return writerSettings;
+        }
+
+        long getClusterMemory() {
+            return clusterMemory;
+        }
     }
 
 
     public void write(String json) throws IOException {
-        JsonObject elem = (JsonObject) new JsonParser().parse(json);
-        for(int c=0; c < converters.length; ++c) {
-            JsonElement field = elem.get(fieldNames.get(c));
-            if (field == null) {
-                batch.cols[c].noNulls = false;
-                batch.cols[c].isNull[batch.size] = true;
-            } else {
-                converters[c].convert(field, batch.cols[c], batch.size);
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        write(bytes, 0, bytes.length);
+    }
+
+    public void write(ByteBuffer json) throws IOException {
+        if (json.hasArray()) {
+            write(json.array(), json.arrayOffset() + json.position(), json.remaining());
+        } else {
+            int length = json.remaining();
+            if (copyBuffer.length < length) {
+                copyBuffer = new byte[Math.max(length, copyBuffer.length * 2)];
+            }
+            json.duplicate().get(copyBuffer, 0, length);
+            write(copyBuffer, 0, length);
+        }
+    }
+
+    public void write(byte[] json, int offset, int length) throws IOException {
+        addRow(json, offset, length);
+        rowCount++;
+    }
+
+    private void addRow(byte[] json, int offset, int length) throws IOException {
+        long elements = childElements;
+        try {
+            reader.reset(json, offset, length);
+            rootConverter.convertFields(reader, batch.cols, batch.size);
+            reader.endDocument();
+        } catch (IOException | RuntimeException e) {
+            // otherwise the next row would inherit the nulls and list elements of the part that was read
+            for (ColumnVector column : batch.cols) {
+                ColumnVectors.discardRows(column, batch.size, batch.size + 1);
+            }
+            childElements = elements;
+            throw e;
+        }
+        batchBytes += length;
+        if (++batch.size == batch.getMaxSize() || childElements >= options.maxChildElements) {
+            flushBatch();
+        }
+    }
+
+    private void flushBatch() throws IOException {
+        if (metrics != null) {
+            metrics.batchFilled(batch, batchBytes);
+        }
+        if (manifest != null) {
+            manifest.add(batch);
+        }
+        batchBytes = 0;
+        childElements = 0;
+        batch = sink().flush(batch);
+        if (metrics != null) {
+            metrics.batchFlushed();
+        }
+    }
+
+    /*
+     * Writes every record of a chunk of newline delimited JSON; the last one needn't end with a newline.
+     * Blank lines are skipped. Returns the number of records written.
+     */
+    public long writeAll(byte[] ndjson, int offset, int length) throws IOException {
+        int end = offset + length;
+        long written = 0;
+        int start = offset;
+        while (start < end) {
+            int lineEnd = start;
+            while (lineEnd < end && ndjson[lineEnd] != '\n') {
+                lineEnd++;
+            }
+            int first = start;
+            int last = lineEnd;
+            while (first < last && isWhitespace(ndjson[first])) {
+                first++;
+            }
+            while (last > first && isWhitespace(ndjson[last - 1])) {
+                last--;
+            }
+            if (first < last) {
+                addRow(ndjson, first, last - first);
+                written++;
+            }
+            start = lineEnd + 1;
+        }
+        rowCount += written;
+        return written;
+    }
+
+    public long writeAll(ByteBuffer ndjson) throws IOException {
+        if (ndjson.hasArray()) {
+            return writeAll(ndjson.array(), ndjson.arrayOffset() + ndjson.position(), ndjson.remaining());
+        }
+        ByteBuffer source = ndjson.duplicate();
+        return writeAll((buf, off, len) -> {
+            if (!source.hasRemaining()) {
+                return -1;
+            }
+            int read = Math.min(len, source.remaining());
+            source.get(buf, off, read);
+            return read;
+        });
+    }
+
+    // Reads the stream to its end in chunks; it isn't closed
+    public long writeAll(InputStream ndjson) throws IOException {
+        return writeAll(ndjson::read);
+    }
+
+    public long writeAll(List<? extends CharSequence> records) throws IOException {
+        for (CharSequence record : records) {
+            int length = encode(record);
+            addRow(copyBuffer, 0, length);
+        }
+        rowCount += records.size();
+        return records.size();
+    }
+
+    private interface ChunkSource {
+        int read(byte[] buf, int offset, int length) throws IOException;
+    }
+
+    private long writeAll(ChunkSource source) throws IOException {
+        if (chunkBuffer == null) {
+            chunkBuffer = new byte[1 << 20];
+        }
+        long written = 0;
+        int filled = 0;
+        while (true) {
+            if (filled == chunkBuffer.length) {
+                // a single record longer than the buffer
+                chunkBuffer = Arrays.copyOf(chunkBuffer, chunkBuffer.length * 2);
+            }
+            int read = source.read(chunkBuffer, filled, chunkBuffer.length - filled);
+            if (read < 0) {
+                return written + writeAll(chunkBuffer, 0, filled);
+            }
+            int scanFrom = filled;
+            filled += read;
+            int lastNewline = filled - 1;
+            while (lastNewline >= scanFrom && chunkBuffer[lastNewline] != '\n') {
+                lastNewline--;
+            }
+            if (lastNewline >= scanFrom) {
+                written += writeAll(chunkBuffer, 0, lastNewline + 1);
+                filled -= lastNewline + 1;
+                System.arraycopy(chunkBuffer, lastNewline + 1, chunkBuffer, 0, filled);
             }
         }
-        batch.size++;
+    }
 
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\r' || b == '\t';
+    }
 
-        if (batch.getMaxSize() == batch.size) {
-            writer.addRowBatch(batch);
-            batch.reset();
+    // UTF-8 into copyBuffer without going through a String, returning the length
+    private int encode(CharSequence chars) {
+        int length = chars.length();
+        if (copyBuffer.length < length * 3) {
+            copyBuffer = new byte[Math.max(length * 3, copyBuffer.length * 2)];
+        }
+        byte[] out = copyBuffer;
+        int n = 0;
+        for(int i=0; i < length; ++i) {
+            char c = chars.charAt(i);
+            if (c < 0x80) {
+                out[n++] = (byte) c;
+            } else if (c < 0x800) {
+                out[n++] = (byte) (0xc0 | c >> 6);
+                out[n++] = (byte) (0x80 | c & 0x3f);
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(chars.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, chars.charAt(++i));
+                out[n++] = (byte) (0xf0 | codePoint >> 18);
+                out[n++] = (byte) (0x80 | codePoint >> 12 & 0x3f);
+                out[n++] = (byte) (0x80 | codePoint >> 6 & 0x3f);
+                out[n++] = (byte) (0x80 | codePoint & 0x3f);
+            } else if (Character.isSurrogate(c)) {
+                // unpaired, as String.getBytes does
+                out[n++] = '?';
+            } else {
+                out[n++] = (byte) (0xe0 | c >> 12);
+                out[n++] = (byte) (0x80 | c >> 6 & 0x3f);
+                out[n++] = (byte) (0x80 | c & 0x3f);
+            }
         }
+        return n;
+    }
+
+    // keyed by ORC column id
+    public Map<Integer, BytesValueCache> getStringCaches() {
+        return stringCaches;
+    }
+
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    /*
+     * Finishes the current file and carries on writing to a new one, keeping the converters, string caches
+     * and batches. The new file is only created once rows are flushed to it, so rolling before a close()
+     * with nothing written in between leaves no empty file behind.
+     */
+    public void roll(String outputFile) throws IOException {
+        closeFile();
+        sink = null;
+        this.outputFile = outputFile;
     }
 
     public void close() throws IOException {
+        closeFile();
+        if (manifest != null && ownsManifest) {
+            Path path = new Path(outputFile);
+            FileSystem fs = options.writerSettings.getFileSystem();
+            manifest.close(fs != null ? fs : path.getFileSystem(new Configuration()));
+        }
+    }
+
+    private void closeFile() throws IOException {
         if (batch.size > 0) {
-            writer.addRowBatch(batch);
-            batch.reset();
+            flushBatch();
+        }
+        if (sink != null) {
+            sink.close();
+            if (metrics != null) {
+                metrics.fileClosed();
+            }
+            if (manifest != null) {
+                manifest.fileClosed(new Path(outputFile));
+            }
         }
-        writer.close();
+    }
+
+    private VectorizedRowBatch createBatch() {
+        if (decimal64) {
+            return schema.createRowBatch(TypeDescription.RowBatchVersion.USE_DECIMAL64, options.batchSize);
+        }
+        return schema.createRowBatch(options.batchSize);
     }
 
     JsonConverter createConverter(TypeDescription schema) {
+        return createConverter(Plan.compile(schema));
+    }
+
+    JsonConverter createConverter(Plan plan) {
+        TypeDescription schema = plan.schema;
         switch (schema.getCategory()) {
             case BYTE:
             case SHORT:
@@ -113,9 +518,17 @@ public class JsonStreamToOrcConverter {
             case CHAR:
             case VARCHAR:
             case STRING:
+                if (stringCacheSize > 0) {
+                    BytesValueCache cache = new BytesValueCache(stringCacheSize);
+                    stringCaches.put(schema.getId(), cache);
+                    return new CachingStringColumnConverter(cache);
+                }
                 return new StringColumnConverter();
             case DECIMAL:
-                return new DecimalColumnConverter();
+                if (decimal64 && schema.getPrecision() <= TypeDescription.MAX_DECIMAL64_PRECISION) {
+                    return new Decimal64ColumnConverter(schema);
+                }
+                return new DecimalColumnConverter(schema);
             case TIMESTAMP:
             case TIMESTAMP_INSTANT:
                 return new TimestampColumnConverter();
@@ -124,211 +537,544 @@ public class JsonStreamToOrcConverter {
             case BOOLEAN:
                 return new BooleanColumnConverter();
             case STRUCT:
-                return new StructColumnConverter(schema);
+                return new StructColumnConverter(plan);
             case LIST:
-                return new ListColumnConverter(schema);
+                return new ListColumnConverter(plan);
             case MAP:
-                return new MapColumnConverter(schema);
+                return new MapColumnConverter(plan);
             default:
                 throw new IllegalArgumentException("Unhandled type " + schema);
         }
     }
 
     interface JsonConverter {
-        void convert(JsonElement value, ColumnVector vect, int row);
+        void convert(Utf8JsonReader in, ColumnVector vect, int row) throws IOException;
+    }
+
+    static boolean readNull(Utf8JsonReader in, ColumnVector vect, int row) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            setNull(vect, row);
+            return true;
+        }
+        return false;
+    }
+
+    static void setNull(ColumnVector vect, int row) {
+        vect.noNulls = false;
+        vect.isNull[row] = true;
     }
 
     static class BooleanColumnConverter implements JsonConverter {
-        public void convert(JsonElement value, ColumnVector vect, int row) {
-            if (value == null || value.isJsonNull()) {
-                vect.noNulls = false;
-                vect.isNull[row] = true;
-            } else {
+        public void convert(Utf8JsonReader in, ColumnVector vect, int row) throws IOException {
+            if (!readNull(in, vect, row)) {
                 LongColumnVector vector = (LongColumnVector) vect;
-                vector.vector[row] = value.getAsBoolean() ? 1 : 0;
+                boolean value = in.peek() == JsonToken.STRING ? Boolean.parseBoolean(in.nextString()) : in.nextBoolean();
+                vector.vector[row] = value ? 1 : 0;
             }
         }
     }
 
     static class LongColumnConverter implements JsonConverter {
-        public void convert(JsonElement value, ColumnVector vect, int row) {
-            if (value == null || value.isJsonNull()) {
-                vect.noNulls = false;
-                vect.isNull[row] = true;
-            } else {
+        public void convert(Utf8JsonReader in, ColumnVector vect, int row) throws IOException {
+            if (!readNull(in, vect, row)) {
                 LongColumnVector vector = (LongColumnVector) vect;
-                vector.vector[row] = value.getAsLong();
+                vector.vector[row] = in.nextLong();
             }
         }
     }
 
     static class DoubleColumnConverter implements JsonConverter {
-        public void convert(JsonElement value, ColumnVector vect, int row) {
-            if (value == null || value.isJsonNull()) {
-                vect.noNulls = false;
-                vect.isNull[row] = true;
-            } else {
+        public void convert(Utf8JsonReader in, ColumnVector vect, int row) throws IOException {
+            if (!readNull(in, vect, row)) {
                 DoubleColumnVector vector = (DoubleColumnVector) vect;
-                vector.vector[row] = value.getAsDouble();
+                vector.vector[row] = in.nextDouble();
             }
         }
     }
 
     static class StringColumnConverter implements JsonConverter {
-        public void convert(JsonElement value, ColumnVector vect, int row) {
-            if (value == null || value.isJsonNull()) {
-                vect.noNulls = false;
-                vect.isNull[row] = true;
-            } else {
-                BytesColumnVector vector = (BytesColumnVector) vect;
-                byte[] bytes = value.getAsString().getBytes(StandardCharsets.UTF_8);
-                vector.setRef(row, bytes, 0, bytes.length);
+        public void convert(Utf8JsonReader in, ColumnVector vect, int row) throws IOException {
+            if (!readNull(in, vect, row)) {
+                in.nextSlice();
+                setSlice(in, (BytesColumnVector) vect, row);
+            }
+        }
+
+        static void setSlice(Utf8JsonReader in, BytesColumnVector vector, int row) {
+            vector.setVal(row, in.sliceBuf(), in.sliceStart(), in.sliceLength());
+        }
+    }
+
+    static class CachingStringColumnConverter implements JsonConverter {
+        private final BytesValueCache cache;
+
+        CachingStringColumnConverter(BytesValueCache cache) {
+            this.cache = cache;
+        }
+
+        public void convert(Utf8JsonReader in, ColumnVector vect, int row) throws IOException {
+            if (!readNull(in, vect, row)) {
+                in.nextSlice();
+                byte[] value = cache.get(in.sliceBuf(), in.sliceStart(), in.sliceLength());
+                ((BytesColumnVector) vect).setRef(row, value, 0, value.length);
             }
         }
     }
 
     static class BinaryColumnConverter implements JsonConverter {
-        public void convert(JsonElement value, ColumnVector vect, int row) {
-            if (value == null || value.isJsonNull()) {
-                vect.noNulls = false;
-                vect.isNull[row] = true;
-            } else {
+        private byte[] decoded = new byte[64];
+
+        public void convert(Utf8JsonReader in, ColumnVector vect, int row) throws IOException {
+            if (!readNull(in, vect, row)) {
                 BytesColumnVector vector = (BytesColumnVector) vect;
-                String binStr = value.getAsString();
-                byte[] bytes = new byte[binStr.length()/2];
-                for(int i=0; i < bytes.length; ++i) {
-                    bytes[i] = (byte) Integer.parseInt(binStr.substring(i*2, i*2+2), 16);
+                in.nextSlice();
+                byte[] hex = in.sliceBuf();
+                int start = in.sliceStart();
+                if (in.sliceLength() % 2 != 0) {
+                    throw new NumberFormatException("Odd number of hex digits in " + hexString(in));
+                }
+                int length = in.sliceLength() / 2;
+                if (decoded.length < length) {
+                    decoded = new byte[Math.max(length, decoded.length * 2)];
+                }
+                for(int i=0; i < length; ++i) {
+                    int high = Character.digit(hex[start + i*2], 16);
+                    int low = Character.digit(hex[start + i*2+1], 16);
+                    if (high < 0 || low < 0) {
+                        throw new NumberFormatException("Not hex: " + hexString(in));
+                    }
+                    decoded[i] = (byte) ((high << 4) | low);
                 }
-                vector.setRef(row, bytes, 0, bytes.length);
+                vector.setVal(row, decoded, 0, length);
             }
         }
+
+        private static String hexString(Utf8JsonReader in) {
+            return new String(in.sliceBuf(), in.sliceStart(), in.sliceLength(), StandardCharsets.UTF_8);
+        }
     }
 
 
     class TimestampColumnConverter implements JsonConverter {
-        public void convert(JsonElement value, ColumnVector vect, int row) {
-            if (value == null || value.isJsonNull()) {
-                vect.noNulls = false;
-                vect.isNull[row] = true;
-            } else {
-                TimestampColumnVector vector = (TimestampColumnVector) vect;
-                TemporalAccessor temporalAccessor = dateTimeFormatter.parseBest(value.getAsString(),
-                        ZonedDateTime.FROM, LocalDateTime.FROM);
-                if (temporalAccessor instanceof ZonedDateTime) {
-                    ZonedDateTime zonedDateTime = ((ZonedDateTime) temporalAccessor);
-                    Timestamp timestamp = new Timestamp(zonedDateTime.toEpochSecond() * 1000L);
-                    timestamp.setNanos(zonedDateTime.getNano());
-                    vector.set(row, timestamp);
-                } else if (temporalAccessor instanceof LocalDateTime) {
-                    ZonedDateTime tz = ((LocalDateTime) temporalAccessor).atZone(ZoneId.systemDefault());
-                    Timestamp timestamp = new Timestamp(tz.toEpochSecond() * 1000L);
-                    timestamp.setNanos(tz.getNano());
-                    vector.set(row, timestamp);
-                } else {
-                    vect.noNulls = false;
-                    vect.isNull[row] = true;
+        private final TimestampParser parser = new TimestampParser(timestampFormat, timestampZone);
+
+        public void convert(Utf8JsonReader in, ColumnVector vect, int row) throws IOException {
+            if (!readNull(in, vect, row)) {
+                in.nextSlice();
+                if (!parser.parse(in.sliceBuf(), in.sliceStart(), in.sliceLength(), (TimestampColumnVector) vect, row)) {
+                    setNull(vect, row);
                 }
             }
         }
     }
 
     static class DecimalColumnConverter implements JsonConverter {
-        public void convert(JsonElement value, ColumnVector vect, int row) {
-            if (value == null || value.isJsonNull()) {
-                vect.noNulls = false;
-                vect.isNull[row] = true;
-            } else {
-                DecimalColumnVector vector = (DecimalColumnVector) vect;
-                vector.vector[row].set(HiveDecimal.create(value.getAsString()));
+        private final int precision;
+        private final int scale;
+
+        DecimalColumnConverter(TypeDescription schema) {
+            precision = schema.getPrecision();
+            scale = schema.getScale();
+        }
+
+        public void convert(Utf8JsonReader in, ColumnVector vect, int row) throws IOException {
+            if (!readNull(in, vect, row)) {
+                in.nextSlice();
+                HiveDecimalWritable value = ((DecimalColumnVector) vect).vector[row];
+                value.setFromBytes(in.sliceBuf(), in.sliceStart(), in.sliceLength(), true);
+                if (!value.isSet() || !value.mutateEnforcePrecisionScale(precision, scale)) {
+                    setNull(vect, row);
+                }
             }
         }
     }
 
+    static class Decimal64ColumnConverter implements JsonConverter {
+        private static final long[] POWERS_OF_TEN = new long[TypeDescription.MAX_DECIMAL64_PRECISION + 1];
+        static {
+            POWERS_OF_TEN[0] = 1;
+            for(int i=1; i < POWERS_OF_TEN.length; ++i) {
+                POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+            }
+        }
+
+        private final int precision;
+        private final int scale;
+        private final HiveDecimalWritable scratch = new HiveDecimalWritable();
+
+        Decimal64ColumnConverter(TypeDescription schema) {
+            precision = schema.getPrecision();
+            scale = schema.getScale();
+        }
+
+        public void convert(Utf8JsonReader in, ColumnVector vect, int row) throws IOException {
+            if (!readNull(in, vect, row)) {
+                in.nextSlice();
+                Decimal64ColumnVector vector = (Decimal64ColumnVector) vect;
+                if (!parse(in.sliceBuf(), in.sliceStart(), in.sliceLength(), vector, row)) {
+                    // exponents, overlong input and anything else unusual
+                    scratch.setFromBytes(in.sliceBuf(), in.sliceStart(), in.sliceLength(), true);
+                    if (scratch.isSet() && scratch.mutateEnforcePrecisionScale(precision, scale)) {
+                        vector.vector[row] = scratch.serialize64(scale);
+                    } else {
+                        setNull(vect, row);
+                    }
+                }
+            }
+        }
+
+        // Plain [-+]digits[.digits], rounded half up to the column scale like HiveDecimal
+        private boolean parse(byte[] buf, int start, int length, Decimal64ColumnVector vector, int row) {
+            int i = start;
+            int end = start + length;
+            boolean negative = i < end && buf[i] == '-';
+            if (negative || i < end && buf[i] == '+') {
+                i++;
+            }
+            long value = 0;
+            int fractionDigits = -1;
+            boolean anyDigits = false;
+            boolean roundUp = false;
+            for (; i < end; ++i) {
+                int b = buf[i];
+                if (b == '.' && fractionDigits < 0) {
+                    fractionDigits = 0;
+                } else if (b >= '0' && b <= '9') {
+                    anyDigits = true;
+                    if (fractionDigits == scale) {
+                        roundUp = b >= '5';
+                        fractionDigits++;
+                    } else if (fractionDigits < scale) {
+                        value = value * 10 + (b - '0');
+                        if (value >= POWERS_OF_TEN[precision]) {
+                            return false;
+                        }
+                        if (fractionDigits >= 0) {
+                            fractionDigits++;
+                        }
+                    }
+                } else {
+                    return false;
+                }
+            }
+            if (!anyDigits) {
+                return false;
+            }
+            for(int f = Math.max(fractionDigits, 0); f < scale; ++f) {
+                if (value >= POWERS_OF_TEN[precision - 1]) {
+                    return false;
+                }
+                value *= 10;
+            }
+            if (roundUp) {
+                value++;
+            }
+            if (value >= POWERS_OF_TEN[precision]) {
+                return false;
+            }
+            vector.vector[row] = negative ? -value : value;
+            return true;
+        }
+    }
+
+    // Fields the plan has no record field for are never looked up and stay null
     class StructColumnConverter implements JsonConverter {
-        private JsonConverter[] childrenConverters;
-        private List<String> fieldNames;
+        private final JsonConverter[] childrenConverters;
+        // childrenConverters, or timing wrappers around them while ConverterMetrics samples a batch
+        private JsonConverter[] active;
+        private TimedConverter[] timed;
+        private final FieldTable fieldTable;
+        private final int[] columns;
+        private final boolean[] present;
 
-        public StructColumnConverter(TypeDescription schema) {
-            List<TypeDescription> kids = schema.getChildren();
-            childrenConverters = new JsonConverter[kids.size()];
-            for(int c=0; c < childrenConverters.length; ++c) {
-                childrenConverters[c] = createConverter(kids.get(c));
+        public StructColumnConverter(Plan plan) {
+            columns = plan.columns;
+            childrenConverters = new JsonConverter[columns.length];
+            for(int f=0; f < childrenConverters.length; ++f) {
+                childrenConverters[f] = createConverter(plan.children[columns[f]]);
             }
-            fieldNames = schema.getFieldNames();
+            active = childrenConverters;
+            fieldTable = plan.fieldTable;
+            present = new boolean[plan.children.length];
         }
 
-        public void convert(JsonElement value, ColumnVector vect, int row) {
-            if (value == null || value.isJsonNull()) {
-                vect.noNulls = false;
-                vect.isNull[row] = true;
-            } else {
-                StructColumnVector vector = (StructColumnVector) vect;
-                JsonObject obj = value.getAsJsonObject();
-                for(int c=0; c < childrenConverters.length; ++c) {
-                    JsonElement elem = obj.get(fieldNames.get(c));
-                    childrenConverters[c].convert(elem, vector.fields[c], row);
+        void timeFields(boolean on) {
+            if (on && timed == null) {
+                timed = new TimedConverter[childrenConverters.length];
+                for(int f=0; f < timed.length; ++f) {
+                    timed[f] = new TimedConverter(childrenConverters[f]);
                 }
             }
+            active = on ? timed : childrenConverters;
+        }
+
+        // per output field, spent while timed since the last call
+        long[] fieldNanos() {
+            long[] nanos = new long[present.length];
+            if (timed != null) {
+                for(int f=0; f < timed.length; ++f) {
+                    nanos[columns[f]] += timed[f].nanos;
+                    timed[f].nanos = 0;
+                }
+            }
+            return nanos;
+        }
+
+        public void convert(Utf8JsonReader in, ColumnVector vect, int row) throws IOException {
+            if (!readNull(in, vect, row)) {
+                convertFields(in, ((StructColumnVector) vect).fields, row);
+            }
+        }
+
+        void convertFields(Utf8JsonReader in, ColumnVector[] fields, int row) throws IOException {
+            Arrays.fill(present, false);
+            in.beginObject();
+            int expected = 0;
+            while (in.hasNext()) {
+                in.nextName();
+                int f = fieldTable.indexOf(in.sliceBuf(), in.sliceStart(), in.sliceLength(), expected);
+                if (f < 0) {
+                    in.skipValue();
+                } else {
+                    int c = columns[f];
+                    active[f].convert(in, fields[c], row);
+                    present[c] = true;
+                    expected = f + 1;
+                }
+            }
+            in.endObject();
+            for(int c=0; c < present.length; ++c) {
+                if (!present[c]) {
+                    setNull(fields[c], row);
+                }
+            }
+        }
+    }
+
+    static class TimedConverter implements JsonConverter {
+        private final JsonConverter converter;
+        private long nanos;
+
+        TimedConverter(JsonConverter converter) {
+            this.converter = converter;
+        }
+
+        public void convert(Utf8JsonReader in, ColumnVector vect, int row) throws IOException {
+            long start = System.nanoTime();
+            converter.convert(in, vect, row);
+            nanos += System.nanoTime() - start;
         }
     }
 
     class ListColumnConverter implements JsonConverter {
-        private JsonConverter childrenConverter;
+        private final JsonConverter childrenConverter;
 
-        public ListColumnConverter(TypeDescription schema) {
-            childrenConverter = createConverter(schema.getChildren().get(0));
+        public ListColumnConverter(Plan plan) {
+            childrenConverter = createConverter(plan.children[0]);
         }
 
-        public void convert(JsonElement value, ColumnVector vect, int row) {
-            if (value == null || value.isJsonNull()) {
-                vect.noNulls = false;
-                vect.isNull[row] = true;
-            } else {
+        public void convert(Utf8JsonReader in, ColumnVector vect, int row) throws IOException {
+            if (!readNull(in, vect, row)) {
                 ListColumnVector vector = (ListColumnVector) vect;
-                JsonArray obj = value.getAsJsonArray();
-                vector.lengths[row] = obj.size();
-                vector.offsets[row] = vector.childCount;
-                vector.childCount += vector.lengths[row];
-                vector.child.ensureSize(vector.childCount, true);
-                for(int c=0; c < obj.size(); ++c) {
-                    childrenConverter.convert(obj.get(c), vector.child,
-                            (int) vector.offsets[row] + c);
+                ColumnVector child = vector.child;
+                int start = vector.childCount;
+                int count = start;
+                in.beginArray();
+                while (in.hasNext()) {
+                    if (count == child.isNull.length) {
+                        ColumnVectors.growChild(child, count + 1);
+                    }
+                    childrenConverter.convert(in, child, count++);
                 }
+                in.endArray();
+                vector.offsets[row] = start;
+                vector.lengths[row] = count - start;
+                vector.childCount = count;
+                childElements += count - start;
             }
         }
     }
 
     class MapColumnConverter implements JsonConverter {
-        private JsonConverter keyConverter;
-        private JsonConverter valueConverter;
+        private final JsonConverter valueConverter;
 
-        public MapColumnConverter(TypeDescription schema) {
-            TypeDescription keyType = schema.getChildren().get(0);
+        public MapColumnConverter(Plan plan) {
+            TypeDescription keyType = plan.schema.getChildren().get(0);
             if (keyType.getCategory() != TypeDescription.Category.STRING)
-                throw new IllegalArgumentException("JSON can only support MAP key in STRING type: " + schema);
-            keyConverter = createConverter(keyType);
-            valueConverter = createConverter(schema.getChildren().get(1));
+                throw new IllegalArgumentException("JSON can only support MAP key in STRING type: " + plan.schema);
+            valueConverter = createConverter(plan.children[1]);
         }
 
-        public void convert(JsonElement value, ColumnVector vect, int row) {
-            if (value == null || value.isJsonNull()) {
-                vect.noNulls = false;
-                vect.isNull[row] = true;
-            } else {
+        public void convert(Utf8JsonReader in, ColumnVector vect, int row) throws IOException {
+            if (!readNull(in, vect, row)) {
                 MapColumnVector vector = (MapColumnVector) vect;
-                JsonObject obj = value.getAsJsonObject();
-                vector.lengths[row] = obj.entrySet().size();
                 vector.offsets[row] = vector.childCount;
-                vector.childCount += vector.lengths[row];
-                vector.keys.ensureSize(vector.childCount, true);
-                vector.values.ensureSize(vector.childCount, true);
-                int cnt = 0;
-                for (Map.Entry<String, JsonElement> entry : obj.entrySet()) {
-                    int offset = (int) vector.offsets[row] + cnt++;
-                    keyConverter.convert(new JsonPrimitive(entry.getKey()), vector.keys, offset);
-                    valueConverter.convert(entry.getValue(), vector.values, offset);
+                in.beginObject();
+                while (in.hasNext()) {
+                    int offset = vector.childCount++;
+                    if (offset == vector.keys.isNull.length) {
+                        ColumnVectors.growChild(vector.keys, vector.childCount);
+                    }
+                    if (offset == vector.values.isNull.length) {
+                        ColumnVectors.growChild(vector.values, vector.childCount);
+                    }
+                    in.nextName();
+                    StringColumnConverter.setSlice(in, (BytesColumnVector) vector.keys, offset);
+                    valueConverter.convert(in, vector.values, offset);
                 }
+                in.endObject();
+                vector.lengths[row] = vector.childCount - vector.offsets[row];
+                childElements += vector.lengths[row];
+            }
+        }
+    }
+
+    /*
+     * What a converter tree is built from: the output schema and, for each struct in it, the fields records
+     * carry, in the order they usually arrive. The record schema may leave out fields, which are then always
+     * null, order them differently and use narrower types (int for bigint, float for double and so on),
+     * since JSON values are parsed into the output type anyway. Anything else fails when compiling rather
+     * than on some row. Plans are immutable, so one can be shared by any number of converters.
+     */
+    static final class Plan {
+        final TypeDescription schema;
+        final Plan[] children;
+        // structs only: record field -> output field
+        final FieldTable fieldTable;
+        final int[] columns;
+
+        private Plan(TypeDescription schema, Plan[] children, FieldTable fieldTable, int[] columns) {
+            this.schema = schema;
+            this.children = children;
+            this.fieldTable = fieldTable;
+            this.columns = columns;
+        }
+
+        static Plan compile(TypeDescription schema) {
+            return compile(schema, schema);
+        }
+
+        static Plan compile(TypeDescription schema, TypeDescription record) {
+            // column ids are assigned lazily, which isn't safe once the schema is shared between threads
+            schema.getMaximumId();
+            return compile(schema, record, "");
+        }
+
+        private static Plan compile(TypeDescription schema, TypeDescription record, String path) {
+            if (!canWiden(record, schema)) {
+                throw new IllegalArgumentException("Can't write " + record + " as " + schema + (path.isEmpty() ? "" : " at " + path));
+            }
+            List<TypeDescription> kids = schema.getChildren();
+            if (schema.getCategory() == TypeDescription.Category.STRUCT) {
+                List<String> names = schema.getFieldNames();
+                List<String> recordNames = record.getFieldNames();
+                Plan[] children = new Plan[kids.size()];
+                int[] columns = new int[recordNames.size()];
+                for(int f=0; f < columns.length; ++f) {
+                    columns[f] = names.indexOf(recordNames.get(f));
+                    if (columns[f] < 0) {
+                        throw new IllegalArgumentException("No field " + recordNames.get(f) + " in " + schema + (path.isEmpty() ? "" : " at " + path));
+                    }
+                    children[columns[f]] = compile(kids.get(columns[f]), record.getChildren().get(f), path + "." + recordNames.get(f));
+                }
+                return new Plan(schema, children, new FieldTable(recordNames), columns);
+            } else if (kids != null) {
+                Plan[] children = new Plan[kids.size()];
+                for(int c=0; c < children.length; ++c) {
+                    children[c] = compile(kids.get(c), record.getChildren().get(c), path + "[" + c + "]");
+                }
+                return new Plan(schema, children, null, null);
+            }
+            return new Plan(schema, null, null, null);
+        }
+
+        private static boolean canWiden(TypeDescription from, TypeDescription to) {
+            TypeDescription.Category a = from.getCategory();
+            TypeDescription.Category b = to.getCategory();
+            switch (b) {
+                case SHORT:
+                case INT:
+                case LONG:
+                    return isInteger(a) && a.ordinal() <= b.ordinal();
+                case DOUBLE:
+                    return a == TypeDescription.Category.FLOAT || a == TypeDescription.Category.DOUBLE;
+                case STRING:
+                    return a == TypeDescription.Category.STRING || a == TypeDescription.Category.VARCHAR
+                            || a == TypeDescription.Category.CHAR;
+                case VARCHAR:
+                    return (a == TypeDescription.Category.VARCHAR || a == TypeDescription.Category.CHAR)
+                            && from.getMaxLength() <= to.getMaxLength();
+                case DECIMAL:
+                    return a == TypeDescription.Category.DECIMAL && from.getScale() <= to.getScale()
+                            && from.getPrecision() - from.getScale() <= to.getPrecision() - to.getScale();
+                case LIST:
+                case MAP:
+                    return a == b && from.getChildren().size() == to.getChildren().size();
+                default:
+                    return a == b && from.getMaxLength() == to.getMaxLength();
+            }
+        }
+
+        private static boolean isInteger(TypeDescription.Category category) {
+            return category == TypeDescription.Category.BYTE || category == TypeDescription.Category.SHORT
+                    || category == TypeDescription.Category.INT || category == TypeDescription.Category.LONG;
+        }
+    }
+
+    // Open-addressed name -> field index table over UTF-8 bytes. Fields usually arrive in schema order,
+    // so the slot after the previous match is checked before hashing.
+    static class FieldTable {
+        private final byte[][] names;
+        private final int[] slots;
+
+        FieldTable(List<String> fieldNames) {
+            names = new byte[fieldNames.size()][];
+            slots = new int[Integer.highestOneBit(Math.max(1, names.length) * 2) * 2];
+            Arrays.fill(slots, -1);
+            for(int c=0; c < names.length; ++c) {
+                names[c] = fieldNames.get(c).getBytes(StandardCharsets.UTF_8);
+                int slot = hash(names[c], 0, names[c].length) & (slots.length - 1);
+                while (slots[slot] >= 0) {
+                    slot = (slot + 1) & (slots.length - 1);
+                }
+                slots[slot] = c;
+            }
+        }
+
+        int indexOf(byte[] buf, int start, int length, int expected) {
+            if (expected < names.length && matches(expected, buf, start, length)) {
+                return expected;
+            }
+            int slot = hash(buf, start, length) & (slots.length - 1);
+            while (slots[slot] >= 0) {
+                if (matches(slots[slot], buf, start, length)) {
+                    return slots[slot];
+                }
+                slot = (slot + 1) & (slots.length - 1);
+            }
+            return -1;
+        }
+
+        private boolean matches(int c, byte[] buf, int start, int length) {
+            byte[] name = names[c];
+            if (name.length != length) {
+                return false;
+            }
+            for(int i=0; i < length; ++i) {
+                if (name[i] != buf[start + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static int hash(byte[] buf, int start, int length) {
+            int h = 0;
+            for(int i=0; i < length; ++i) {
+                h = 31 * h + buf[start + i];
             }
+            return h ^ (h >>> 16);
         }
     }
 }
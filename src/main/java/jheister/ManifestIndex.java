@@ -0,0 +1,156 @@
+package jheister;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocatedFileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
+import org.apache.hadoop.hive.ql.io.sarg.SearchArgument;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * The data files under a base path (local, file:// or s3a://) with the manifest entries of those that have
+ * one, from a single recursive listing and one read per manifest, usually one per partition. Planning a
+ * query against it rules out files and stripes by their statistics without reading any ORC footer.
+ *
+ * An entry is only used while its file is still listed with the length it was written with, so files
+ * rewritten, compacted or written without a manifest are simply planned as could-match-anything and have
+ * to be opened, as do all files of a manifest that can't be read.
+ */
+public class ManifestIndex {
+    private final List<LocatedFileStatus> files;
+    private final Map<Path, PartitionManifest.FileEntry> entries;
+
+    private ManifestIndex(List<LocatedFileStatus> files, Map<Path, PartitionManifest.FileEntry> entries) {
+        this.files = files;
+        this.entries = entries;
+    }
+
+    public static ManifestIndex load(String baseUri, Configuration conf) throws IOException {
+        Path base = OrcSliceReader.toPath(baseUri);
+        return load(base.getFileSystem(conf), base);
+    }
+
+    static ManifestIndex load(FileSystem fs, Path base) throws IOException {
+        List<LocatedFileStatus> files = new ArrayList<>();
+        List<Path> manifests = new ArrayList<>();
+        // one recursive listing is a flat paged LIST on S3 rather than one per directory
+        RemoteIterator<LocatedFileStatus> iterator = fs.listFiles(base, true);
+        while (iterator.hasNext()) {
+            LocatedFileStatus file = iterator.next();
+            Path path = file.getPath();
+            if (!isHidden(base, path)) {
+                if (file.getLen() > 0) {
+                    files.add(file);
+                }
+            } else if (path.getName().startsWith(PartitionManifest.PREFIX) && !isHidden(base, path.getParent())) {
+                manifests.add(path);
+            }
+        }
+
+        Map<Path, Long> lengths = new HashMap<>();
+        for (LocatedFileStatus file : files) {
+            lengths.put(file.getPath(), file.getLen());
+        }
+        Map<Path, PartitionManifest.FileEntry> entries = new HashMap<>();
+        for (Path manifest : manifests) {
+            PartitionManifest partition;
+            try {
+                partition = PartitionManifest.read(fs, manifest);
+            } catch (IOException e) {
+                // e.g. deleted since it was listed; its files are planned without it
+                continue;
+            }
+            for (PartitionManifest.FileEntry entry : partition.getFiles()) {
+                Path file = new Path(manifest.getParent(), entry.getName());
+                Long length = lengths.get(file);
+                if (length != null && length == entry.getLength()) {
+                    entries.put(file, entry);
+                }
+            }
+        }
+        return new ManifestIndex(files, entries);
+    }
+
+    // Hive ignores files and directories starting with _ or ., e.g. _SUCCESS markers and .crc files
+    private static boolean isHidden(Path base, Path path) {
+        for (Path p = path; p != null && !p.equals(base) && p.getParent() != null; p = p.getParent()) {
+            if (p.getName().startsWith("_") || p.getName().startsWith(".")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // every non-empty data file, in listing order
+    public List<LocatedFileStatus> getFiles() {
+        return files;
+    }
+
+    // null if the file has no usable manifest entry
+    public PartitionManifest.FileEntry getEntry(Path file) {
+        return entries.get(file);
+    }
+
+    public int getIndexedFiles() {
+        return entries.size();
+    }
+
+    public static class Plan {
+        private final LocatedFileStatus file;
+        private final List<PartitionManifest.StripeEntry> stripes;
+
+        Plan(LocatedFileStatus file, List<PartitionManifest.StripeEntry> stripes) {
+            this.file = file;
+            this.stripes = stripes;
+        }
+
+        public LocatedFileStatus getFile() {
+            return file;
+        }
+
+        // the stripes that can match in file order, or null if the file has no manifest entry and all can
+        public List<PartitionManifest.StripeEntry> getStripes() {
+            return stripes;
+        }
+    }
+
+    // The given files that can have rows all of the predicates hold for, null predicates holding for any row
+    public List<Plan> plan(List<LocatedFileStatus> files, SearchArgument... predicates) {
+        List<Plan> plans = new ArrayList<>();
+        for (LocatedFileStatus file : files) {
+            PartitionManifest.FileEntry entry = entries.get(file.getPath());
+            if (entry == null) {
+                plans.add(new Plan(file, null));
+                continue;
+            }
+            List<PartitionManifest.StripeEntry> stripes = entry.getStripes();
+            for (SearchArgument predicate : predicates) {
+                if (predicate != null) {
+                    List<PartitionManifest.StripeEntry> matching = entry.matchingStripes(predicate);
+                    stripes = stripes == entry.getStripes() ? matching : intersect(stripes, matching);
+                }
+            }
+            if (!stripes.isEmpty()) {
+                plans.add(new Plan(file, stripes));
+            }
+        }
+        return plans;
+    }
+
+    public List<Plan> plan(SearchArgument... predicates) {
+        return plan(files, predicates);
+    }
+
+    private static List<PartitionManifest.StripeEntry> intersect(List<PartitionManifest.StripeEntry> a,
+                                                                 List<PartitionManifest.StripeEntry> b) {
+        List<PartitionManifest.StripeEntry> both = new ArrayList<>(a);
+        both.retainAll(b);
+        return both;
+    }
+}
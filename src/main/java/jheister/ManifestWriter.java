@@ -0,0 +1,279 @@
+package jheister;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hive.ql.exec.vector.BytesColumnVector;
+import org.apache.hadoop.hive.ql.exec.vector.ColumnVector;
+import org.apache.hadoop.hive.ql.exec.vector.DoubleColumnVector;
+import org.apache.hadoop.hive.ql.exec.vector.LongColumnVector;
+import org.apache.hadoop.hive.ql.exec.vector.VectorizedRowBatch;
+import org.apache.orc.OrcFile;
+import org.apache.orc.OrcProto;
+import org.apache.orc.PhysicalWriter;
+import org.apache.orc.TypeDescription;
+import org.apache.orc.impl.PhysicalFsWriter;
+import org.apache.orc.impl.StreamName;
+import org.apache.orc.impl.writer.StreamOptions;
+import org.apache.orc.impl.writer.WriterEncryptionVariant;
+import org.apache.orc.util.BloomFilter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Keeps the manifests of the files one writer writes, one per directory named after the first file written
+ * there, and writes them once the writer is done. The statistics are the footer and stripe statistics ORC
+ * writes into each file's tail, kept on their way through to the file (see writeTo), so nothing is read
+ * back and an uploaded file isn't downloaded again. Bloom filters are built from the batches while
+ * they're written, as ORC keeps its own per row group.
+ *
+ * A bloom filter is sized for bloomEntries values up front, as the number of distinct values is only known
+ * at the end, but with a power of two bits. A value's bits then land on the same positions modulo any
+ * smaller power of two, so once the file is closed the filter is folded in half, OR-ing the halves, for as
+ * long as that keeps it within the false positive rate. A file with few distinct values gets a small filter.
+ */
+class ManifestWriter {
+    private final TypeDescription schema;
+    private final int[] bloomFields;
+    private final int bloomWords;
+    private final int bloomHashFunctions;
+    private final double bloomFpp;
+    private final Map<Path, List<PartitionManifest.FileEntry>> directories = new LinkedHashMap<>();
+    private final Map<Path, Path> manifests = new LinkedHashMap<>();
+    private BloomFilter[] blooms;
+    // of the file being written
+    private TailWriter tail;
+
+    private ManifestWriter(TypeDescription schema, OrcWriterSettings settings) {
+        if (schema.getCategory() != TypeDescription.Category.STRUCT) {
+            throw new IllegalArgumentException("Manifests need a struct schema but got " + schema);
+        }
+        this.schema = schema;
+        List<String> names = schema.getFieldNames();
+        String columns = settings.getManifestBloomColumns();
+        List<Integer> fields = new ArrayList<>();
+        if (columns != null && !columns.trim().isEmpty()) {
+            for (String column : columns.split(",")) {
+                int f = names.indexOf(column.trim());
+                if (f < 0) {
+                    throw new IllegalArgumentException("No column " + column + " in " + schema);
+                }
+                if (!canBloom(schema.getChildren().get(f))) {
+                    throw new IllegalArgumentException("Can't build a bloom filter for " + column + " of type " + schema.getChildren().get(f));
+                }
+                fields.add(f);
+            }
+        }
+        this.bloomFields = fields.stream().mapToInt(Integer::intValue).toArray();
+        this.bloomFpp = settings.getBloomFilterFpp() != null ? settings.getBloomFilterFpp() : BloomFilter.DEFAULT_FPP;
+        BloomFilter sized = new BloomFilter(settings.getManifestBloomEntries(), bloomFpp);
+        this.bloomWords = Integer.highestOneBit(sized.getBitSize() / 64 * 2 - 1);
+        this.bloomHashFunctions = sized.getNumHashFunctions();
+    }
+
+    // null unless the settings ask for manifests
+    static ManifestWriter of(OrcWriterSettings settings, TypeDescription schema) {
+        return settings.isManifest() ? new ManifestWriter(schema, settings) : null;
+    }
+
+    // the types whose values ORC tests against a bloom filter the way they're added here
+    private static boolean canBloom(TypeDescription type) {
+        switch (type.getCategory()) {
+            case BOOLEAN:
+            case BYTE:
+            case SHORT:
+            case INT:
+            case LONG:
+            case DATE:
+            case FLOAT:
+            case DOUBLE:
+            case STRING:
+            case VARCHAR:
+            case CHAR:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // the values of a batch about to be written to the current file
+    void add(VectorizedRowBatch batch) {
+        if (bloomFields.length == 0) {
+            return;
+        }
+        if (blooms == null) {
+            blooms = new BloomFilter[schema.getChildren().size()];
+            for (int f : bloomFields) {
+                blooms[f] = new BloomFilter(new long[bloomWords], bloomHashFunctions);
+            }
+        }
+        for (int f : bloomFields) {
+            add(blooms[f], batch.cols[f], batch.size);
+        }
+    }
+
+    private static void add(BloomFilter bloom, ColumnVector vector, int size) {
+        int rows = vector.isRepeating ? Math.min(size, 1) : size;
+        for (int r = 0; r < rows; r++) {
+            if (!vector.noNulls && vector.isNull[r]) {
+                continue;
+            }
+            if (vector instanceof BytesColumnVector) {
+                BytesColumnVector bytes = (BytesColumnVector) vector;
+                bloom.addBytes(bytes.vector[r], bytes.start[r], bytes.length[r]);
+            } else if (vector instanceof LongColumnVector) {
+                bloom.addLong(((LongColumnVector) vector).vector[r]);
+            } else {
+                bloom.addDouble(((DoubleColumnVector) vector).vector[r]);
+            }
+        }
+    }
+
+    // the smallest half, quarter etc. of the filter whose share of bits set keeps it within the false positive rate
+    static BloomFilter fold(BloomFilter bloom, double fpp) {
+        long[] bits = bloom.getBitSet();
+        while (bits.length > 1) {
+            long[] half = Arrays.copyOf(bits, bits.length / 2);
+            long set = 0;
+            for (int w = 0; w < half.length; w++) {
+                half[w] |= bits[half.length + w];
+                set += Long.bitCount(half[w]);
+            }
+            if (Math.pow((double) set / (half.length * 64L), bloom.getNumHashFunctions()) > fpp) {
+                break;
+            }
+            bits = half;
+        }
+        return new BloomFilter(bits, bloom.getNumHashFunctions());
+    }
+
+    // Has the writer created with these options keep its file's tail for fileClosed; set the file system etc. first
+    OrcFile.WriterOptions writeTo(Path file, OrcFile.WriterOptions options) throws IOException {
+        FileSystem fs = options.getFileSystem() != null
+                ? options.getFileSystem()
+                : file.getFileSystem(options.getConfiguration());
+        tail = new TailWriter(new PhysicalFsWriter(fs, file, options));
+        return options.physicalWriter(tail);
+    }
+
+    // Records the file whose writer has just been closed
+    void fileClosed(Path file) {
+        if (tail == null || tail.footer == null) {
+            throw new IllegalStateException("No tail was written for " + file);
+        }
+        BloomFilter[] fileBlooms = new BloomFilter[schema.getChildren().size()];
+        if (blooms != null) {
+            for (int f : bloomFields) {
+                fileBlooms[f] = fold(blooms[f], bloomFpp);
+            }
+            blooms = null;
+        }
+        PartitionManifest.FileEntry entry = PartitionManifest.FileEntry.of(file.getName(), tail.length, schema,
+                tail.footer, tail.metadata.getStripeStatsList(), fileBlooms);
+        tail = null;
+        Path directory = file.getParent();
+        List<PartitionManifest.FileEntry> entries = directories.computeIfAbsent(directory, d -> new ArrayList<>());
+        entries.removeIf(e -> e.getName().equals(entry.getName()));
+        entries.add(entry);
+        manifests.computeIfAbsent(directory, d -> new Path(d, PartitionManifest.PREFIX + file.getName()));
+    }
+
+    // writes the manifest of every directory written to through fs, once all the files are closed
+    void close(FileSystem fs) throws IOException {
+        for (Map.Entry<Path, List<PartitionManifest.FileEntry>> directory : directories.entrySet()) {
+            new PartitionManifest(directory.getValue()).write(fs, manifests.get(directory.getKey()));
+        }
+    }
+
+    // Passes everything through to the file, keeping the footer and stripe statistics of its tail
+    private static class TailWriter implements PhysicalWriter {
+        private final PhysicalWriter file;
+        private OrcProto.Metadata metadata;
+        private OrcProto.Footer footer;
+        private long length;
+
+        TailWriter(PhysicalWriter file) {
+            this.file = file;
+        }
+
+        @Override
+        public void writeHeader() throws IOException {
+            file.writeHeader();
+        }
+
+        @Override
+        public OutputReceiver createDataStream(StreamName name) throws IOException {
+            return file.createDataStream(name);
+        }
+
+        @Override
+        public void writeIndex(StreamName name, OrcProto.RowIndex.Builder index) throws IOException {
+            file.writeIndex(name, index);
+        }
+
+        @Override
+        public void writeBloomFilter(StreamName name, OrcProto.BloomFilterIndex.Builder bloom) throws IOException {
+            file.writeBloomFilter(name, bloom);
+        }
+
+        @Override
+        public void finalizeStripe(OrcProto.StripeFooter.Builder footer,
+                                   OrcProto.StripeInformation.Builder dirEntry) throws IOException {
+            file.finalizeStripe(footer, dirEntry);
+        }
+
+        @Override
+        public void writeStatistics(StreamName name, OrcProto.ColumnStatistics.Builder statistics) throws IOException {
+            file.writeStatistics(name, statistics);
+        }
+
+        @Override
+        public void writeFileMetadata(OrcProto.Metadata.Builder builder) throws IOException {
+            file.writeFileMetadata(builder);
+            metadata = builder.build();
+        }
+
+        @Override
+        public void writeFileFooter(OrcProto.Footer.Builder builder) throws IOException {
+            file.writeFileFooter(builder);
+            footer = builder.build();
+        }
+
+        // returns the length of the file
+        @Override
+        public long writePostScript(OrcProto.PostScript.Builder builder) throws IOException {
+            length = file.writePostScript(builder);
+            return length;
+        }
+
+        @Override
+        public void close() throws IOException {
+            file.close();
+        }
+
+        @Override
+        public void flush() throws IOException {
+            file.flush();
+        }
+
+        @Override
+        public void appendRawStripe(ByteBuffer stripe, OrcProto.StripeInformation.Builder dirEntry) throws IOException {
+            file.appendRawStripe(stripe, dirEntry);
+        }
+
+        @Override
+        public long getFileBytes(int column, WriterEncryptionVariant variant) {
+            return file.getFileBytes(column, variant);
+        }
+
+        @Override
+        public StreamOptions getStreamOptions() {
+            return file.getStreamOptions();
+        }
+    }
+}
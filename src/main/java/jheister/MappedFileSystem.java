@@ -0,0 +1,191 @@
+package jheister;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.ByteBufferReadable;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.HasEnhancedByteBufferAccess;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RawLocalFileSystem;
+import org.apache.hadoop.fs.ReadOption;
+import org.apache.hadoop.io.ByteBufferPool;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.EnumSet;
+
+/*
+ * Local file system that reads files through a memory mapping instead of read() calls into heap buffers.
+ * Streams implement the enhanced byte buffer access ORC uses for zero-copy reads, handing out slices of the
+ * mapping itself, so with orc.use.zerocopy set an uncompressed file is decoded straight from the page cache.
+ * Compressed files still skip the read syscalls, but ORC only reads them zero-copy when its codec has a
+ * native direct decompressor; otherwise the compressed bytes are copied out of the mapping once.
+ *
+ * Writes behave like RawLocalFileSystem. Mappings are released when they are garbage collected, not on close.
+ */
+public class MappedFileSystem extends RawLocalFileSystem {
+    // a single MappedByteBuffer can't be larger than this, so big files are mapped in chunks
+    private static final long CHUNK_SIZE = 1L << 30;
+
+    // a configuration that reads file:// paths and plain local paths through this file system, zero-copy
+    public static Configuration configuration(Configuration conf) {
+        conf = new Configuration(conf);
+        conf.setClass("fs.file.impl", MappedFileSystem.class, FileSystem.class);
+        // the FileSystem cache is keyed by scheme, so without this other configurations would get this one too
+        conf.setBoolean("fs.file.impl.disable.cache", true);
+        conf.setBoolean("orc.use.zerocopy", true);
+        return conf;
+    }
+
+    @Override
+    public FSDataInputStream open(Path path, int bufferSize) throws IOException {
+        return new FSDataInputStream(new MappedInputStream(pathToFile(path)));
+    }
+
+    static class MappedInputStream extends FSInputStream implements HasEnhancedByteBufferAccess, ByteBufferReadable {
+        private final long length;
+        private MappedByteBuffer[] chunks;
+        private long pos;
+
+        MappedInputStream(File file) throws IOException {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                length = channel.size();
+                chunks = new MappedByteBuffer[(int) ((length + CHUNK_SIZE - 1) / CHUNK_SIZE)];
+                for (int c = 0; c < chunks.length; c++) {
+                    long offset = c * CHUNK_SIZE;
+                    chunks[c] = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(CHUNK_SIZE, length - offset));
+                }
+            }
+        }
+
+        // a slice of the mapping from the current position, ending at maxLength or the end of its chunk
+        @Override
+        public synchronized ByteBuffer read(ByteBufferPool pool, int maxLength, EnumSet<ReadOption> options) throws IOException {
+            checkOpen();
+            if (pos >= length) {
+                return null;
+            }
+            ByteBuffer slice = slice(pos, (int) Math.min(maxLength, CHUNK_SIZE - pos % CHUNK_SIZE));
+            pos += slice.remaining();
+            return slice;
+        }
+
+        // slices are views of the mapping, there is nothing to give back
+        @Override
+        public void releaseBuffer(ByteBuffer buffer) {
+        }
+
+        @Override
+        public synchronized int read(ByteBuffer buf) throws IOException {
+            int read = read(pos, buf);
+            if (read > 0) {
+                pos += read;
+            }
+            return read;
+        }
+
+        @Override
+        public synchronized int read() throws IOException {
+            checkOpen();
+            if (pos >= length) {
+                return -1;
+            }
+            int b = chunks[(int) (pos / CHUNK_SIZE)].get((int) (pos % CHUNK_SIZE)) & 0xff;
+            pos++;
+            return b;
+        }
+
+        @Override
+        public synchronized int read(byte[] buffer, int offset, int len) throws IOException {
+            int read = read(pos, buffer, offset, len);
+            if (read > 0) {
+                pos += read;
+            }
+            return read;
+        }
+
+        // positioned reads copy straight from the mapping and leave the stream position alone
+        @Override
+        public int read(long position, byte[] buffer, int offset, int len) throws IOException {
+            validatePositionedReadArgs(position, buffer, offset, len);
+            return read(position, ByteBuffer.wrap(buffer, offset, len));
+        }
+
+        @Override
+        public void readFully(long position, byte[] buffer, int offset, int len) throws IOException {
+            validatePositionedReadArgs(position, buffer, offset, len);
+            ByteBuffer target = ByteBuffer.wrap(buffer, offset, len);
+            while (target.hasRemaining()) {
+                int read = read(position, target);
+                if (read < 0) {
+                    throw new EOFException("Reading " + len + " bytes at " + position + " past the end of a " + length + " byte file");
+                }
+                position += read;
+            }
+        }
+
+        private int read(long position, ByteBuffer target) throws IOException {
+            checkOpen();
+            if (!target.hasRemaining()) {
+                return 0;
+            }
+            if (position >= length) {
+                return -1;
+            }
+            ByteBuffer slice = slice(position, (int) Math.min(target.remaining(), CHUNK_SIZE - position % CHUNK_SIZE));
+            int read = slice.remaining();
+            target.put(slice);
+            return read;
+        }
+
+        private ByteBuffer slice(long position, int maxLength) {
+            ByteBuffer slice = chunks[(int) (position / CHUNK_SIZE)].duplicate();
+            int start = (int) (position % CHUNK_SIZE);
+            slice.position(start);
+            slice.limit((int) Math.min(slice.capacity(), start + (long) maxLength));
+            return slice.slice();
+        }
+
+        @Override
+        public synchronized void seek(long position) throws IOException {
+            checkOpen();
+            if (position < 0 || position > length) {
+                throw new EOFException("Can't seek to " + position + " in a " + length + " byte file");
+            }
+            this.pos = position;
+        }
+
+        @Override
+        public synchronized long getPos() {
+            return pos;
+        }
+
+        @Override
+        public boolean seekToNewSource(long targetPos) {
+            return false;
+        }
+
+        @Override
+        public synchronized int available() throws IOException {
+            checkOpen();
+            return (int) Math.min(Integer.MAX_VALUE, length - pos);
+        }
+
+        @Override
+        public synchronized void close() {
+            chunks = null;
+        }
+
+        private void checkOpen() throws IOException {
+            if (chunks == null) {
+                throw new IOException("Stream is closed");
+            }
+        }
+    }
+}
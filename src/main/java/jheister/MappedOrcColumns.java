@@ -0,0 +1,162 @@
+package jheister;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hive.ql.exec.vector.ColumnVector;
+import org.apache.hadoop.hive.ql.exec.vector.DoubleColumnVector;
+import org.apache.hadoop.hive.ql.exec.vector.LongColumnVector;
+import org.apache.hadoop.hive.ql.exec.vector.VectorizedRowBatch;
+import org.apache.orc.CompressionKind;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * Columnar scan over a local ORC file read through MappedFileSystem. Only the selected columns are decoded,
+ * and each batch is exposed as the primitive arrays ORC decoded into: longs for integer, date (epoch day)
+ * and boolean columns, doubles for float and double columns. Repeated values are expanded, so the first
+ * size() entries of an array are always the batch's values. The arrays belong to the batch and are
+ * overwritten by the next call to next().
+ *
+ * Files written with CompressionKind.NONE are decoded straight from the mapping.
+ */
+public class MappedOrcColumns implements Closeable {
+    public static final int DEFAULT_BATCH_SIZE = 8192;
+
+    private final OrcSliceReader reader;
+    private final List<String> names;
+    private final VectorizedRowBatch batch;
+    private long rowNumber;
+
+    public MappedOrcColumns(File file, String... columns) throws IOException {
+        this(file, new OrcSliceReader.Options().select(columns).batchSize(DEFAULT_BATCH_SIZE));
+    }
+
+    public MappedOrcColumns(File file, OrcSliceReader.Options options) throws IOException {
+        Configuration conf = options.getConfiguration() != null ? options.getConfiguration() : new Configuration();
+        // on a copy, so the caller's options can still be used for files that aren't mapped
+        this.reader = new OrcSliceReader(file.getAbsolutePath(), options.copy().configuration(MappedFileSystem.configuration(conf)));
+        this.names = reader.getSchema().getFieldNames();
+        this.batch = reader.createBatch();
+    }
+
+    public boolean next() throws IOException {
+        if (!reader.nextBatch(batch)) {
+            return false;
+        }
+        rowNumber = reader.getRowNumber() - batch.size;
+        for (ColumnVector col : batch.cols) {
+            expandRepeating(col, batch.size);
+        }
+        return true;
+    }
+
+    // rows in the current batch
+    public int size() {
+        return batch.size;
+    }
+
+    // row number within the file of the first row in the current batch
+    public long getRowNumber() {
+        return rowNumber;
+    }
+
+    public long[] longs(String column) {
+        ColumnVector col = batch.cols[column(column)];
+        if (!(col instanceof LongColumnVector)) {
+            throw new IllegalArgumentException(column + " is " + reader.getSchema().findSubtype(column) + ", not a long column");
+        }
+        return ((LongColumnVector) col).vector;
+    }
+
+    public double[] doubles(String column) {
+        ColumnVector col = batch.cols[column(column)];
+        if (!(col instanceof DoubleColumnVector)) {
+            throw new IllegalArgumentException(column + " is " + reader.getSchema().findSubtype(column) + ", not a double column");
+        }
+        return ((DoubleColumnVector) col).vector;
+    }
+
+    // which rows of the current batch are null in the column, or null if none of them are
+    public boolean[] nulls(String column) {
+        ColumnVector col = batch.cols[column(column)];
+        return col.noNulls ? null : col.isNull;
+    }
+
+    public OrcSliceReader getReader() {
+        return reader;
+    }
+
+    private int column(String name) {
+        int column = names.indexOf(name);
+        if (column < 0) {
+            throw new IllegalArgumentException("Column " + name + " wasn't selected, have " + names);
+        }
+        return column;
+    }
+
+    private static void expandRepeating(ColumnVector col, int size) {
+        if (!col.isRepeating) {
+            return;
+        }
+        if (col instanceof LongColumnVector) {
+            long[] vector = ((LongColumnVector) col).vector;
+            Arrays.fill(vector, 1, size, vector[0]);
+        } else if (col instanceof DoubleColumnVector) {
+            double[] vector = ((DoubleColumnVector) col).vector;
+            Arrays.fill(vector, 1, size, vector[0]);
+        } else {
+            return;
+        }
+        if (!col.noNulls) {
+            Arrays.fill(col.isNull, 1, size, col.isNull[0]);
+        }
+        col.isRepeating = false;
+    }
+
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    // average close price per day of a price file, e.g. the data.orc written by CreatePriceFeedInAthena
+    public static void main(String[] args) throws IOException {
+        File file = new File(args.length > 0 ? args[0] : "data.orc");
+        long started = System.nanoTime();
+        long rows = 0;
+        long firstDay = Long.MAX_VALUE;
+        double[] sums = new double[366];
+        long[] counts = new long[366];
+        try (MappedOrcColumns columns = new MappedOrcColumns(file, "price_date", "close_price")) {
+            CompressionKind compression = columns.getReader().getReader().getCompressionKind();
+            if (compression != CompressionKind.NONE) {
+                System.out.println(file + " is " + compression + " compressed, so it is decompressed out of the mapping");
+            }
+            while (columns.next()) {
+                long[] dates = columns.longs("price_date");
+                double[] prices = columns.doubles("close_price");
+                boolean[] nulls = columns.nulls("close_price");
+                if (firstDay == Long.MAX_VALUE) {
+                    firstDay = dates[0];
+                }
+                for (int r = 0; r < columns.size(); r++) {
+                    int day = (int) (dates[r] - firstDay);
+                    if ((nulls == null || !nulls[r]) && day >= 0 && day < sums.length) {
+                        sums[day] += prices[r];
+                        counts[day]++;
+                    }
+                }
+                rows += columns.size();
+            }
+        }
+        long millis = (System.nanoTime() - started) / 1_000_000;
+        for (int day = 0; day < sums.length; day++) {
+            if (counts[day] > 0) {
+                System.out.printf("%s %10d %.6f%n", LocalDate.ofEpochDay(firstDay + day), counts[day], sums[day] / counts[day]);
+            }
+        }
+        System.out.printf("%d rows in %d ms, %.1f MB/s of file%n", rows, millis, file.length() / 1e3 / Math.max(1, millis));
+    }
+}
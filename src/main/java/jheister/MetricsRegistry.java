@@ -0,0 +1,33 @@
+package jheister;
+
+/*
+ * Where the converters publish their metrics. Implementations map the names onto whatever the service
+ * already reports through, e.g. JmxMetricsRegistry or a few lines adapting a Micrometer MeterRegistry.
+ * Asking for the same name twice should return the same metric, so converters of one feed add up.
+ * Metrics are updated from the converting thread and from background writer threads.
+ */
+public interface MetricsRegistry {
+    MetricsRegistry NONE = new MetricsRegistry() {
+        public Counter counter(String name) {
+            return amount -> {
+            };
+        }
+
+        public Histogram histogram(String name) {
+            return value -> {
+            };
+        }
+    };
+
+    Counter counter(String name);
+
+    Histogram histogram(String name);
+
+    interface Counter {
+        void increment(long amount);
+    }
+
+    interface Histogram {
+        void record(long value);
+    }
+}
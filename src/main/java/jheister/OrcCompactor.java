@@ -0,0 +1,458 @@
+package jheister;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocatedFileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
+import org.apache.hadoop.hive.ql.exec.vector.VectorizedRowBatch;
+import org.apache.orc.CompressionKind;
+import org.apache.orc.FileFormatException;
+import org.apache.orc.OrcFile;
+import org.apache.orc.Reader;
+import org.apache.orc.RecordReader;
+import org.apache.orc.StripeInformation;
+import org.apache.orc.StripeStatistics;
+import org.apache.orc.TypeDescription;
+import org.apache.orc.Writer;
+import org.apache.orc.impl.SchemaEvolution;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import static java.util.stream.Collectors.toList;
+
+/*
+ * Merges the small ORC files of each partition directory under a base path (local, file:// or s3a://) into
+ * files of about the target size. Stripes are copied as they are, still compressed, from every file whose
+ * schema, compression, row index stride and format version match the layout most of the partition's bytes
+ * are in; only the other files are decoded and written again as rows, converted to that schema the way ORC
+ * evolves schemas on read. Files that can't be converted, or aren't ORC, are left where they are.
+ *
+ * Copied stripes keep their row indexes, bloom filters and statistics, so only the file tails change.
+ * Merged files are named compacted-<run>-nnnnn.orc and the inputs are deleted once all of a partition's
+ * merged files are complete. On S3 a file only appears once its upload completes; elsewhere it is written
+ * under a hidden name and renamed. Queries running during a compaction can see rows twice, between the
+ * merged files appearing and the inputs being deleted, but never miss any.
+ *
+ * Partitions are compacted in parallel. Files added to a partition while it is being compacted are left
+ * for the next run.
+ */
+public class OrcCompactor implements Closeable {
+    private final Path base;
+    private final Configuration conf;
+    private final long smallFileSize;
+    private final long targetFileSize;
+    private final OrcWriterSettings writerSettings;
+    private final ForkJoinPool pool;
+    private final String run = UUID.randomUUID().toString().substring(0, 8);
+
+    public OrcCompactor(String baseUri) {
+        this(baseUri, new Options());
+    }
+
+    public OrcCompactor(String baseUri, Options options) {
+        this.base = OrcSliceReader.toPath(baseUri);
+        this.conf = options.conf != null ? options.conf : OrcSliceReader.defaultConfiguration();
+        this.smallFileSize = options.smallFileSize;
+        this.targetFileSize = options.targetFileSize;
+        this.writerSettings = options.writerSettings;
+        this.pool = new ForkJoinPool(options.parallelism);
+    }
+
+    public static class Options {
+        private int parallelism = 8;
+        private Configuration conf;
+        private long smallFileSize = 64L << 20;
+        private long targetFileSize = 256L << 20;
+        private OrcWriterSettings writerSettings = new OrcWriterSettings();
+
+        // partitions compacted at once
+        public Options parallelism(int partitions) {
+            this.parallelism = partitions;
+            return this;
+        }
+
+        public Options configuration(Configuration conf) {
+            this.conf = conf;
+            return this;
+        }
+
+        // files from this size up are left alone
+        public Options smallFileSize(long bytes) {
+            this.smallFileSize = bytes;
+            return this;
+        }
+
+        // a merged file is finished once the files merged into it add up to this
+        public Options targetFileSize(long bytes) {
+            this.targetFileSize = bytes;
+            return this;
+        }
+
+        // Stripe size, bloom filters etc. for rows that are written again; compression, buffer size, row
+        // index stride and format version always follow the copied files
+        public Options writerSettings(OrcWriterSettings settings) {
+            this.writerSettings = settings;
+            return this;
+        }
+    }
+
+    public static class Compaction {
+        private final Path partition;
+        private final int filesMerged;
+        private final int filesRewritten;
+        private final int filesLeft;
+        private final int stripesCopied;
+        private final List<Path> outputs;
+
+        Compaction(Path partition, int filesMerged, int filesRewritten, int filesLeft, int stripesCopied, List<Path> outputs) {
+            this.partition = partition;
+            this.filesMerged = filesMerged;
+            this.filesRewritten = filesRewritten;
+            this.filesLeft = filesLeft;
+            this.stripesCopied = stripesCopied;
+            this.outputs = outputs;
+        }
+
+        public Path getPartition() {
+            return partition;
+        }
+
+        // small files merged into the outputs and deleted, including the rewritten ones
+        public int getFilesMerged() {
+            return filesMerged;
+        }
+
+        // those that had to be decoded and written as rows
+        public int getFilesRewritten() {
+            return filesRewritten;
+        }
+
+        // small files that couldn't be merged
+        public int getFilesLeft() {
+            return filesLeft;
+        }
+
+        public int getStripesCopied() {
+            return stripesCopied;
+        }
+
+        public List<Path> getOutputs() {
+            return outputs;
+        }
+
+        @Override
+        public String toString() {
+            return partition + ": " + filesMerged + " files into " + outputs.size() + ", " + stripesCopied
+                    + " stripes copied, " + filesRewritten + " files rewritten, " + filesLeft + " left";
+        }
+    }
+
+    // Compacts every partition with at least two small files, returning what was done to each of them
+    public List<Compaction> compact() throws IOException {
+        FileSystem fs = base.getFileSystem(conf);
+        List<ForkJoinTask<Compaction>> tasks = smallFiles(fs).entrySet().stream()
+                .filter(partition -> partition.getValue().size() > 1)
+                .map(partition -> ForkJoinTask.adapt(() -> compact(fs, partition.getKey(), partition.getValue())))
+                .collect(toList());
+        List<Compaction> compactions = new ArrayList<>();
+        try {
+            pool.submit(() -> ForkJoinTask.invokeAll(tasks)).join();
+            for (ForkJoinTask<Compaction> task : tasks) {
+                compactions.add(task.join());
+            }
+        } catch (RuntimeException e) {
+            for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+                if (cause instanceof IOException) {
+                    throw new IOException("Compaction of " + base + " failed", cause);
+                }
+            }
+            throw e;
+        }
+        return compactions;
+    }
+
+    // small files by the directory they're in, in path order
+    private Map<Path, List<LocatedFileStatus>> smallFiles(FileSystem fs) throws IOException {
+        Map<Path, List<LocatedFileStatus>> partitions = new TreeMap<>();
+        // one recursive listing is a flat paged LIST on S3 rather than one per directory
+        RemoteIterator<LocatedFileStatus> iterator = fs.listFiles(base, true);
+        while (iterator.hasNext()) {
+            LocatedFileStatus file = iterator.next();
+            if (file.getLen() > 0 && file.getLen() < smallFileSize && !isHidden(file.getPath())) {
+                partitions.computeIfAbsent(file.getPath().getParent(), p -> new ArrayList<>()).add(file);
+            }
+        }
+        for (List<LocatedFileStatus> files : partitions.values()) {
+            files.sort((a, b) -> a.getPath().compareTo(b.getPath()));
+        }
+        return partitions;
+    }
+
+    // Hive ignores files and directories starting with _ or ., e.g. _SUCCESS markers and .crc files
+    private boolean isHidden(Path path) {
+        for (Path p = path; p != null && !p.equals(base) && p.getParent() != null; p = p.getParent()) {
+            if (p.getName().startsWith("_") || p.getName().startsWith(".")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Compaction compact(FileSystem fs, Path partition, List<LocatedFileStatus> files) throws IOException {
+        List<Input> inputs = new ArrayList<>();
+        try {
+            int notOrc = 0;
+            for (LocatedFileStatus file : files) {
+                try {
+                    inputs.add(new Input(file, OrcFile.createReader(file.getPath(), OrcFile.readerOptions(conf)
+                            .filesystem(fs).maxLength(file.getLen()))));
+                } catch (FileFormatException e) {
+                    notOrc++;
+                }
+            }
+            Layout target = dominantLayout(inputs);
+            List<Input> merged = new ArrayList<>();
+            for (Input input : inputs) {
+                if (input.layout.equals(target) && target.canCopy()) {
+                    input.copy = true;
+                    merged.add(input);
+                } else if (input.layout.canRewriteAs(target)) {
+                    merged.add(input);
+                }
+            }
+            merged.sort(Comparator.comparing(input -> !input.copy));
+            int left = notOrc + inputs.size() - merged.size();
+            if (merged.size() < 2) {
+                return new Compaction(partition, 0, 0, left + merged.size(), 0, new ArrayList<>());
+            }
+
+            List<Path> outputs = new ArrayList<>();
+            int stripesCopied = 0;
+            try {
+                for (List<Input> bin : bins(merged)) {
+                    Path output = new Path(partition, String.format("compacted-%s-%05d.orc", run, outputs.size()));
+                    Path writing = visibleWhileWriting(fs) ? new Path(partition, "_" + output.getName()) : output;
+                    outputs.add(writing);
+                    Writer writer = OrcFile.createWriter(writing, writerOptions(fs, target, bin));
+                    try {
+                        for (Input input : bin) {
+                            stripesCopied += input.copy ? copyStripes(fs, input, writer) : rewrite(input, target, writer);
+                            for (String key : input.reader.getMetadataKeys()) {
+                                writer.addUserMetadata(key, input.reader.getMetadataValue(key));
+                            }
+                        }
+                    } finally {
+                        writer.close();
+                    }
+                    if (!writing.equals(output)) {
+                        if (!fs.rename(writing, output)) {
+                            throw new IOException("Couldn't rename " + writing + " to " + output);
+                        }
+                        outputs.set(outputs.size() - 1, output);
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                for (Path output : outputs) {
+                    fs.delete(output, false);
+                }
+                throw e;
+            }
+            for (Input input : merged) {
+                fs.delete(input.file.getPath(), false);
+            }
+            int rewritten = (int) merged.stream().filter(input -> !input.copy).count();
+            return new Compaction(partition, merged.size(), rewritten, left, stripesCopied, outputs);
+        } finally {
+            for (Input input : inputs) {
+                input.reader.close();
+            }
+        }
+    }
+
+    /*
+     * Files for each output, up to the target size. Copied and rewritten files go to different outputs: ORC
+     * assumes all stripes of a file have the same kind of indexes, and rewritten stripes only get the bloom
+     * filters of the writer settings rather than those of the copied files.
+     */
+    private List<List<Input>> bins(List<Input> merged) {
+        List<List<Input>> bins = new ArrayList<>();
+        List<Input> bin = null;
+        long bytes = 0;
+        for (Input input : merged) {
+            if (bin == null || bytes >= targetFileSize || bin.get(0).copy != input.copy) {
+                bin = new ArrayList<>();
+                bins.add(bin);
+                bytes = 0;
+            }
+            bin.add(input);
+            bytes += input.file.getLen();
+        }
+        return bins;
+    }
+
+    // object stores only show a file once it has been completely written, and renaming there is a copy
+    static boolean visibleWhileWriting(FileSystem fs) {
+        String scheme = fs.getUri().getScheme();
+        return scheme == null || !scheme.startsWith("s3");
+    }
+
+    private OrcFile.WriterOptions writerOptions(FileSystem fs, Layout target, List<Input> bin) {
+        OrcFile.WriterOptions options = writerSettings.toWriterOptions(conf, target.schema)
+                .fileSystem(fs)
+                .compress(target.compression)
+                .rowIndexStride(target.rowIndexStride)
+                .version(target.version);
+        if (target.compression != CompressionKind.NONE) {
+            // copied stripes were compressed in blocks of up to their file's buffer size, which readers
+            // take from the footer, so it has to be at least the largest of them
+            int bufferSize = bin.stream().filter(input -> input.copy)
+                    .mapToInt(input -> input.reader.getCompressionSize()).max().orElse(target.compressionSize);
+            options.bufferSize(bufferSize).enforceBufferSize();
+        }
+        return options;
+    }
+
+    private static int copyStripes(FileSystem fs, Input input, Writer writer) throws IOException {
+        List<StripeInformation> stripes = input.reader.getStripes();
+        List<StripeStatistics> statistics = input.reader.getVariantStripeStatistics(null);
+        byte[] buffer = new byte[0];
+        try (FSDataInputStream in = fs.open(input.file.getPath())) {
+            for (int s = 0; s < stripes.size(); s++) {
+                StripeInformation stripe = stripes.get(s);
+                int length = (int) stripe.getLength();
+                if (buffer.length < length) {
+                    buffer = new byte[length];
+                }
+                in.readFully(stripe.getOffset(), buffer, 0, length);
+                writer.appendStripe(buffer, 0, length, stripe, new StripeStatistics[]{statistics.get(s)});
+            }
+        }
+        return stripes.size();
+    }
+
+    private static int rewrite(Input input, Layout target, Writer writer) throws IOException {
+        VectorizedRowBatch batch = target.schema.createRowBatch();
+        try (RecordReader rows = input.reader.rows(input.reader.options().schema(target.schema))) {
+            while (rows.nextBatch(batch)) {
+                writer.addRowBatch(batch);
+            }
+        }
+        return 0;
+    }
+
+    // the layout of the most bytes, so as few of them as possible are rewritten
+    private static Layout dominantLayout(List<Input> inputs) {
+        Map<Layout, Long> bytes = new HashMap<>();
+        for (Input input : inputs) {
+            bytes.merge(input.layout, input.file.getLen(), Long::sum);
+        }
+        Layout dominant = null;
+        for (Input input : inputs) {
+            if (dominant == null || bytes.get(input.layout) > bytes.get(dominant)) {
+                dominant = input.layout;
+            }
+        }
+        return dominant;
+    }
+
+    private static class Input {
+        final LocatedFileStatus file;
+        final Reader reader;
+        final Layout layout;
+        boolean copy;
+
+        Input(LocatedFileStatus file, Reader reader) {
+            this.file = file;
+            this.reader = reader;
+            this.layout = new Layout(reader);
+        }
+    }
+
+    // What has to match for stripes to be copied into the same file. The compression buffer size doesn't,
+    // the merged file just takes the largest.
+    private static class Layout {
+        final TypeDescription schema;
+        final CompressionKind compression;
+        final int compressionSize;
+        final int rowIndexStride;
+        final OrcFile.Version version;
+        final OrcFile.WriterVersion writerVersion;
+        final boolean encrypted;
+
+        Layout(Reader reader) {
+            this.schema = reader.getSchema();
+            this.compression = reader.getCompressionKind();
+            this.compressionSize = reader.getCompressionSize();
+            this.rowIndexStride = reader.getRowIndexStride();
+            this.version = reader.getFileVersion();
+            this.writerVersion = reader.getWriterVersion();
+            this.encrypted = reader.getColumnEncryptionKeys().length > 0;
+        }
+
+        // Readers work around bugs of old writers by which writer version a file claims, so only stripes
+        // of the version this library writes can be copied into a file it writes
+        boolean canCopy() {
+            return writerVersion == OrcFile.CURRENT_WRITER && !encrypted;
+        }
+
+        boolean canRewriteAs(Layout target) {
+            if (encrypted) {
+                return false;
+            }
+            try {
+                new SchemaEvolution(schema, target.schema, new Reader.Options());
+                return true;
+            } catch (SchemaEvolution.IllegalEvolutionException e) {
+                return false;
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Layout)) {
+                return false;
+            }
+            Layout other = (Layout) o;
+            return schema.equals(other.schema) && compression == other.compression && rowIndexStride == other.rowIndexStride
+                    && version == other.version && writerVersion == other.writerVersion && encrypted == other.encrypted;
+        }
+
+        @Override
+        public int hashCode() {
+            return schema.hashCode() * 31 + compression.hashCode();
+        }
+    }
+
+    public void close() {
+        pool.shutdown();
+    }
+
+    // args: baseUri [smallFileSize [targetFileSize]]
+    public static void main(String[] args) throws IOException {
+        Options options = new Options();
+        if (args.length > 1) {
+            options.smallFileSize(Long.parseLong(args[1]));
+        }
+        if (args.length > 2) {
+            options.targetFileSize(Long.parseLong(args[2]));
+        }
+        try (OrcCompactor compactor = new OrcCompactor(args[0], options)) {
+            long started = System.nanoTime();
+            List<Compaction> compactions = compactor.compact();
+            compactions.forEach(System.out::println);
+            System.out.println(compactions.size() + " partitions compacted in " + (System.nanoTime() - started) / 1_000_000 + "ms");
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package jheister;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.hive.ql.exec.vector.BytesColumnVector;
 import org.apache.hadoop.hive.ql.exec.vector.DoubleColumnVector;
@@ -10,26 +11,70 @@ import org.apache.orc.OrcFile;
 import org.apache.orc.TypeDescription;
 import org.apache.orc.Writer;
 
+import java.io.File;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
 import java.time.LocalDate;
+import java.util.Arrays;
 import java.util.UUID;
 
 class OrcPriceFile {
-    private final Writer writer;
-    private final VectorizedRowBatch batch;
+    static final TypeDescription SCHEMA = TypeDescription.fromString("struct<price_date:date,id:string,close_price:double>");
+    static final long CLUSTER_MEMORY = 256L << 20;
+
+    static {
+        // column ids are assigned lazily, which isn't safe once the schema is shared between threads
+        SCHEMA.getMaximumId();
+    }
+
+    private final BatchSink sink;
+    private final Path path;
+    private final FileSystem fileSystem;
+    // null unless the settings ask for a manifest
+    private final ManifestWriter manifest;
+    private VectorizedRowBatch batch;
+    // null for an idCacheSize of 0
+    private final BytesValueCache idCache;
+    private final byte[] idBytes = new byte[36];
 
     public OrcPriceFile(String name) throws IOException {
+        this(name, 1 << 17);
+    }
+
+    public OrcPriceFile(String name, int idCacheSize) throws IOException {
+        this(name, idCacheSize, false);
+    }
+
+    // clustered files are sorted by id then date so stripe statistics on id are selective
+    public OrcPriceFile(String name, int idCacheSize, boolean clustered) throws IOException {
+        this(name, idCacheSize, clustered, new OrcWriterSettings());
+    }
+
+    public OrcPriceFile(String name, int idCacheSize, boolean clustered, OrcWriterSettings settings) throws IOException {
+        this(name, idCacheSize, clustered, settings, CLUSTER_MEMORY, new File(System.getProperty("java.io.tmpdir")));
+    }
+
+    // clusterMemory bytes of rows are sorted in memory before a sorted run is spilled to spillDirectory
+    public OrcPriceFile(String name, int idCacheSize, boolean clustered, OrcWriterSettings settings,
+                        long clusterMemory, File spillDirectory) throws IOException {
         Configuration conf = new Configuration();
-        //todo: test compression
+        path = new Path(name);
+        fileSystem = settings.getFileSystem() != null ? settings.getFileSystem() : path.getFileSystem(conf);
+        manifest = ManifestWriter.of(settings, SCHEMA);
         //todo: effective time
-        TypeDescription schema = TypeDescription.fromString("struct<price_date:date,id:string,close_price:double>");
-        writer = OrcFile.createWriter(new Path(name),
-                OrcFile.writerOptions(conf)
-                        .overwrite(true)
-                        .setSchema(schema));
+        OrcFile.WriterOptions options = settings.toWriterOptions(conf, SCHEMA).overwrite(true);
+        if (manifest != null) {
+            manifest.writeTo(path, options);
+        }
+        Writer writer = OrcFile.createWriter(path, options);
 
-        batch = schema.createRowBatch();
+        batch = SCHEMA.createRowBatch();
+        if (clustered) {
+            sink = new SortingBatchSink(BatchSink.of(writer), SCHEMA, Arrays.asList("id", "price_date"), clusterMemory,
+                    SCHEMA::createRowBatch, spillDirectory);
+        } else {
+            sink = BatchSink.of(writer);
+        }
+        idCache = idCacheSize > 0 ? new BytesValueCache(idCacheSize) : null;
     }
 
     public void write(UUID id, LocalDate date, double price) throws IOException {
@@ -39,16 +84,59 @@ class OrcPriceFile {
 
         int row = batch.size++;
         closePrice.vector[row] = price;
-        ids.setVal(row, id.toString().getBytes(StandardCharsets.UTF_8));
+        encode(id, idBytes);
+        if (idCache != null) {
+            byte[] idValue = idCache.get(idBytes, 0, idBytes.length);
+            ids.setRef(row, idValue, 0, idValue.length);
+        } else {
+            ids.setVal(row, idBytes, 0, idBytes.length);
+        }
         dates.vector[row] = date.toEpochDay();
         // If the batch is full, write it out and start over.
         if (batch.size == batch.getMaxSize()) {
-            writer.addRowBatch(batch);
-            batch.reset();
+            flush();
         }
     }
 
+    public BytesValueCache getIdCache() {
+        return idCache;
+    }
+
+    // same text as UUID.toString()
+    private static void encode(UUID id, byte[] out) {
+        hex(id.getMostSignificantBits() >>> 32, out, 0, 8);
+        out[8] = '-';
+        hex(id.getMostSignificantBits() >>> 16, out, 9, 4);
+        out[13] = '-';
+        hex(id.getMostSignificantBits(), out, 14, 4);
+        out[18] = '-';
+        hex(id.getLeastSignificantBits() >>> 48, out, 19, 4);
+        out[23] = '-';
+        hex(id.getLeastSignificantBits(), out, 24, 12);
+    }
+
+    private static void hex(long value, byte[] out, int offset, int digits) {
+        for (int i = offset + digits - 1; i >= offset; --i) {
+            out[i] = (byte) Character.forDigit((int) (value & 0xf), 16);
+            value >>>= 4;
+        }
+    }
+
+    private void flush() throws IOException {
+        if (manifest != null) {
+            manifest.add(batch);
+        }
+        batch = sink.flush(batch);
+    }
+
     public void close() throws IOException {
-        writer.close();
+        if (batch.size > 0) {
+            flush();
+        }
+        sink.close();
+        if (manifest != null) {
+            manifest.fileClosed(path);
+            manifest.close(fileSystem);
+        }
     }
 }
@@ -0,0 +1,192 @@
+package jheister;
+
+import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hive.ql.exec.vector.VectorizedRowBatch;
+import org.apache.hadoop.hive.ql.io.sarg.PredicateLeaf;
+import org.apache.hadoop.hive.ql.io.sarg.SearchArgument;
+import org.apache.orc.OrcFile;
+import org.apache.orc.Reader;
+import org.apache.orc.RecordReader;
+import org.apache.orc.TypeDescription;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/*
+ * Reads a projection of an ORC file on S3 (s3:// or s3a://) or local disk (file:// or a plain path) with a
+ * SearchArgument pushed down. Opening only reads the file tail; rows are then read a batch at a time, and
+ * ORC skips every stripe and row group whose statistics or bloom filters rule the predicate out and only
+ * fetches the streams of the projected columns. S3 objects are read with random-access ranged GETs rather
+ * than one sequential stream, so a slice of a large object costs roughly the bytes it needs.
+ *
+ * Skipping is per row group (10k rows by default), so batches can still contain rows that don't match.
+ */
+public class OrcSliceReader implements Closeable {
+    private final Reader reader;
+    private final TypeDescription schema;
+    private final RecordReader rows;
+    private final int batchSize;
+
+    public OrcSliceReader(String uri) throws IOException {
+        this(uri, new Options());
+    }
+
+    public OrcSliceReader(String uri, Options options) throws IOException {
+        Configuration conf = options.conf != null ? options.conf : defaultConfiguration();
+        this.reader = options.tailCache != null
+                ? options.tailCache.createReader(toPath(uri), conf)
+                : OrcFile.createReader(toPath(uri), OrcFile.readerOptions(conf));
+        this.schema = project(reader.getSchema(), options);
+        this.batchSize = options.batchSize;
+
+        Reader.Options readOptions = reader.options().schema(schema);
+        if (options.predicate != null) {
+            readOptions.searchArgument(options.predicate, schema.getFieldNames().toArray(new String[0]));
+        }
+        if (options.rangeLength >= 0) {
+            readOptions.range(options.rangeOffset, options.rangeLength);
+        }
+        this.rows = reader.rows(readOptions);
+    }
+
+    public static class Options {
+        private List<String> columns = Collections.emptyList();
+        private SearchArgument predicate;
+        private Configuration conf;
+        private OrcTailCache tailCache;
+        private int batchSize = VectorizedRowBatch.DEFAULT_SIZE;
+        private long rangeOffset;
+        private long rangeLength = -1;
+
+        // top-level columns to read, all of them if none are given
+        public Options select(String... columns) {
+            this.columns = Arrays.asList(columns);
+            return this;
+        }
+
+        // columns the predicate refers to are read as well, since ORC can only apply it to columns it reads
+        public Options where(SearchArgument predicate) {
+            this.predicate = predicate;
+            return this;
+        }
+
+        public Options configuration(Configuration conf) {
+            this.conf = conf;
+            return this;
+        }
+
+        // opens the file with its tail from this cache, if it has an up to date one
+        public Options tailCache(OrcTailCache cache) {
+            this.tailCache = cache;
+            return this;
+        }
+
+        // rows per batch from createBatch()
+        public Options batchSize(int rows) {
+            this.batchSize = rows;
+            return this;
+        }
+
+        // only reads the stripes starting within these bytes of the file, e.g. those a manifest says can match
+        public Options range(long offset, long length) {
+            this.rangeOffset = offset;
+            this.rangeLength = length;
+            return this;
+        }
+
+        Options copy() {
+            Options copy = new Options();
+            copy.columns = columns;
+            copy.predicate = predicate;
+            copy.conf = conf;
+            copy.tailCache = tailCache;
+            copy.batchSize = batchSize;
+            copy.rangeOffset = rangeOffset;
+            copy.rangeLength = rangeLength;
+            return copy;
+        }
+
+        Configuration getConfiguration() {
+            return conf;
+        }
+    }
+
+    static Configuration defaultConfiguration() {
+        Configuration conf = new Configuration();
+        conf.set("fs.s3a.aws.credentials.provider", DefaultAWSCredentialsProviderChain.class.getName());
+        // ranged GETs for just the streams being read instead of streaming the object from the first seek on
+        conf.set("fs.s3a.experimental.input.fadvise", "random");
+        conf.set("fs.s3a.readahead.range", Integer.toString(64 << 10));
+        return conf;
+    }
+
+    // s3:// is read through s3a, the only S3 file system Hadoop ships
+    static Path toPath(String uri) {
+        return uri.startsWith("s3://") ? new Path("s3a" + uri.substring(2)) : new Path(uri);
+    }
+
+    private static TypeDescription project(TypeDescription fileSchema, Options options) {
+        if (options.columns.isEmpty()) {
+            return fileSchema;
+        }
+        Set<String> wanted = new LinkedHashSet<>(options.columns);
+        if (options.predicate != null) {
+            for (PredicateLeaf leaf : options.predicate.getLeaves()) {
+                wanted.add(leaf.getColumnName());
+            }
+        }
+        List<String> names = fileSchema.getFieldNames();
+        TypeDescription projection = TypeDescription.createStruct();
+        List<String> missing = new ArrayList<>();
+        for (String column : wanted) {
+            if (!names.contains(column)) {
+                missing.add(column);
+            }
+        }
+        if (!missing.isEmpty()) {
+            throw new IllegalArgumentException("No columns " + missing + " in " + fileSchema);
+        }
+        // keep file order so the projection reads front to back
+        for (int c = 0; c < names.size(); c++) {
+            if (wanted.contains(names.get(c))) {
+                projection.addField(names.get(c), fileSchema.getChildren().get(c).clone());
+            }
+        }
+        return projection;
+    }
+
+    // schema of the batches returned, the projected columns in file order
+    public TypeDescription getSchema() {
+        return schema;
+    }
+
+    public Reader getReader() {
+        return reader;
+    }
+
+    public VectorizedRowBatch createBatch() {
+        return schema.createRowBatch(batchSize);
+    }
+
+    public boolean nextBatch(VectorizedRowBatch batch) throws IOException {
+        return rows.nextBatch(batch) && batch.size > 0;
+    }
+
+    // row number within the file of the next row to be returned
+    public long getRowNumber() throws IOException {
+        return rows.getRowNumber();
+    }
+
+    public void close() throws IOException {
+        rows.close();
+        reader.close();
+    }
+}
@@ -0,0 +1,316 @@
+package jheister;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.orc.OrcFile;
+import org.apache.orc.OrcProto;
+import org.apache.orc.Reader;
+import org.apache.orc.impl.BufferChunk;
+import org.apache.orc.impl.OrcTail;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Shared cache of parsed ORC file tails (postscript, footer and stripe statistics) so that opening a file
+ * again doesn't read its tail again. Entries are per path and only used while the file still has the
+ * length and modification time they were read at. Hadoop 3.2 file statuses carry no S3 ETag, so those two
+ * are the version.
+ *
+ * Checking the version is a getFileStatus call (a HEAD on S3). Opening by FileStatus, e.g. from a listing,
+ * skips it, and opening by Path trusts a version checked less than statusTtlMillis ago, so a hot file
+ * costs no I/O until its rows are read. Least recently used tails are evicted beyond maxBytes. With a
+ * directory given, tails are also written there and reloaded after a restart. The directory is kept within
+ * maxBytes as well, by deleting the tails least recently stored or reloaded when it grows past it, and on
+ * startup.
+ */
+public class OrcTailCache {
+    private final long maxBytes;
+    private final long statusTtlMillis;
+    private final File directory;
+    private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+    // of the .tail files in the directory
+    private long directoryBytes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong statusChecks = new AtomicLong();
+
+    public OrcTailCache(long maxBytes) {
+        this(maxBytes, 60_000, null);
+    }
+
+    public OrcTailCache(long maxBytes, long statusTtlMillis, File directory) {
+        this.maxBytes = maxBytes;
+        this.statusTtlMillis = statusTtlMillis;
+        this.directory = directory;
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalArgumentException("Can't create " + directory);
+        }
+        if (directory != null) {
+            pruneDirectory();
+        }
+    }
+
+    private static class Entry {
+        private final long length;
+        private final long modificationTime;
+        private final OrcTail tail;
+        private final int size;
+        private volatile long checkedAt;
+
+        Entry(long length, long modificationTime, OrcTail tail, long checkedAt) {
+            this.length = length;
+            this.modificationTime = modificationTime;
+            this.tail = tail;
+            this.size = tail.getSerializedTail().remaining() + tail.getFileTail().getSerializedSize();
+            this.checkedAt = checkedAt;
+        }
+
+        boolean isVersion(FileStatus status) {
+            return status.getLen() == length && status.getModificationTime() == modificationTime;
+        }
+    }
+
+    public Reader createReader(Path path, Configuration conf) throws IOException {
+        FileSystem fs = path.getFileSystem(conf);
+        path = fs.makeQualified(path);
+        Entry entry = get(path);
+        long now = System.currentTimeMillis();
+        if (entry != null && now - entry.checkedAt < statusTtlMillis) {
+            hits.incrementAndGet();
+            return open(path, fs, conf, entry);
+        }
+        statusChecks.incrementAndGet();
+        return createReader(fs.getFileStatus(path), fs, conf);
+    }
+
+    public Reader createReader(FileStatus status, Configuration conf) throws IOException {
+        return createReader(status, status.getPath().getFileSystem(conf), conf);
+    }
+
+    private Reader createReader(FileStatus status, FileSystem fs, Configuration conf) throws IOException {
+        Path path = status.getPath();
+        long now = System.currentTimeMillis();
+        Entry entry = get(path);
+        if (entry != null && entry.isVersion(status)) {
+            hits.incrementAndGet();
+        } else if ((entry = load(path, status, now)) != null) {
+            diskHits.incrementAndGet();
+            put(path, entry);
+        } else {
+            misses.incrementAndGet();
+            OrcFile.ReaderOptions options = OrcFile.readerOptions(conf).filesystem(fs).maxLength(status.getLen());
+            Reader reader = OrcFile.createReader(path, options);
+            // the reader leaves the tail it read in its options
+            entry = new Entry(status.getLen(), status.getModificationTime(), options.getOrcTail(), now);
+            put(path, entry);
+            store(path, entry);
+            return reader;
+        }
+        entry.checkedAt = now;
+        return open(path, fs, conf, entry);
+    }
+
+    private static Reader open(Path path, FileSystem fs, Configuration conf, Entry entry) throws IOException {
+        return OrcFile.createReader(path, OrcFile.readerOptions(conf)
+                .filesystem(fs)
+                .maxLength(entry.length)
+                .orcTail(entry.tail));
+    }
+
+    public synchronized void invalidate(Path path) {
+        Entry entry = entries.remove(path);
+        if (entry != null) {
+            bytes -= entry.size;
+        }
+        if (directory != null) {
+            File file = fileFor(path);
+            long length = file.length();
+            if (file.delete()) {
+                directoryBytes -= length;
+            }
+        }
+    }
+
+    private synchronized Entry get(Path path) {
+        return entries.get(path);
+    }
+
+    private synchronized void put(Path path, Entry entry) {
+        Entry previous = entries.put(path, entry);
+        bytes += entry.size - (previous != null ? previous.size : 0);
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (bytes > maxBytes && eldest.hasNext()) {
+            Entry evicted = eldest.next();
+            if (evicted == entry) {
+                break;
+            }
+            eldest.remove();
+            bytes -= evicted.size;
+            evictions.incrementAndGet();
+        }
+    }
+
+    // One file per path holding the version it was read at, the FileTail proto and the serialized tail
+    private void store(Path path, Entry entry) {
+        if (directory == null) {
+            return;
+        }
+        File file = fileFor(path);
+        File tmp = new File(directory, file.getName() + "." + Thread.currentThread().getId() + ".tmp");
+        try (OutputStream stream = Files.newOutputStream(tmp.toPath());
+             DataOutputStream out = new DataOutputStream(stream)) {
+            byte[] fileTail = entry.tail.getFileTail().toByteArray();
+            ByteBuffer serialized = entry.tail.getSerializedTail().duplicate();
+            byte[] tailBytes = new byte[serialized.remaining()];
+            serialized.get(tailBytes);
+            out.writeUTF(path.toString());
+            out.writeLong(entry.length);
+            out.writeLong(entry.modificationTime);
+            out.writeInt(fileTail.length);
+            out.write(fileTail);
+            // file offset the serialized tail starts at, which depends on how much the reader read
+            out.writeLong(entry.tail.getTailBuffer().getOffset());
+            out.writeInt(tailBytes.length);
+            out.write(tailBytes);
+        } catch (IOException e) {
+            // the cache still works without its copy on disk
+            tmp.delete();
+            return;
+        }
+        try {
+            long replaced = file.length();
+            long length = tmp.length();
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            stored(length - replaced);
+        } catch (IOException e) {
+            tmp.delete();
+        }
+    }
+
+    private synchronized void stored(long bytes) {
+        directoryBytes += bytes;
+        if (directoryBytes > maxBytes) {
+            pruneDirectory();
+        }
+    }
+
+    // deletes the least recently stored or reloaded tails down to three quarters of maxBytes, so the
+    // directory isn't listed again on every store
+    private synchronized void pruneDirectory() {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(".tail"));
+        if (files == null) {
+            return;
+        }
+        long total = 0;
+        long[] lengths = new long[files.length];
+        long[] modified = new long[files.length];
+        Integer[] order = new Integer[files.length];
+        for (int i = 0; i < files.length; i++) {
+            lengths[i] = files[i].length();
+            modified[i] = files[i].lastModified();
+            order[i] = i;
+            total += lengths[i];
+        }
+        Arrays.sort(order, Comparator.comparingLong(i -> modified[i]));
+        for (int i = 0; i < order.length && total > maxBytes - maxBytes / 4; i++) {
+            if (files[order[i]].delete()) {
+                total -= lengths[order[i]];
+            }
+        }
+        directoryBytes = total;
+    }
+
+    private Entry load(Path path, FileStatus status, long now) {
+        if (directory == null) {
+            return null;
+        }
+        File file = fileFor(path);
+        try (InputStream stream = Files.newInputStream(file.toPath());
+             DataInputStream in = new DataInputStream(stream)) {
+            if (!in.readUTF().equals(path.toString()) || in.readLong() != status.getLen()
+                    || in.readLong() != status.getModificationTime()) {
+                return null;
+            }
+            byte[] fileTail = new byte[in.readInt()];
+            in.readFully(fileTail);
+            long offset = in.readLong();
+            byte[] serialized = new byte[in.readInt()];
+            in.readFully(serialized);
+            OrcTail tail = new OrcTail(OrcProto.FileTail.parseFrom(fileTail),
+                    new BufferChunk(ByteBuffer.wrap(serialized), offset), status.getModificationTime());
+            // pruned last
+            file.setLastModified(now);
+            return new Entry(status.getLen(), status.getModificationTime(), tail, now);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            // unreadable or from an older layout, read the tail from the file instead
+            return null;
+        }
+    }
+
+    private File fileFor(Path path) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(path.toString().getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder();
+            for (byte b : digest) {
+                name.append(String.format("%02x", b));
+            }
+            return new File(directory, name.append(".tail").toString());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    // misses in memory that were found on disk
+    public long getDiskHits() {
+        return diskHits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public long getStatusChecks() {
+        return statusChecks.get();
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+}
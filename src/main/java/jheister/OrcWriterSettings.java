@@ -0,0 +1,179 @@
+package jheister;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.orc.CompressionKind;
+import org.apache.orc.MemoryManager;
+import org.apache.orc.OrcConf;
+import org.apache.orc.OrcFile;
+import org.apache.orc.TypeDescription;
+
+import java.util.StringJoiner;
+
+// Layout knobs for the ORC writers. Anything left unset keeps the ORC default.
+public class OrcWriterSettings {
+    private CompressionKind compression;
+    private OrcFile.CompressionStrategy compressionStrategy;
+    private Long stripeSize;
+    private Integer rowIndexStride;
+    private String bloomFilterColumns;
+    private Double bloomFilterFpp;
+    private Double dictionaryKeySizeThreshold;
+    private FileSystem fileSystem;
+    private MemoryManager memoryManager;
+    private boolean manifest;
+    private String manifestBloomColumns;
+    private long manifestBloomEntries = 100_000;
+
+    public OrcWriterSettings() {
+    }
+
+    public OrcWriterSettings(OrcWriterSettings other) {
+        this.compression = other.compression;
+        this.compressionStrategy = other.compressionStrategy;
+        this.stripeSize = other.stripeSize;
+        this.rowIndexStride = other.rowIndexStride;
+        this.bloomFilterColumns = other.bloomFilterColumns;
+        this.bloomFilterFpp = other.bloomFilterFpp;
+        this.dictionaryKeySizeThreshold = other.dictionaryKeySizeThreshold;
+        this.fileSystem = other.fileSystem;
+        this.memoryManager = other.memoryManager;
+        this.manifest = other.manifest;
+        this.manifestBloomColumns = other.manifestBloomColumns;
+        this.manifestBloomEntries = other.manifestBloomEntries;
+    }
+
+    public OrcWriterSettings compression(CompressionKind compression) {
+        this.compression = compression;
+        return this;
+    }
+
+    public OrcWriterSettings compressionStrategy(OrcFile.CompressionStrategy strategy) {
+        this.compressionStrategy = strategy;
+        return this;
+    }
+
+    public OrcWriterSettings stripeSize(long bytes) {
+        this.stripeSize = bytes;
+        return this;
+    }
+
+    public OrcWriterSettings rowIndexStride(int rows) {
+        this.rowIndexStride = rows;
+        return this;
+    }
+
+    // comma separated column names
+    public OrcWriterSettings bloomFilterColumns(String columns) {
+        this.bloomFilterColumns = columns;
+        return this;
+    }
+
+    public OrcWriterSettings bloomFilterFpp(double fpp) {
+        this.bloomFilterFpp = fpp;
+        return this;
+    }
+
+    // fraction of distinct keys to non-null rows above which a string column stops using a dictionary
+    public OrcWriterSettings dictionaryKeySizeThreshold(double threshold) {
+        this.dictionaryKeySizeThreshold = threshold;
+        return this;
+    }
+
+    // writes through this file system instead of the one the output path resolves to
+    public OrcWriterSettings fileSystem(FileSystem fileSystem) {
+        this.fileSystem = fileSystem;
+        return this;
+    }
+
+    FileSystem getFileSystem() {
+        return fileSystem;
+    }
+
+    // writers sharing a memory manager have their stripe sizes scaled down together to stay within its pool
+    public OrcWriterSettings memoryManager(MemoryManager memoryManager) {
+        this.memoryManager = memoryManager;
+        return this;
+    }
+
+    // Writers also record each file's statistics in a manifest in its directory, see PartitionManifest, with a
+    // bloom filter over the values of each of the comma separated bloomColumns (null for none)
+    public OrcWriterSettings manifest(String bloomColumns) {
+        this.manifest = true;
+        this.manifestBloomColumns = bloomColumns;
+        return this;
+    }
+
+    // distinct values a manifest bloom filter is sized for, at the bloomFilterFpp or ORC's default of 5%
+    public OrcWriterSettings manifestBloomEntries(long values) {
+        this.manifestBloomEntries = values;
+        return this;
+    }
+
+    boolean isManifest() {
+        return manifest;
+    }
+
+    String getManifestBloomColumns() {
+        return manifestBloomColumns;
+    }
+
+    long getManifestBloomEntries() {
+        return manifestBloomEntries;
+    }
+
+    Double getBloomFilterFpp() {
+        return bloomFilterFpp;
+    }
+
+    public OrcFile.WriterOptions toWriterOptions(Configuration conf, TypeDescription schema) {
+        if (dictionaryKeySizeThreshold != null || compressionStrategy != null) {
+            // these two can only be set through the configuration
+            conf = new Configuration(conf);
+            if (dictionaryKeySizeThreshold != null) {
+                OrcConf.DICTIONARY_KEY_SIZE_THRESHOLD.setDouble(conf, dictionaryKeySizeThreshold);
+            }
+            if (compressionStrategy != null) {
+                OrcConf.COMPRESSION_STRATEGY.setString(conf, compressionStrategy.name());
+            }
+        }
+        OrcFile.WriterOptions options = OrcFile.writerOptions(conf).setSchema(schema);
+        if (compression != null) {
+            options.compress(compression);
+        }
+        if (stripeSize != null) {
+            options.stripeSize(stripeSize);
+        }
+        if (rowIndexStride != null) {
+            options.rowIndexStride(rowIndexStride);
+        }
+        if (bloomFilterColumns != null) {
+            options.bloomFilterColumns(bloomFilterColumns);
+        }
+        if (bloomFilterFpp != null) {
+            options.bloomFilterFpp(bloomFilterFpp);
+        }
+        if (fileSystem != null) {
+            options.fileSystem(fileSystem);
+        }
+        if (memoryManager != null) {
+            options.memory(memoryManager);
+        }
+        return options;
+    }
+
+    @Override
+    public String toString() {
+        StringJoiner joiner = new StringJoiner(", ", "{", "}");
+        if (compression != null) joiner.add("compression=" + compression);
+        if (compressionStrategy != null) joiner.add("strategy=" + compressionStrategy);
+        if (stripeSize != null) joiner.add("stripeSize=" + stripeSize);
+        if (rowIndexStride != null) joiner.add("rowIndexStride=" + rowIndexStride);
+        if (bloomFilterColumns != null) joiner.add("bloomFilter=" + bloomFilterColumns);
+        if (bloomFilterFpp != null) joiner.add("fpp=" + bloomFilterFpp);
+        if (dictionaryKeySizeThreshold != null) joiner.add("dictionaryThreshold=" + dictionaryKeySizeThreshold);
+        if (fileSystem != null) joiner.add("fileSystem=" + fileSystem.getUri());
+        if (manifest) joiner.add("manifest" + (manifestBloomColumns != null ? "=" + manifestBloomColumns : ""));
+        return joiner.toString();
+    }
+}
@@ -0,0 +1,165 @@
+package jheister;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Lines are handed to the shards in chunks. In ordered mode chunk n always goes to shard n % shards, so
+ * reading part-00000, part-00001, ... chunk by chunk gives back the input order. In unordered mode all
+ * shards take from one queue and whichever is free picks up the next chunk.
+ */
+public class ParallelJsonStreamToOrcConverter {
+    private static final List<String> END_OF_INPUT = new ArrayList<>();
+
+    private final List<BlockingQueue<List<String>>> queues = new ArrayList<>();
+    private final List<JsonStreamToOrcConverter> shards = new ArrayList<>();
+    private final List<Future<?>> workers = new ArrayList<>();
+    private final ExecutorService executor;
+    private final int chunkSize;
+    private List<String> chunk;
+    private long chunksDispatched;
+
+    public static void main(String[] args) throws IOException {
+        ParallelJsonStreamToOrcConverter writer = new ParallelJsonStreamToOrcConverter("struct<price_date:string,id:string,close_price:double>",
+                "out", "", 4, 16, 1024, true);
+
+        for (int i = 0; i < 1_000_000; i++) {
+            writer.write("{ \"price_date\": \"2020-01-01\", \"id\": \"" + i + "\", \"close_price\": 123.45 }");
+        }
+
+        long[] rowCounts = writer.close();
+        for (int i = 0; i < rowCounts.length; i++) {
+            System.out.println(partName(i) + ": " + rowCounts[i] + " rows");
+        }
+    }
+
+    public ParallelJsonStreamToOrcConverter(String schema, String outputDirectory, String timestampFormat,
+                                            int shardCount, int queueCapacity, int chunkSize, boolean ordered) throws IOException {
+        this.chunkSize = chunkSize;
+        this.chunk = new ArrayList<>(chunkSize);
+        this.executor = Executors.newFixedThreadPool(shardCount);
+
+        BlockingQueue<List<String>> shared = ordered ? null : new ArrayBlockingQueue<>(queueCapacity);
+        JsonConverterFactory converters = new JsonConverterFactory(timestampFormat);
+        for (int i = 0; i < shardCount; i++) {
+            JsonStreamToOrcConverter shard = converters.open(schema, outputDirectory + "/" + partName(i));
+            BlockingQueue<List<String>> queue = ordered ? new ArrayBlockingQueue<>(queueCapacity) : shared;
+            shards.add(shard);
+            queues.add(queue);
+            workers.add(executor.submit(() -> {
+                List<String> lines;
+                while ((lines = queue.take()) != END_OF_INPUT) {
+                    for (String line : lines) {
+                        shard.write(line);
+                    }
+                }
+                return null;
+            }));
+        }
+    }
+
+    static String partName(int shard) {
+        return String.format("part-%05d.orc", shard);
+    }
+
+    public void write(String json) throws IOException {
+        chunk.add(json);
+        if (chunk.size() == chunkSize) {
+            dispatch();
+        }
+    }
+
+    public long[] close() throws IOException {
+        Exception failure = null;
+        try {
+            if (!chunk.isEmpty()) {
+                dispatch();
+            }
+            for (BlockingQueue<List<String>> queue : queues) {
+                put(queue, END_OF_INPUT);
+            }
+            for (Future<?> worker : workers) {
+                worker.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failure = new IOException(e);
+        } catch (ExecutionException e) {
+            failure = new IOException("Shard failed", e.getCause());
+        } catch (IOException | RuntimeException e) {
+            failure = e;
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // every shard's file is closed even when one failed, once no worker is writing to them any more
+        if (failure != null) {
+            awaitWorkers();
+        }
+        long[] rowCounts = new long[shards.size()];
+        for (int i = 0; i < rowCounts.length; i++) {
+            try {
+                rowCounts[i] = shards.get(i).getRowCount();
+                shards.get(i).close();
+            } catch (IOException | RuntimeException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        } else if (failure != null) {
+            throw (RuntimeException) failure;
+        }
+        return rowCounts;
+    }
+
+    private void awaitWorkers() {
+        boolean interrupted = false;
+        while (!executor.isTerminated()) {
+            try {
+                executor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void dispatch() throws IOException {
+        put(queues.get((int) (chunksDispatched++ % queues.size())), chunk);
+        chunk = new ArrayList<>(chunkSize);
+    }
+
+    private void put(BlockingQueue<List<String>> queue, List<String> lines) throws IOException {
+        try {
+            // a failed shard stops draining its queue, so check rather than block on it forever
+            while (!queue.offer(lines, 100, TimeUnit.MILLISECONDS)) {
+                for (Future<?> worker : workers) {
+                    if (worker.isDone()) {
+                        worker.get();
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            executor.shutdownNow();
+            throw new IOException("Shard failed", e.getCause());
+        }
+    }
+}
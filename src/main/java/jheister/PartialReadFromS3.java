@@ -1,33 +1,85 @@
 package jheister;
 
-import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
-import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.fs.Path;
-import org.apache.orc.OrcFile;
+import org.apache.hadoop.hive.ql.exec.vector.BytesColumnVector;
+import org.apache.hadoop.hive.ql.exec.vector.ColumnVector;
+import org.apache.hadoop.hive.ql.exec.vector.DoubleColumnVector;
+import org.apache.hadoop.hive.ql.exec.vector.LongColumnVector;
+import org.apache.hadoop.hive.ql.exec.vector.VectorizedRowBatch;
+import org.apache.hadoop.hive.ql.io.sarg.PredicateLeaf;
+import org.apache.hadoop.hive.ql.io.sarg.SearchArgument;
+import org.apache.hadoop.hive.ql.io.sarg.SearchArgumentFactory;
 import org.apache.orc.Reader;
 import org.apache.orc.TypeDescription;
 
 import java.io.IOException;
-import java.net.URI;
+import java.sql.Date;
+import java.time.LocalDate;
 import java.util.Arrays;
 
 import static jheister.CreatePriceFeedInAthena.BUCKET_NAME;
 import static jheister.CreatePriceFeedInAthena.FEED_NAME;
 
 public class PartialReadFromS3 {
+    // args: [uri [id [from to]]], defaults to a month of the feed created by CreatePriceFeedInAthena
     public static void main(String[] args) throws IOException {
-        Path path = new Path(URI.create("s3a://" + BUCKET_NAME + "/" + FEED_NAME + "/month=2019-01/data.orc"));
-        Configuration conf = new Configuration();
-        conf.set("fs.s3a.aws.credentials.provider", DefaultAWSCredentialsProviderChain.class.getName());
-        Reader reader = OrcFile.createReader(path, new OrcFile.ReaderOptions(conf));
+        String uri = args.length > 0 ? args[0] : "s3a://" + BUCKET_NAME + "/" + FEED_NAME + "/month=2019-01/data.orc";
+        try (OrcSliceReader slice = new OrcSliceReader(uri)) {
+            Reader reader = slice.getReader();
+            TypeDescription schema = reader.getSchema();
+            System.out.println(schema);
 
-        TypeDescription schema = reader.getSchema();
-        System.out.println(schema);
+            reader.getStripeStatistics().forEach(s -> {
+                System.out.println("== Stripe ==");
+                Arrays.stream(s.getColumnStatistics()).forEach(System.out::println);
+            });
+        }
 
+        if (args.length > 1) {
+            readPrices(uri, args[1], args.length > 3 ? LocalDate.parse(args[2]) : LocalDate.MIN,
+                    args.length > 3 ? LocalDate.parse(args[3]) : LocalDate.MAX);
+        }
+    }
+
+    // Prices of one instrument between two dates, reading only the row groups that can contain them
+    private static void readPrices(String uri, String id, LocalDate from, LocalDate to) throws IOException {
+        SearchArgument predicate = SearchArgumentFactory.newBuilder()
+                .startAnd()
+                .equals("id", PredicateLeaf.Type.STRING, id)
+                .between("price_date", PredicateLeaf.Type.DATE,
+                        Date.valueOf(LocalDate.MIN.equals(from) ? LocalDate.of(1, 1, 1) : from),
+                        Date.valueOf(LocalDate.MAX.equals(to) ? LocalDate.of(9999, 12, 31) : to))
+                .end()
+                .build();
+
+        long rowsRead = 0;
+        try (OrcSliceReader slice = new OrcSliceReader(uri, new OrcSliceReader.Options()
+                .select("price_date", "id", "close_price")
+                .where(predicate))) {
+            VectorizedRowBatch batch = slice.createBatch();
+            while (slice.nextBatch(batch)) {
+                rowsRead += batch.size;
+                LongColumnVector dates = (LongColumnVector) batch.cols[0];
+                BytesColumnVector ids = (BytesColumnVector) batch.cols[1];
+                DoubleColumnVector prices = (DoubleColumnVector) batch.cols[2];
+                for (int row = 0; row < batch.size; row++) {
+                    // a stripe with a single value comes back as a repeating vector
+                    int dateRow = dates.isRepeating ? 0 : row;
+                    int idRow = ids.isRepeating ? 0 : row;
+                    int priceRow = prices.isRepeating ? 0 : row;
+                    if (isNull(dates, dateRow) || isNull(ids, idRow)) {
+                        continue;
+                    }
+                    LocalDate date = LocalDate.ofEpochDay(dates.vector[dateRow]);
+                    if (ids.toString(idRow).equals(id) && !date.isBefore(from) && !date.isAfter(to)) {
+                        System.out.println(date + " " + (isNull(prices, priceRow) ? null : prices.vector[priceRow]));
+                    }
+                }
+            }
+        }
+        System.out.println(rowsRead + " rows read");
+    }
 
-        reader.getStripeStatistics().forEach(s -> {
-            System.out.println("== Stripe ==");
-            Arrays.stream(s.getColumnStatistics()).forEach(System.out::println);
-        });
+    private static boolean isNull(ColumnVector vector, int row) {
+        return !vector.noNulls && vector.isNull[row];
     }
 }
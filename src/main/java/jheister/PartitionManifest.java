@@ -0,0 +1,297 @@
+package jheister;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hive.ql.io.sarg.PredicateLeaf;
+import org.apache.hadoop.hive.ql.io.sarg.SearchArgument;
+import org.apache.orc.ColumnStatistics;
+import org.apache.orc.OrcProto;
+import org.apache.orc.TypeDescription;
+import org.apache.orc.impl.ColumnStatisticsImpl;
+import org.apache.orc.impl.RecordReaderImpl;
+import org.apache.orc.util.BloomFilter;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/*
+ * What a query planner needs to know about the ORC files of one directory without opening them: each file's
+ * length, row count and schema, the statistics of its top-level columns for the whole file and for every
+ * stripe as ORC wrote them into the file tail, and optionally a bloom filter over all of a column's values
+ * in the file. Written next to the files as _manifest-<name of the first file>, which Hive and Athena
+ * ignore like any file starting with _, by the writers given OrcWriterSettings.manifest (see ManifestWriter)
+ * and read through ManifestIndex.
+ *
+ * Predicates are evaluated against the statistics with ORC's own RecordReaderImpl.evaluatePredicate, so a
+ * file or stripe is only ruled out where ORC would skip it too.
+ */
+public class PartitionManifest {
+    static final String PREFIX = "_manifest-";
+    private static final int VERSION = 1;
+
+    private final List<FileEntry> files;
+
+    public PartitionManifest(List<FileEntry> files) {
+        this.files = files;
+    }
+
+    public List<FileEntry> getFiles() {
+        return files;
+    }
+
+    public static class FileEntry {
+        private final String name;
+        private final long length;
+        private final long rows;
+        private final TypeDescription schema;
+        private final ColumnStatistics[] columns;
+        private final List<StripeEntry> stripes;
+        // by top-level field, null where there is none
+        private final BloomFilter[] blooms;
+
+        FileEntry(String name, long length, long rows, TypeDescription schema, ColumnStatistics[] columns,
+                  List<StripeEntry> stripes, BloomFilter[] blooms) {
+            this.name = name;
+            this.length = length;
+            this.rows = rows;
+            this.schema = schema;
+            this.columns = columns;
+            this.stripes = stripes;
+            this.blooms = blooms;
+        }
+
+        // the statistics in the tail of a file as it was written
+        static FileEntry of(String name, long length, TypeDescription schema, OrcProto.Footer footer,
+                            List<OrcProto.StripeStatistics> stripeStatistics, BloomFilter[] blooms) {
+            List<StripeEntry> stripes = new ArrayList<>();
+            int s = 0;
+            for (OrcProto.StripeInformation stripe : footer.getStripesList()) {
+                stripes.add(new StripeEntry(stripe.getOffset(),
+                        stripe.getIndexLength() + stripe.getDataLength() + stripe.getFooterLength(),
+                        stripe.getNumberOfRows(), topLevel(schema, stripeStatistics.get(s++).getColStatsList())));
+            }
+            return new FileEntry(name, length, footer.getNumberOfRows(), schema,
+                    topLevel(schema, footer.getStatisticsList()), stripes, blooms);
+        }
+
+        private static ColumnStatistics[] topLevel(TypeDescription schema, List<OrcProto.ColumnStatistics> byId) {
+            List<TypeDescription> fields = schema.getChildren();
+            ColumnStatistics[] columns = new ColumnStatistics[fields.size()];
+            for (int f = 0; f < columns.length; f++) {
+                columns[f] = ColumnStatisticsImpl.deserialize(fields.get(f), byId.get(fields.get(f).getId()));
+            }
+            return columns;
+        }
+
+        // relative to the manifest's directory
+        public String getName() {
+            return name;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        public long getRows() {
+            return rows;
+        }
+
+        public TypeDescription getSchema() {
+            return schema;
+        }
+
+        // e.g. a DateColumnStatistics with the minimum and maximum date, by top-level field
+        public ColumnStatistics getStatistics(String column) {
+            int f = schema.getFieldNames().indexOf(column);
+            return f < 0 ? null : columns[f];
+        }
+
+        public long getNulls(String column) {
+            ColumnStatistics statistics = getStatistics(column);
+            return statistics == null ? rows : rows - statistics.getNumberOfValues();
+        }
+
+        public BloomFilter getBloomFilter(String column) {
+            int f = schema.getFieldNames().indexOf(column);
+            return f < 0 ? null : blooms[f];
+        }
+
+        public List<StripeEntry> getStripes() {
+            return stripes;
+        }
+
+        // whether the file can have rows the predicate holds for, going by its statistics and bloom filters
+        public boolean canMatch(SearchArgument predicate) {
+            return PartitionManifest.canMatch(predicate, schema, columns, blooms);
+        }
+
+        // the stripes that can have rows the predicate holds for, none if the file can't
+        public List<StripeEntry> matchingStripes(SearchArgument predicate) {
+            if (!canMatch(predicate)) {
+                return Collections.emptyList();
+            }
+            List<StripeEntry> matching = new ArrayList<>();
+            for (StripeEntry stripe : stripes) {
+                if (PartitionManifest.canMatch(predicate, schema, stripe.columns, null)) {
+                    matching.add(stripe);
+                }
+            }
+            return matching;
+        }
+    }
+
+    public static class StripeEntry {
+        private final long offset;
+        private final long length;
+        private final long rows;
+        private final ColumnStatistics[] columns;
+
+        StripeEntry(long offset, long length, long rows, ColumnStatistics[] columns) {
+            this.offset = offset;
+            this.length = length;
+            this.rows = rows;
+            this.columns = columns;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        // index, data and footer
+        public long getLength() {
+            return length;
+        }
+
+        public long getRows() {
+            return rows;
+        }
+    }
+
+    // Leaves on columns the file doesn't have, or has no statistics for, could be anything
+    private static boolean canMatch(SearchArgument predicate, TypeDescription schema, ColumnStatistics[] columns,
+                                    BloomFilter[] blooms) {
+        List<PredicateLeaf> leaves = predicate.getLeaves();
+        List<String> names = schema.getFieldNames();
+        SearchArgument.TruthValue[] truth = new SearchArgument.TruthValue[leaves.size()];
+        for (int l = 0; l < truth.length; l++) {
+            int f = names.indexOf(leaves.get(l).getColumnName());
+            truth[l] = f < 0 || columns[f] == null
+                    ? SearchArgument.TruthValue.YES_NO_NULL
+                    : RecordReaderImpl.evaluatePredicate(columns[f], leaves.get(l), blooms != null ? blooms[f] : null);
+        }
+        return predicate.evaluate(truth).isNeeded();
+    }
+
+    /*
+     * Statistics are stored as the ColumnStatistics protos of the file tail. Written under a hidden name
+     * and renamed where files are visible while they're written, so a reader never sees half a manifest.
+     */
+    void write(FileSystem fs, Path path) throws IOException {
+        Path writing = OrcCompactor.visibleWhileWriting(fs) ? new Path(path.getParent(), "." + path.getName()) : path;
+        try (FSDataOutputStream out = fs.create(writing, true)) {
+            write(out);
+        }
+        if (!writing.equals(path)) {
+            fs.delete(path, false);
+            if (!fs.rename(writing, path)) {
+                throw new IOException("Couldn't rename " + writing + " to " + path);
+            }
+        }
+    }
+
+    private void write(DataOutputStream out) throws IOException {
+        out.writeInt(VERSION);
+        out.writeInt(files.size());
+        for (FileEntry file : files) {
+            out.writeUTF(file.name);
+            out.writeLong(file.length);
+            out.writeLong(file.rows);
+            out.writeUTF(file.schema.toString());
+            writeColumns(out, file.columns);
+            out.writeInt(file.stripes.size());
+            for (StripeEntry stripe : file.stripes) {
+                out.writeLong(stripe.offset);
+                out.writeLong(stripe.length);
+                out.writeLong(stripe.rows);
+                writeColumns(out, stripe.columns);
+            }
+            for (BloomFilter bloom : file.blooms) {
+                if (bloom == null) {
+                    out.writeInt(0);
+                    continue;
+                }
+                out.writeInt(bloom.getNumHashFunctions());
+                long[] bits = bloom.getBitSet();
+                out.writeInt(bits.length);
+                for (long word : bits) {
+                    out.writeLong(word);
+                }
+            }
+        }
+    }
+
+    private static void writeColumns(DataOutputStream out, ColumnStatistics[] columns) throws IOException {
+        for (ColumnStatistics column : columns) {
+            byte[] proto = ((ColumnStatisticsImpl) column).serialize().build().toByteArray();
+            out.writeInt(proto.length);
+            out.write(proto);
+        }
+    }
+
+    public static PartitionManifest read(FileSystem fs, Path path) throws IOException {
+        try (FSDataInputStream in = fs.open(path)) {
+            return read(in);
+        }
+    }
+
+    private static PartitionManifest read(DataInputStream in) throws IOException {
+        int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unknown manifest version " + version);
+        }
+        int fileCount = in.readInt();
+        List<FileEntry> files = new ArrayList<>(fileCount);
+        for (int i = 0; i < fileCount; i++) {
+            String name = in.readUTF();
+            long length = in.readLong();
+            long rows = in.readLong();
+            TypeDescription schema = TypeDescription.fromString(in.readUTF());
+            ColumnStatistics[] columns = readColumns(in, schema);
+            int stripeCount = in.readInt();
+            List<StripeEntry> stripes = new ArrayList<>(stripeCount);
+            for (int s = 0; s < stripeCount; s++) {
+                stripes.add(new StripeEntry(in.readLong(), in.readLong(), in.readLong(), readColumns(in, schema)));
+            }
+            BloomFilter[] blooms = new BloomFilter[columns.length];
+            for (int f = 0; f < blooms.length; f++) {
+                int hashFunctions = in.readInt();
+                if (hashFunctions > 0) {
+                    long[] bits = new long[in.readInt()];
+                    for (int w = 0; w < bits.length; w++) {
+                        bits[w] = in.readLong();
+                    }
+                    blooms[f] = new BloomFilter(bits, hashFunctions);
+                }
+            }
+            files.add(new FileEntry(name, length, rows, schema, columns, stripes, blooms));
+        }
+        return new PartitionManifest(files);
+    }
+
+    private static ColumnStatistics[] readColumns(DataInputStream in, TypeDescription schema) throws IOException {
+        List<TypeDescription> fields = schema.getChildren();
+        ColumnStatistics[] columns = new ColumnStatistics[fields.size()];
+        for (int f = 0; f < columns.length; f++) {
+            byte[] proto = new byte[in.readInt()];
+            in.readFully(proto);
+            columns[f] = ColumnStatisticsImpl.deserialize(fields.get(f), OrcProto.ColumnStatistics.parseFrom(proto));
+        }
+        return columns;
+    }
+}
@@ -0,0 +1,394 @@
+package jheister;
+
+import com.google.gson.stream.JsonToken;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.orc.TypeDescription;
+import org.apache.orc.impl.MemoryManagerImpl;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/*
+ * Routes each row to outputDirectory/<field>=<value>/.../part-NNNNN.orc by the values of one or more
+ * top-level fields, optionally truncated to the year, month or day of a date or timestamp, so one pass over
+ * a stream spanning many dates gives a Hive style layout Athena can prune. Partition fields are read from
+ * the JSON, so they can be left out of the schema.
+ *
+ * Every open partition has its own converter and ORC writer. At most maxOpenWriters are open at once; the
+ * least recently written one is closed to make room and a later row for it starts a new file. All writers
+ * share one ORC memory manager, which shrinks their stripes to keep the buffered data within the memory
+ * budget. A file is rolled once the stripes written to it reach the target size. With manifests in the
+ * writer settings each partition gets one, covering all the files written to it, however often its writer
+ * was closed and reopened.
+ */
+public class PartitionedJsonStreamToOrcConverter {
+    static final String DEFAULT_PARTITION = "__HIVE_DEFAULT_PARTITION__";
+
+    public enum Granularity {
+        VALUE(-1), YEAR(4), MONTH(7), DAY(10);
+
+        private final int length;
+
+        Granularity(int length) {
+            this.length = length;
+        }
+    }
+
+    private final JsonStreamToOrcConverter.Plan plan;
+    private final String outputDirectory;
+    private final String timestampFormat;
+    private final JsonStreamToOrcConverter.Options converterOptions;
+    private final CountingFileSystem fileSystem;
+    private final List<PartitionField> fields;
+    private final int maxOpenWriters;
+    private final long targetFileSize;
+
+    private final LinkedHashMap<String, Partition> open = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Partition> partitions = new HashMap<>();
+    private final Utf8JsonReader reader = new Utf8JsonReader();
+    private final byte[][] values;
+    private final int[] valueLengths;
+    private final boolean[] seen;
+    private byte[] key = new byte[64];
+    private int keyLength;
+    private byte[] lastKey = new byte[0];
+    private Partition last;
+
+    public static void main(String[] args) throws IOException {
+        PartitionedJsonStreamToOrcConverter writer = new PartitionedJsonStreamToOrcConverter(
+                "struct<price_date:string,id:string,close_price:double>", "partitioned", "",
+                new Options().partitionBy("month", "price_date", Granularity.MONTH));
+
+        for (int i = 0; i < 1_000_000; i++) {
+            String date = java.time.LocalDate.parse("2019-01-01").plusDays(i % 365).toString();
+            writer.write("{ \"price_date\": \"" + date + "\", \"id\": \"" + (i % 1000) + "\", \"close_price\": 123.45 }");
+        }
+
+        writer.close().forEach((partition, rows) -> System.out.println(partition + ": " + rows + " rows"));
+    }
+
+    public PartitionedJsonStreamToOrcConverter(String schema, String outputDirectory, String timestampFormat,
+                                               Options options) throws IOException {
+        if (options.fields.isEmpty()) {
+            throw new IllegalArgumentException("No partition fields given");
+        }
+        if (options.maxOpenWriters < 1) {
+            throw new IllegalArgumentException("Max open writers must be at least 1 but was " + options.maxOpenWriters);
+        }
+        this.plan = JsonStreamToOrcConverter.Plan.compile(TypeDescription.fromString(schema));
+        this.outputDirectory = outputDirectory;
+        this.timestampFormat = timestampFormat;
+        this.fields = options.fields;
+        this.maxOpenWriters = options.maxOpenWriters;
+        this.targetFileSize = options.targetFileSize;
+
+        OrcWriterSettings settings = options.converterOptions.getWriterSettings();
+        FileSystem base = settings.getFileSystem() != null
+                ? settings.getFileSystem()
+                : new Path(outputDirectory).getFileSystem(new Configuration());
+        this.fileSystem = new CountingFileSystem(base);
+        // each open writer gets its share of the cluster memory, as its sort buffer is held on top of the stripes
+        this.converterOptions = options.converterOptions.copy().writerSettings(new OrcWriterSettings(settings)
+                .fileSystem(fileSystem)
+                .memoryManager(new MemoryManagerImpl(options.memoryBudget)))
+                .clusterMemory(options.converterOptions.getClusterMemory() / options.maxOpenWriters);
+
+        this.values = new byte[fields.size()][16];
+        this.valueLengths = new int[fields.size()];
+        this.seen = new boolean[fields.size()];
+    }
+
+    public static class Options {
+        private final List<PartitionField> fields = new ArrayList<>();
+        private JsonStreamToOrcConverter.Options converterOptions = new JsonStreamToOrcConverter.Options();
+        private int maxOpenWriters = 64;
+        private long memoryBudget = 512L << 20;
+        private long targetFileSize = 256L << 20;
+
+        public Options partitionBy(String field) {
+            return partitionBy(field, field, Granularity.VALUE);
+        }
+
+        // name=value directory from the first year/month/day characters of an ISO date or timestamp field
+        public Options partitionBy(String name, String field, Granularity granularity) {
+            fields.add(new PartitionField(name, field, granularity));
+            return this;
+        }
+
+        // Writer settings, timestamp zone etc. for every partition's converter; clustering applies per file, with
+        // the cluster memory split between the open writers
+        public Options converterOptions(JsonStreamToOrcConverter.Options options) {
+            this.converterOptions = options;
+            return this;
+        }
+
+        public Options maxOpenWriters(int writers) {
+            this.maxOpenWriters = writers;
+            return this;
+        }
+
+        // Bytes of stripe data the open writers may buffer between them, besides the cluster memory when clustering
+        public Options memoryBudget(long bytes) {
+            this.memoryBudget = bytes;
+            return this;
+        }
+
+        // Starts a new file once this many bytes have been written to the current one, 0 to never roll
+        public Options targetFileSize(long bytes) {
+            this.targetFileSize = bytes;
+            return this;
+        }
+    }
+
+    private static class PartitionField {
+        private final String name;
+        private final byte[] field;
+        private final Granularity granularity;
+
+        PartitionField(String name, String field, Granularity granularity) {
+            this.name = name;
+            this.field = field.getBytes(StandardCharsets.UTF_8);
+            this.granularity = granularity;
+        }
+    }
+
+    private static class Partition {
+        private final String path;
+        private JsonStreamToOrcConverter converter;
+        private ManifestWriter manifest;
+        private Path file;
+        private FSDataOutputStream output;
+        private int files;
+        private long rows;
+
+        Partition(String path) {
+            this.path = path;
+        }
+    }
+
+    public void write(String json) throws IOException {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        write(bytes, 0, bytes.length);
+    }
+
+    public void write(byte[] json, int offset, int length) throws IOException {
+        Partition partition = partitionOf(json, offset, length);
+        if (partition.converter == null) {
+            openFile(partition);
+        } else {
+            // access order, so the writer evicted is the least recently written one
+            open.get(partition.path);
+        }
+        partition.converter.write(json, offset, length);
+        partition.rows++;
+        if (targetFileSize > 0 && bytesWritten(partition) >= targetFileSize) {
+            rollFile(partition);
+        }
+    }
+
+    // rows written per partition path; every file and manifest is closed even when one of them fails
+    public Map<String, Long> close() throws IOException {
+        Exception failure = null;
+        for (Partition partition : open.values()) {
+            try {
+                closeFile(partition);
+            } catch (IOException | RuntimeException e) {
+                failure = addFailure(failure, e);
+            }
+        }
+        open.clear();
+        Map<String, Long> rows = new TreeMap<>();
+        for (Partition partition : partitions.values()) {
+            try {
+                if (partition.manifest != null) {
+                    partition.manifest.close(fileSystem);
+                }
+            } catch (IOException | RuntimeException e) {
+                failure = addFailure(failure, e);
+            }
+            rows.put(partition.path, partition.rows);
+        }
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        } else if (failure != null) {
+            throw (RuntimeException) failure;
+        }
+        return rows;
+    }
+
+    private static Exception addFailure(Exception failure, Exception e) {
+        if (failure == null) {
+            return e;
+        }
+        failure.addSuppressed(e);
+        return failure;
+    }
+
+    private Partition partitionOf(byte[] json, int offset, int length) throws IOException {
+        readPartitionValues(json, offset, length);
+        if (last != null && Arrays.equals(key, 0, keyLength, lastKey, 0, lastKey.length)) {
+            return last;
+        }
+        String path = partitionPath();
+        Partition partition = partitions.computeIfAbsent(path, Partition::new);
+        lastKey = Arrays.copyOf(key, keyLength);
+        last = partition;
+        return partition;
+    }
+
+    // stops at the last partition field; the rest of the row is checked when the converter parses it
+    private void readPartitionValues(byte[] json, int offset, int length) throws IOException {
+        Arrays.fill(valueLengths, -1);
+        Arrays.fill(seen, false);
+        int remaining = fields.size();
+        reader.reset(json, offset, length);
+        reader.beginObject();
+        while (remaining > 0 && reader.hasNext()) {
+            reader.nextName();
+            int f = fieldIndex(reader.sliceBuf(), reader.sliceStart(), reader.sliceLength());
+            if (f < 0 || seen[f]) {
+                reader.skipValue();
+                continue;
+            }
+            seen[f] = true;
+            remaining--;
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+            } else {
+                JsonToken token = reader.peek();
+                if (token != JsonToken.STRING && token != JsonToken.NUMBER && token != JsonToken.BOOLEAN) {
+                    throw new IllegalArgumentException("Can't partition by " + token + " field " + fields.get(f).name);
+                }
+                reader.nextSlice();
+                setValue(f, reader.sliceBuf(), reader.sliceStart(), reader.sliceLength());
+            }
+        }
+
+        keyLength = 0;
+        for (int f = 0; f < fields.size(); f++) {
+            int valueLength = valueLengths[f];
+            ensureKey(keyLength + Math.max(valueLength, 0) + 1);
+            if (valueLength >= 0) {
+                System.arraycopy(values[f], 0, key, keyLength, valueLength);
+                keyLength += valueLength;
+            }
+            // separates values and tells missing from empty
+            key[keyLength++] = (byte) (valueLength >= 0 ? 0 : 1);
+        }
+    }
+
+    private int fieldIndex(byte[] buf, int start, int length) {
+        for (int f = 0; f < fields.size(); f++) {
+            byte[] field = fields.get(f).field;
+            if (Arrays.equals(field, 0, field.length, buf, start, start + length)) {
+                return f;
+            }
+        }
+        return -1;
+    }
+
+    private void setValue(int f, byte[] buf, int start, int length) {
+        Granularity granularity = fields.get(f).granularity;
+        if (granularity != Granularity.VALUE) {
+            if (length < granularity.length) {
+                throw new IllegalArgumentException("Can't take the " + granularity + " of "
+                        + new String(buf, start, length, StandardCharsets.UTF_8));
+            }
+            length = granularity.length;
+        }
+        if (values[f].length < length) {
+            values[f] = new byte[Math.max(length, values[f].length * 2)];
+        }
+        System.arraycopy(buf, start, values[f], 0, length);
+        valueLengths[f] = length;
+    }
+
+    private void ensureKey(int size) {
+        if (key.length < size) {
+            key = Arrays.copyOf(key, Math.max(size, key.length * 2));
+        }
+    }
+
+    private String partitionPath() {
+        StringBuilder path = new StringBuilder();
+        for (int f = 0; f < fields.size(); f++) {
+            if (f > 0) {
+                path.append('/');
+            }
+            path.append(fields.get(f).name).append('=');
+            if (valueLengths[f] < 0) {
+                path.append(DEFAULT_PARTITION);
+            } else {
+                escape(new String(values[f], 0, valueLengths[f], StandardCharsets.UTF_8), path);
+            }
+        }
+        return path.toString();
+    }
+
+    // same characters as Hive's FileUtils.escapePathName
+    private static void escape(String value, StringBuilder out) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < ' ' || "\"#%'*/:=?\\\u007f{[]^".indexOf(c) >= 0) {
+                out.append('%').append(String.format("%02X", (int) c));
+            } else {
+                out.append(c);
+            }
+        }
+    }
+
+    private void openFile(Partition partition) throws IOException {
+        if (open.size() >= maxOpenWriters) {
+            Iterator<Partition> eldest = open.values().iterator();
+            closeFile(eldest.next());
+            eldest.remove();
+        }
+        partition.file = nextFile(partition);
+        if (partition.manifest == null) {
+            partition.manifest = ManifestWriter.of(converterOptions.getWriterSettings(), plan.schema);
+        }
+        partition.converter = new JsonStreamToOrcConverter(plan, partition.file.toString(), timestampFormat, converterOptions,
+                partition.manifest);
+        partition.output = fileSystem.take(partition.file);
+        open.put(partition.path, partition);
+    }
+
+    // the converter is kept and creates the next file once it has rows for it
+    private void rollFile(Partition partition) throws IOException {
+        partition.file = nextFile(partition);
+        partition.converter.roll(partition.file.toString());
+        partition.output = null;
+    }
+
+    private Path nextFile(Partition partition) {
+        return new Path(outputDirectory + "/" + partition.path + "/" + ParallelJsonStreamToOrcConverter.partName(partition.files++));
+    }
+
+    private long bytesWritten(Partition partition) {
+        if (partition.output == null) {
+            partition.output = fileSystem.take(partition.file);
+        }
+        return partition.output == null ? 0 : partition.output.getPos();
+    }
+
+    private void closeFile(Partition partition) throws IOException {
+        try {
+            partition.converter.close();
+        } finally {
+            partition.converter = null;
+            partition.file = null;
+            partition.output = null;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package jheister;
+
+import org.apache.hadoop.hive.ql.exec.vector.VectorizedRowBatch;
+import org.apache.orc.Writer;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+// Encodes and compresses filled batches on a background thread while the caller fills the next one
+// from a small pool of recycled batches.
+class PipelinedBatchSink implements BatchSink {
+    private static final VectorizedRowBatch END_OF_INPUT = new VectorizedRowBatch(0);
+
+    private final Writer writer;
+    private final BlockingQueue<VectorizedRowBatch> filled;
+    private final BlockingQueue<VectorizedRowBatch> free;
+    private final Thread thread;
+    private final MetricsRegistry.Histogram addRowBatchNanos;
+    private volatile Throwable failure;
+
+    PipelinedBatchSink(Writer writer, Supplier<VectorizedRowBatch> batches, int depth) {
+        this(writer, batches, depth, MetricsRegistry.NONE.histogram(""));
+    }
+
+    PipelinedBatchSink(Writer writer, Supplier<VectorizedRowBatch> batches, int depth,
+                       MetricsRegistry.Histogram addRowBatchNanos) {
+        this.writer = writer;
+        this.addRowBatchNanos = addRowBatchNanos;
+        this.filled = new ArrayBlockingQueue<>(depth);
+        this.free = new ArrayBlockingQueue<>(depth);
+        // the caller is already filling one batch of its own
+        for (int i = 1; i < depth; i++) {
+            free.add(batches.get());
+        }
+        thread = new Thread(this::run, "orc-writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void run() {
+        try {
+            VectorizedRowBatch batch;
+            while ((batch = filled.take()) != END_OF_INPUT) {
+                long start = System.nanoTime();
+                writer.addRowBatch(batch);
+                addRowBatchNanos.record(System.nanoTime() - start);
+                batch.reset();
+                free.put(batch);
+            }
+        } catch (Throwable t) {
+            failure = t;
+        }
+    }
+
+    public VectorizedRowBatch flush(VectorizedRowBatch batch) throws IOException {
+        try {
+            offer(batch);
+            VectorizedRowBatch next;
+            while ((next = free.poll(100, TimeUnit.MILLISECONDS)) == null) {
+                checkFailure();
+            }
+            return next;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+    }
+
+    public void close() throws IOException {
+        try {
+            offer(END_OF_INPUT);
+            thread.join();
+            checkFailure();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            // it may still be writing, so the writer can't be closed from here
+            thread.interrupt();
+            throw new IOException(e);
+        } catch (IOException e) {
+            // the writer thread has stopped; the file is closed all the same so its stream isn't leaked
+            try {
+                writer.close();
+            } catch (IOException | RuntimeException closing) {
+                e.addSuppressed(closing);
+            }
+            throw e;
+        }
+        writer.close();
+    }
+
+    private void offer(VectorizedRowBatch batch) throws InterruptedException, IOException {
+        while (!filled.offer(batch, 100, TimeUnit.MILLISECONDS)) {
+            checkFailure();
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure != null) {
+            throw new IOException("Writing batch failed", failure);
+        }
+    }
+}
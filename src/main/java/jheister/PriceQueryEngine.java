@@ -0,0 +1,418 @@
+package jheister;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.LocatedFileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hive.common.type.HiveDecimal;
+import org.apache.hadoop.hive.ql.exec.vector.BytesColumnVector;
+import org.apache.hadoop.hive.ql.exec.vector.ColumnVector;
+import org.apache.hadoop.hive.ql.exec.vector.DecimalColumnVector;
+import org.apache.hadoop.hive.ql.exec.vector.DoubleColumnVector;
+import org.apache.hadoop.hive.ql.exec.vector.LongColumnVector;
+import org.apache.hadoop.hive.ql.exec.vector.TimestampColumnVector;
+import org.apache.hadoop.hive.ql.exec.vector.VectorizedRowBatch;
+import org.apache.hadoop.hive.ql.io.sarg.PredicateLeaf;
+import org.apache.hadoop.hive.ql.io.sarg.SearchArgument;
+import org.apache.hadoop.hive.ql.io.sarg.SearchArgumentFactory;
+import org.apache.hadoop.hive.serde2.io.HiveDecimalWritable;
+import org.apache.orc.TypeDescription;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.sql.Date;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import static java.util.stream.Collectors.toList;
+
+/*
+ * Answers small queries against a price feed laid out as base/month=yyyy-MM/*.orc directly from the ORC
+ * files, instead of going through Athena. A query only opens the files of months overlapping its date
+ * range, pushes its predicate down so ORC skips stripes and row groups by their statistics and bloom
+ * filters, and reads the remaining files in parallel on a fork-join pool. Files with a partition manifest
+ * (see PartitionManifest) that rule the query out aren't opened at all, and of the others only the stripes
+ * from the first to the last that can match are read. The file listing, manifests and file tails are
+ * cached, so a warm point lookup only reads the row groups it needs.
+ *
+ * Rows returned by scan() match the predicate exactly: it is evaluated again on every row read, since ORC
+ * only uses it to skip whole row groups.
+ */
+public class PriceQueryEngine implements Closeable {
+    public static final String DATE_COLUMN = "price_date";
+    public static final String ID_COLUMN = "id";
+    public static final String PRICE_COLUMN = "close_price";
+    private static final String MONTH_PARTITION = "month=";
+
+    private final Path base;
+    private final Configuration conf;
+    private final OrcTailCache tailCache;
+    private final ForkJoinPool pool;
+    private volatile ManifestIndex index;
+
+    public PriceQueryEngine(String baseUri) {
+        this(baseUri, new Options());
+    }
+
+    public PriceQueryEngine(String baseUri, Options options) {
+        this.base = OrcSliceReader.toPath(baseUri);
+        this.conf = options.conf != null ? options.conf : OrcSliceReader.defaultConfiguration();
+        this.tailCache = options.tailCache != null ? options.tailCache : new OrcTailCache(64L << 20);
+        this.pool = new ForkJoinPool(options.parallelism);
+    }
+
+    public static class Options {
+        private int parallelism = 16;
+        private Configuration conf;
+        private OrcTailCache tailCache;
+
+        // files read at once; reads mostly wait on S3, so this can be well above the number of cores
+        public Options parallelism(int files) {
+            this.parallelism = files;
+            return this;
+        }
+
+        public Options configuration(Configuration conf) {
+            this.conf = conf;
+            return this;
+        }
+
+        // by default each engine has its own 64MB cache
+        public Options tailCache(OrcTailCache cache) {
+            this.tailCache = cache;
+            return this;
+        }
+    }
+
+    public static class Scan {
+        private List<String> columns = Collections.emptyList();
+        private SearchArgument predicate;
+        private LocalDate from = LocalDate.MIN;
+        private LocalDate to = LocalDate.MAX;
+        private long limit = Long.MAX_VALUE;
+
+        // columns of the returned rows in this order, all of them in file order if none are given
+        public Scan select(String... columns) {
+            this.columns = Arrays.asList(columns);
+            return this;
+        }
+
+        public Scan where(SearchArgument predicate) {
+            this.predicate = predicate;
+            return this;
+        }
+
+        // inclusive range of price_date; months outside it aren't opened
+        public Scan between(LocalDate from, LocalDate to) {
+            this.from = from;
+            this.to = to;
+            return this;
+        }
+
+        public Scan limit(long rows) {
+            this.limit = rows;
+            return this;
+        }
+
+        private boolean hasDateRange() {
+            return !LocalDate.MIN.equals(from) || !LocalDate.MAX.equals(to);
+        }
+    }
+
+    // close prices of one instrument by date, for dates in [from, to]
+    public SortedMap<LocalDate, Double> lookup(String id, LocalDate from, LocalDate to) throws IOException {
+        SearchArgument predicate = SearchArgumentFactory.newBuilder()
+                .startAnd()
+                .equals(ID_COLUMN, PredicateLeaf.Type.STRING, id)
+                .between(DATE_COLUMN, PredicateLeaf.Type.DATE, Date.valueOf(from), Date.valueOf(to))
+                .end()
+                .build();
+        SortedMap<LocalDate, Double> prices = new TreeMap<>();
+        for (Object[] row : scan(new Scan().select(DATE_COLUMN, PRICE_COLUMN).where(predicate).between(from, to))) {
+            prices.put((LocalDate) row[0], (Double) row[1]);
+        }
+        return prices;
+    }
+
+    /*
+     * Rows as arrays of the selected columns. Values are Long for integer columns, Double, String, Boolean,
+     * LocalDate, Instant, BigDecimal and byte[]; nested columns can't be selected. Rows of one file are in
+     * file order and files are in listing order. With a limit, the files are still read in parallel, each up
+     * to the limit, and the first rows in that order are returned.
+     */
+    public List<Object[]> scan(Scan scan) throws IOException {
+        List<ForkJoinTask<List<Object[]>>> tasks = index().plan(files(scan), scan.predicate, dateRange(scan)).stream()
+                .map(plan -> ForkJoinTask.adapt(() -> scanFile(plan, scan)))
+                .collect(toList());
+        List<Object[]> rows = new ArrayList<>();
+        try {
+            pool.submit(() -> ForkJoinTask.invokeAll(tasks)).join();
+            for (ForkJoinTask<List<Object[]>> task : tasks) {
+                rows.addAll(task.join());
+            }
+        } catch (RuntimeException e) {
+            for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+                if (cause instanceof IOException) {
+                    throw new IOException("Scan of " + base + " failed", cause);
+                }
+            }
+            throw e;
+        }
+        return rows.size() > scan.limit ? rows.subList(0, (int) scan.limit) : rows;
+    }
+
+    private List<Object[]> scanFile(ManifestIndex.Plan plan, Scan scan) throws IOException {
+        Path file = plan.getFile().getPath();
+        List<Object[]> rows = new ArrayList<>();
+        if (scan.limit <= 0) {
+            return rows;
+        }
+        List<String> columns = new ArrayList<>(scan.columns);
+        if (!columns.isEmpty() && scan.hasDateRange() && !columns.contains(DATE_COLUMN)) {
+            // rows outside the range are only dropped if their date is read
+            columns.add(DATE_COLUMN);
+        }
+        OrcSliceReader.Options options = new OrcSliceReader.Options()
+                .select(columns.toArray(new String[0]))
+                .configuration(conf)
+                .tailCache(tailCache);
+        SearchArgument predicate = scan.predicate != null ? scan.predicate : dateRange(scan);
+        if (predicate != null) {
+            options.where(predicate);
+        }
+        List<PartitionManifest.StripeEntry> stripes = plan.getStripes();
+        if (stripes != null) {
+            PartitionManifest.StripeEntry last = stripes.get(stripes.size() - 1);
+            options.range(stripes.get(0).getOffset(), last.getOffset() + last.getLength() - stripes.get(0).getOffset());
+        }
+        try (OrcSliceReader reader = new OrcSliceReader(file.toString(), options)) {
+            TypeDescription schema = reader.getSchema();
+            List<String> names = schema.getFieldNames();
+            List<String> selected = scan.columns.isEmpty() ? reader.getReader().getSchema().getFieldNames() : scan.columns;
+            int[] output = selected.stream().mapToInt(names::indexOf).toArray();
+            List<PredicateLeaf> leaves = predicate != null ? predicate.getLeaves() : Collections.emptyList();
+            int[] leafColumns = leaves.stream().mapToInt(leaf -> names.indexOf(leaf.getColumnName())).toArray();
+            int dateColumn = names.indexOf(DATE_COLUMN);
+            SearchArgument.TruthValue[] truth = new SearchArgument.TruthValue[leaves.size()];
+
+            VectorizedRowBatch batch = reader.createBatch();
+            while (reader.nextBatch(batch)) {
+                for (int r = 0; r < batch.size; r++) {
+                    if (dateColumn >= 0 && !inRange(value(batch.cols[dateColumn], schema.getChildren().get(dateColumn), r), scan)) {
+                        continue;
+                    }
+                    if (predicate != null) {
+                        for (int l = 0; l < truth.length; l++) {
+                            int c = leafColumns[l];
+                            truth[l] = evaluate(leaves.get(l), value(batch.cols[c], schema.getChildren().get(c), r));
+                        }
+                        if (predicate.evaluate(truth) != SearchArgument.TruthValue.YES) {
+                            continue;
+                        }
+                    }
+                    Object[] row = new Object[output.length];
+                    for (int c = 0; c < output.length; c++) {
+                        row[c] = value(batch.cols[output[c]], schema.getChildren().get(output[c]), r);
+                    }
+                    rows.add(row);
+                    if (rows.size() >= scan.limit) {
+                        return rows;
+                    }
+                }
+            }
+        }
+        return rows;
+    }
+
+    private static SearchArgument dateRange(Scan scan) {
+        if (!scan.hasDateRange()) {
+            return null;
+        }
+        return SearchArgumentFactory.newBuilder()
+                .startAnd()
+                .between(DATE_COLUMN, PredicateLeaf.Type.DATE,
+                        Date.valueOf(LocalDate.MIN.equals(scan.from) ? LocalDate.of(1, 1, 1) : scan.from),
+                        Date.valueOf(LocalDate.MAX.equals(scan.to) ? LocalDate.of(9999, 12, 31) : scan.to))
+                .end()
+                .build();
+    }
+
+    private static boolean inRange(Object date, Scan scan) {
+        if (!scan.hasDateRange()) {
+            return true;
+        }
+        return date != null && !((LocalDate) date).isBefore(scan.from) && !((LocalDate) date).isAfter(scan.to);
+    }
+
+    // SQL semantics: comparisons with null are NULL, and only YES rows are returned
+    @SuppressWarnings("unchecked")
+    private static SearchArgument.TruthValue evaluate(PredicateLeaf leaf, Object value) {
+        if (leaf.getOperator() == PredicateLeaf.Operator.IS_NULL) {
+            return value == null ? SearchArgument.TruthValue.YES : SearchArgument.TruthValue.NO;
+        }
+        if (value == null) {
+            return leaf.getOperator() == PredicateLeaf.Operator.NULL_SAFE_EQUALS
+                    ? SearchArgument.TruthValue.NO : SearchArgument.TruthValue.NULL;
+        }
+        Comparable<Object> row = (Comparable<Object>) value;
+        boolean result;
+        switch (leaf.getOperator()) {
+            case EQUALS:
+            case NULL_SAFE_EQUALS:
+                result = row.compareTo(literal(leaf.getLiteral())) == 0;
+                break;
+            case LESS_THAN:
+                result = row.compareTo(literal(leaf.getLiteral())) < 0;
+                break;
+            case LESS_THAN_EQUALS:
+                result = row.compareTo(literal(leaf.getLiteral())) <= 0;
+                break;
+            case BETWEEN:
+                result = row.compareTo(literal(leaf.getLiteralList().get(0))) >= 0
+                        && row.compareTo(literal(leaf.getLiteralList().get(1))) <= 0;
+                break;
+            case IN:
+                result = leaf.getLiteralList().stream().anyMatch(literal -> row.compareTo(literal(literal)) == 0);
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported operator " + leaf.getOperator());
+        }
+        return result ? SearchArgument.TruthValue.YES : SearchArgument.TruthValue.NO;
+    }
+
+    // the types value() returns for a column, which SearchArgument literals aren't
+    private static Object literal(Object literal) {
+        if (literal instanceof Date) {
+            return ((Date) literal).toLocalDate();
+        } else if (literal instanceof Timestamp) {
+            return ((Timestamp) literal).toInstant();
+        } else if (literal instanceof HiveDecimalWritable) {
+            return ((HiveDecimalWritable) literal).getHiveDecimal().bigDecimalValue();
+        } else if (literal instanceof HiveDecimal) {
+            return ((HiveDecimal) literal).bigDecimalValue();
+        } else if (literal instanceof Integer || literal instanceof Short || literal instanceof Byte) {
+            return ((Number) literal).longValue();
+        } else if (literal instanceof Float) {
+            return ((Float) literal).doubleValue();
+        }
+        return literal;
+    }
+
+    private static Object value(ColumnVector col, TypeDescription type, int row) {
+        if (col.isRepeating) {
+            row = 0;
+        }
+        if (!col.noNulls && col.isNull[row]) {
+            return null;
+        }
+        switch (type.getCategory()) {
+            case BOOLEAN:
+                return ((LongColumnVector) col).vector[row] != 0;
+            case BYTE:
+            case SHORT:
+            case INT:
+            case LONG:
+                return ((LongColumnVector) col).vector[row];
+            case DATE:
+                return LocalDate.ofEpochDay(((LongColumnVector) col).vector[row]);
+            case FLOAT:
+            case DOUBLE:
+                return ((DoubleColumnVector) col).vector[row];
+            case STRING:
+            case VARCHAR:
+            case CHAR:
+                return ((BytesColumnVector) col).toString(row);
+            case BINARY:
+                BytesColumnVector bytes = (BytesColumnVector) col;
+                return Arrays.copyOfRange(bytes.vector[row], bytes.start[row], bytes.start[row] + bytes.length[row]);
+            case DECIMAL:
+                return ((DecimalColumnVector) col).vector[row].getHiveDecimal().bigDecimalValue();
+            case TIMESTAMP:
+                TimestampColumnVector timestamps = (TimestampColumnVector) col;
+                return Instant.ofEpochSecond(Math.floorDiv(timestamps.time[row], 1000), timestamps.nanos[row]);
+            default:
+                throw new IllegalArgumentException("Can't return " + type + " columns");
+        }
+    }
+
+    // data files of the months overlapping the scan's date range, plus any outside month= partitions
+    private List<LocatedFileStatus> files(Scan scan) throws IOException {
+        List<LocatedFileStatus> matching = new ArrayList<>();
+        for (LocatedFileStatus file : listing()) {
+            String partition = monthPartition(file.getPath());
+            if (partition == null || !scan.hasDateRange()) {
+                matching.add(file);
+                continue;
+            }
+            YearMonth month;
+            try {
+                month = YearMonth.parse(partition);
+            } catch (DateTimeParseException e) {
+                // e.g. __HIVE_DEFAULT_PARTITION__, whose rows have no date to be in a range
+                continue;
+            }
+            if (!month.atEndOfMonth().isBefore(scan.from) && !month.atDay(1).isAfter(scan.to)) {
+                matching.add(file);
+            }
+        }
+        return matching;
+    }
+
+    private List<LocatedFileStatus> listing() throws IOException {
+        return index().getFiles();
+    }
+
+    private ManifestIndex index() throws IOException {
+        ManifestIndex current = index;
+        if (current == null) {
+            current = ManifestIndex.load(base.getFileSystem(conf), base);
+            index = current;
+        }
+        return current;
+    }
+
+    private static String monthPartition(Path file) {
+        for (Path p = file.getParent(); p != null; p = p.getParent()) {
+            if (p.getName().startsWith(MONTH_PARTITION)) {
+                return p.getName().substring(MONTH_PARTITION.length());
+            }
+        }
+        return null;
+    }
+
+    // lists the files and reads the manifests again on the next query, for when partitions were added or rewritten
+    public void refresh() {
+        index = null;
+    }
+
+    public void close() {
+        pool.shutdown();
+    }
+
+    // args: baseUri id [from to]
+    public static void main(String[] args) throws IOException {
+        LocalDate from = args.length > 3 ? LocalDate.parse(args[2]) : LocalDate.of(1, 1, 1);
+        LocalDate to = args.length > 3 ? LocalDate.parse(args[3]) : LocalDate.of(9999, 12, 31);
+        try (PriceQueryEngine engine = new PriceQueryEngine(args[0])) {
+            for (int i = 0; i < 3; i++) {
+                long started = System.nanoTime();
+                SortedMap<LocalDate, Double> prices = engine.lookup(args[1], from, to);
+                long micros = (System.nanoTime() - started) / 1000;
+                if (i == 0) {
+                    prices.forEach((date, price) -> System.out.println(date + "\t" + price));
+                }
+                System.out.println(prices.size() + " prices in " + micros / 1000.0 + "ms");
+            }
+        }
+    }
+}
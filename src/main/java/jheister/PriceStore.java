@@ -0,0 +1,314 @@
+package jheister;
+
+import org.apache.hadoop.hive.ql.exec.vector.BytesColumnVector;
+import org.apache.hadoop.hive.ql.exec.vector.DoubleColumnVector;
+import org.apache.hadoop.hive.ql.exec.vector.LongColumnVector;
+import org.apache.hadoop.hive.ql.exec.vector.VectorizedRowBatch;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Read-only in-memory copy of price files (struct<price_date:date,id:string,close_price:double>) for
+ * serving and backtests. Ids are dictionary encoded to their rank in sorted order, and rows are kept sorted
+ * by (id, date) in two primitive columns, int epoch days and double prices, with each id's rows at
+ * offsets[id] until offsets[id + 1]. That is 12 bytes per row plus the id strings, once per id, instead
+ * of a boxed object graph per price. Finding an id and then a date are both binary searches.
+ *
+ * A null close price is stored as NaN. Rows with the same id and date in several files are all kept.
+ */
+public class PriceStore {
+    private final String[] ids;
+    private final int[] offsets;
+    private final int[] dates;
+    private final double[] prices;
+
+    private PriceStore(String[] ids, int[] offsets, int[] dates, double[] prices) {
+        this.ids = ids;
+        this.offsets = offsets;
+        this.dates = dates;
+        this.prices = prices;
+    }
+
+    // loads the files, local paths or s3:// uris, up to parallelism at a time
+    public static PriceStore load(List<String> uris, int parallelism) throws IOException {
+        AtomicInteger threads = new AtomicInteger();
+        ExecutorService workers = Executors.newFixedThreadPool(parallelism, r -> {
+            Thread thread = new Thread(r, "price-store-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        List<Future<Chunk>> futures = new ArrayList<>();
+        for (String uri : uris) {
+            futures.add(workers.submit(() -> Chunk.read(uri)));
+        }
+        List<Chunk> chunks = new ArrayList<>();
+        try {
+            for (Future<Chunk> future : futures) {
+                chunks.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted loading prices", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Loading prices failed", e.getCause());
+        } finally {
+            workers.shutdownNow();
+        }
+        return build(chunks);
+    }
+
+    // the rows of one file, with ids coded in the order the file first has them
+    private static class Chunk {
+        private final List<String> ids = new ArrayList<>();
+        private int[] idCodes = new int[1024];
+        private int[] dates = new int[1024];
+        private double[] prices = new double[1024];
+        private int size;
+
+        static Chunk read(String uri) throws IOException {
+            Chunk chunk = new Chunk();
+            Map<String, Integer> codes = new HashMap<>();
+            try (OrcSliceReader reader = new OrcSliceReader(uri, new OrcSliceReader.Options()
+                    .select(PriceQueryEngine.DATE_COLUMN, PriceQueryEngine.ID_COLUMN, PriceQueryEngine.PRICE_COLUMN)
+                    .batchSize(MappedOrcColumns.DEFAULT_BATCH_SIZE))) {
+                List<String> names = reader.getSchema().getFieldNames();
+                int dateColumn = names.indexOf(PriceQueryEngine.DATE_COLUMN);
+                int idColumn = names.indexOf(PriceQueryEngine.ID_COLUMN);
+                int priceColumn = names.indexOf(PriceQueryEngine.PRICE_COLUMN);
+                VectorizedRowBatch batch = reader.createBatch();
+                while (reader.nextBatch(batch)) {
+                    LongColumnVector dates = (LongColumnVector) batch.cols[dateColumn];
+                    BytesColumnVector ids = (BytesColumnVector) batch.cols[idColumn];
+                    DoubleColumnVector prices = (DoubleColumnVector) batch.cols[priceColumn];
+                    chunk.ensureCapacity(chunk.size + batch.size);
+                    for (int r = 0; r < batch.size; r++) {
+                        int dateRow = dates.isRepeating ? 0 : r;
+                        int idRow = ids.isRepeating ? 0 : r;
+                        int priceRow = prices.isRepeating ? 0 : r;
+                        if (!dates.noNulls && dates.isNull[dateRow] || !ids.noNulls && ids.isNull[idRow]) {
+                            continue;
+                        }
+                        String id = ids.toString(idRow);
+                        Integer code = codes.get(id);
+                        if (code == null) {
+                            code = chunk.ids.size();
+                            codes.put(id, code);
+                            chunk.ids.add(id);
+                        }
+                        chunk.idCodes[chunk.size] = code;
+                        chunk.dates[chunk.size] = Math.toIntExact(dates.vector[dateRow]);
+                        chunk.prices[chunk.size] = !prices.noNulls && prices.isNull[priceRow] ? Double.NaN : prices.vector[priceRow];
+                        chunk.size++;
+                    }
+                }
+            }
+            return chunk;
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity > dates.length) {
+                int grown = Math.max(capacity, dates.length * 2);
+                idCodes = Arrays.copyOf(idCodes, grown);
+                dates = Arrays.copyOf(dates, grown);
+                prices = Arrays.copyOf(prices, grown);
+            }
+        }
+    }
+
+    private static PriceStore build(List<Chunk> chunks) {
+        Map<String, Integer> ranks = new HashMap<>();
+        for (Chunk chunk : chunks) {
+            for (String id : chunk.ids) {
+                ranks.putIfAbsent(id, 0);
+            }
+        }
+        String[] ids = ranks.keySet().toArray(new String[0]);
+        Arrays.sort(ids);
+        for (int i = 0; i < ids.length; i++) {
+            ranks.put(ids[i], i);
+        }
+
+        // counting sort by id; rows of an id keep the order they were loaded in
+        int[] offsets = new int[ids.length + 1];
+        int[][] remaps = new int[chunks.size()][];
+        for (int c = 0; c < chunks.size(); c++) {
+            Chunk chunk = chunks.get(c);
+            remaps[c] = chunk.ids.stream().mapToInt(ranks::get).toArray();
+            for (int r = 0; r < chunk.size; r++) {
+                offsets[remaps[c][chunk.idCodes[r]] + 1]++;
+            }
+        }
+        for (int i = 0; i < ids.length; i++) {
+            offsets[i + 1] += offsets[i];
+        }
+        int rows = offsets[ids.length];
+        int[] dates = new int[rows];
+        double[] prices = new double[rows];
+        int[] next = Arrays.copyOf(offsets, ids.length);
+        for (int c = 0; c < chunks.size(); c++) {
+            Chunk chunk = chunks.get(c);
+            for (int r = 0; r < chunk.size; r++) {
+                int row = next[remaps[c][chunk.idCodes[r]]]++;
+                dates[row] = chunk.dates[r];
+                prices[row] = chunk.prices[r];
+            }
+            // the chunk's arrays can go before the next one is copied
+            chunks.set(c, null);
+        }
+        for (int i = 0; i < ids.length; i++) {
+            sortByDate(dates, prices, offsets[i], offsets[i + 1]);
+        }
+        return new PriceStore(ids, offsets, dates, prices);
+    }
+
+    // files loaded in date order leave every id already sorted, so check before sorting
+    private static void sortByDate(int[] dates, double[] prices, int from, int to) {
+        boolean sorted = true;
+        for (int r = from + 1; r < to && sorted; r++) {
+            sorted = dates[r - 1] <= dates[r];
+        }
+        if (sorted) {
+            return;
+        }
+        long[] keys = new long[to - from];
+        for (int r = from; r < to; r++) {
+            keys[r - from] = ((long) dates[r] << 32) | (r - from);
+        }
+        Arrays.sort(keys);
+        double[] copy = Arrays.copyOfRange(prices, from, to);
+        for (int k = 0; k < keys.length; k++) {
+            dates[from + k] = (int) (keys[k] >> 32);
+            prices[from + k] = copy[(int) keys[k]];
+        }
+    }
+
+    // rows of one id between two dates, as indexes into the store's columns
+    public class Range {
+        private final int from;
+        private final int to;
+
+        private Range(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        public int size() {
+            return to - from;
+        }
+
+        public long epochDay(int i) {
+            return dates[from + i];
+        }
+
+        public LocalDate date(int i) {
+            return LocalDate.ofEpochDay(dates[from + i]);
+        }
+
+        public double price(int i) {
+            return prices[from + i];
+        }
+    }
+
+    // position of the id in the sorted dictionary, or -1 if there are no prices for it
+    public int idIndex(String id) {
+        int index = Arrays.binarySearch(ids, id);
+        return index < 0 ? -1 : index;
+    }
+
+    // close price of the id on the date, NaN if there is none
+    public double price(String id, LocalDate date) {
+        int index = idIndex(id);
+        long day = date.toEpochDay();
+        // dates are stored as int epoch days, so none can be outside that range
+        if (index < 0 || day != (int) day) {
+            return Double.NaN;
+        }
+        int row = Arrays.binarySearch(dates, offsets[index], offsets[index + 1], (int) day);
+        return row < 0 ? Double.NaN : prices[row];
+    }
+
+    // prices of the id for dates in [from, to]
+    public Range range(String id, LocalDate from, LocalDate to) {
+        int index = idIndex(id);
+        if (index < 0) {
+            return new Range(0, 0);
+        }
+        int start = lowerBound(offsets[index], offsets[index + 1], from.toEpochDay());
+        int end = lowerBound(start, offsets[index + 1], to.toEpochDay() + 1);
+        return new Range(start, end);
+    }
+
+    // first row in [from, to) with a date not before the day
+    private int lowerBound(int from, int to, long epochDay) {
+        while (from < to) {
+            int mid = (from + to) >>> 1;
+            if (dates[mid] < epochDay) {
+                from = mid + 1;
+            } else {
+                to = mid;
+            }
+        }
+        return from;
+    }
+
+    public int size() {
+        return dates.length;
+    }
+
+    public int idCount() {
+        return ids.length;
+    }
+
+    // rough heap footprint of the columns and the id dictionary
+    public long estimateBytes() {
+        long bytes = 12L * dates.length + 4L * offsets.length + 8L * ids.length;
+        for (String id : ids) {
+            // String header and its byte[]
+            bytes += 24 + 16 + id.length();
+        }
+        return bytes;
+    }
+
+    // args: directory of price files (searched recursively for .orc files) [id]
+    public static void main(String[] args) throws IOException {
+        List<String> files = new ArrayList<>();
+        collect(new File(args.length > 0 ? args[0] : "."), files);
+        files.sort(null);
+        long started = System.nanoTime();
+        PriceStore store = load(files, Runtime.getRuntime().availableProcessors());
+        System.out.printf("Loaded %d prices of %d ids from %d files in %d ms, ~%d bytes per price%n", store.size(),
+                store.idCount(), files.size(), (System.nanoTime() - started) / 1_000_000,
+                store.size() == 0 ? 0 : store.estimateBytes() / store.size());
+        if (args.length > 1) {
+            Range range = store.range(args[1], LocalDate.MIN, LocalDate.MAX);
+            for (int i = 0; i < range.size(); i++) {
+                System.out.println(range.date(i) + "\t" + range.price(i));
+            }
+        }
+    }
+
+    private static void collect(File file, List<String> files) {
+        File[] children = file.listFiles();
+        if (children == null) {
+            if (file.getName().endsWith(".orc")) {
+                files.add(file.getAbsolutePath());
+            }
+            return;
+        }
+        for (File child : children) {
+            collect(child, files);
+        }
+    }
+}
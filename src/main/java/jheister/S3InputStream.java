@@ -0,0 +1,104 @@
+package jheister;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import org.apache.hadoop.fs.FSInputStream;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/*
+ * Reads an object with a ranged get from the current position to its end, started again after every seek,
+ * so a reader that fetches the file tail and then single stripes only downloads the bytes it reads.
+ */
+class S3InputStream extends FSInputStream {
+    private final AmazonS3 s3;
+    private final String bucket;
+    private final String key;
+    private final long length;
+
+    // null until the next read after opening or seeking
+    private InputStream in;
+    private long pos;
+    private boolean closed;
+
+    S3InputStream(AmazonS3 s3, String bucket, String key, long length) {
+        this.s3 = s3;
+        this.bucket = bucket;
+        this.key = key;
+        this.length = length;
+    }
+
+    @Override
+    public void seek(long target) throws IOException {
+        if (target < 0 || target > length) {
+            throw new EOFException("Can't seek to " + target + " in s3://" + bucket + "/" + key + " of " + length + " bytes");
+        }
+        if (target != pos) {
+            closeContent();
+            pos = target;
+        }
+    }
+
+    @Override
+    public long getPos() {
+        return pos;
+    }
+
+    @Override
+    public boolean seekToNewSource(long target) {
+        return false;
+    }
+
+    @Override
+    public int available() {
+        return (int) Math.min(length - pos, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (len == 0) {
+            return 0;
+        }
+        if (pos >= length) {
+            return -1;
+        }
+        if (in == null) {
+            try {
+                in = s3.getObject(new GetObjectRequest(bucket, key).withRange(pos, length - 1)).getObjectContent();
+            } catch (RuntimeException e) {
+                throw new IOException("Reading s3://" + bucket + "/" + key + " failed", e);
+            }
+        }
+        int n = in.read(b, off, len);
+        if (n < 0) {
+            throw new EOFException("s3://" + bucket + "/" + key + " ended at " + pos + " of " + length + " bytes");
+        }
+        pos += n;
+        return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        closeContent();
+    }
+
+    private void closeContent() throws IOException {
+        if (in != null) {
+            InputStream content = in;
+            in = null;
+            content.close();
+        }
+    }
+}
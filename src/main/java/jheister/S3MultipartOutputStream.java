@@ -0,0 +1,185 @@
+package jheister;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/*
+ * Uploads what is written as the parts of a multipart upload, each one sent in the background as soon as
+ * partSize bytes have been written. At most maxPartsInFlight parts are buffered or uploading at a time;
+ * beyond that write() blocks. Output that never fills a part is sent with a single putObject on close().
+ */
+class S3MultipartOutputStream extends OutputStream {
+    private final AmazonS3 s3;
+    private final String bucket;
+    private final String key;
+    private final int partSize;
+    private final ExecutorService uploads;
+    private final Semaphore inFlight;
+    private final ConcurrentLinkedQueue<byte[]> freeBuffers = new ConcurrentLinkedQueue<>();
+    private final List<Future<PartETag>> parts = new ArrayList<>();
+
+    private byte[] buffer;
+    private int count;
+    private int checkedParts;
+    private String uploadId;
+    private boolean closed;
+    // why the upload failed, thrown again by any later close()
+    private IOException failure;
+
+    S3MultipartOutputStream(AmazonS3 s3, String bucket, String key, int partSize, ExecutorService uploads,
+                            int maxPartsInFlight) {
+        this.s3 = s3;
+        this.bucket = bucket;
+        this.key = key;
+        this.partSize = partSize;
+        this.uploads = uploads;
+        this.inFlight = new Semaphore(maxPartsInFlight);
+        this.buffer = new byte[partSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == partSize) {
+            uploadPart();
+        }
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (count == partSize) {
+                uploadPart();
+            }
+            int n = Math.min(len, partSize - count);
+            System.arraycopy(b, off, buffer, count, n);
+            count += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            if (failure != null) {
+                throw new IOException(failure.getMessage(), failure);
+            }
+            return;
+        }
+        closed = true;
+        if (uploadId == null) {
+            ObjectMetadata metadata = new ObjectMetadata();
+            metadata.setContentLength(count);
+            try {
+                s3.putObject(new PutObjectRequest(bucket, key, new ByteArrayInputStream(buffer, 0, count), metadata));
+            } catch (RuntimeException e) {
+                failure = new IOException("Uploading s3://" + bucket + "/" + key + " failed", e);
+                throw failure;
+            }
+            return;
+        }
+        if (count > 0) {
+            uploadPart();
+        }
+        List<PartETag> etags = new ArrayList<>();
+        for (Future<PartETag> part : parts) {
+            etags.add(partETag(part));
+        }
+        try {
+            s3.completeMultipartUpload(new CompleteMultipartUploadRequest(bucket, key, uploadId, etags));
+        } catch (RuntimeException e) {
+            throw abort(new IOException("Completing upload of s3://" + bucket + "/" + key + " failed", e));
+        }
+    }
+
+    private void uploadPart() throws IOException {
+        if (failure != null) {
+            throw new IOException(failure.getMessage(), failure);
+        }
+        if (uploadId == null) {
+            try {
+                uploadId = s3.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucket, key)).getUploadId();
+            } catch (RuntimeException e) {
+                closed = true;
+                failure = new IOException("Starting upload of s3://" + bucket + "/" + key + " failed", e);
+                throw failure;
+            }
+        }
+        // fail the writer as soon as a part has failed rather than at close()
+        while (checkedParts < parts.size() && parts.get(checkedParts).isDone()) {
+            partETag(parts.get(checkedParts++));
+        }
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw abort(new InterruptedIOException("Interrupted uploading " + key));
+        }
+        byte[] data = buffer;
+        int length = count;
+        int partNumber = parts.size() + 1;
+        parts.add(uploads.submit(() -> {
+            try {
+                return s3.uploadPart(new UploadPartRequest()
+                        .withBucketName(bucket)
+                        .withKey(key)
+                        .withUploadId(uploadId)
+                        .withPartNumber(partNumber)
+                        .withPartSize(length)
+                        .withInputStream(new ByteArrayInputStream(data, 0, length)))
+                        .getPartETag();
+            } finally {
+                freeBuffers.add(data);
+                inFlight.release();
+            }
+        }));
+
+        byte[] free = freeBuffers.poll();
+        buffer = free != null ? free : new byte[partSize];
+        count = 0;
+    }
+
+    private PartETag partETag(Future<PartETag> part) throws IOException {
+        try {
+            return part.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw abort(new InterruptedIOException("Interrupted uploading " + key));
+        } catch (ExecutionException e) {
+            throw abort(new IOException("Uploading part of s3://" + bucket + "/" + key + " failed", e.getCause()));
+        }
+    }
+
+    private IOException abort(IOException e) {
+        closed = true;
+        failure = e;
+        for (Future<PartETag> part : parts) {
+            part.cancel(true);
+        }
+        try {
+            s3.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, key, uploadId));
+        } catch (RuntimeException suppressed) {
+            e.addSuppressed(suppressed);
+        }
+        return e;
+    }
+}
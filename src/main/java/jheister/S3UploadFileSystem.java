@@ -0,0 +1,292 @@
+package jheister;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PathIsNotEmptyDirectoryException;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.util.Progressable;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/*
+ * File system over an AmazonS3 client for s3://bucket/key paths. Files are streamed as multipart uploads
+ * while they are written (see S3MultipartOutputStream), so an ORC writer given this through
+ * OrcWriterSettings.fileSystem uploads each stripe as it is flushed instead of going through a local file.
+ * Reads are ranged gets (see S3InputStream), directories are the key prefixes up to a '/', and rename is a
+ * copy and delete of every object, so it isn't atomic. Objects can't be appended to.
+ */
+public class S3UploadFileSystem extends FileSystem {
+    // S3 rejects smaller parts other than the last one
+    public static final int MIN_PART_SIZE = 5 << 20;
+
+    private final AmazonS3 s3;
+    private final int partSize;
+    private final int partsInFlight;
+    private final ExecutorService uploads;
+
+    public S3UploadFileSystem(AmazonS3 s3) {
+        this(s3, 16 << 20, 4);
+    }
+
+    // partsInFlight bounds the memory used per open file to about partsInFlight + 1 parts
+    public S3UploadFileSystem(AmazonS3 s3, int partSize, int partsInFlight) {
+        if (partSize < MIN_PART_SIZE) {
+            throw new IllegalArgumentException("Part size must be at least " + MIN_PART_SIZE + " but was " + partSize);
+        }
+        this.s3 = s3;
+        this.partSize = partSize;
+        this.partsInFlight = partsInFlight;
+        this.uploads = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "s3-upload");
+            thread.setDaemon(true);
+            return thread;
+        });
+        setConf(new Configuration());
+    }
+
+    @Override
+    public URI getUri() {
+        return URI.create("s3:///");
+    }
+
+    @Override
+    public FSDataOutputStream create(Path path, FsPermission permission, boolean overwrite, int bufferSize,
+                                     short replication, long blockSize, Progressable progress) throws IOException {
+        String key = key(path);
+        if (key.isEmpty()) {
+            throw new IllegalArgumentException("Expected s3://bucket/key but was " + path);
+        }
+        return new FSDataOutputStream(new S3MultipartOutputStream(s3, bucket(path), key, partSize, uploads, partsInFlight), null);
+    }
+
+    @Override
+    public void close() throws IOException {
+        uploads.shutdown();
+        super.close();
+    }
+
+    @Override
+    public FSDataInputStream open(Path path, int bufferSize) throws IOException {
+        FileStatus status = getFileStatus(path);
+        if (status.isDirectory()) {
+            throw new FileNotFoundException(path + " is a directory");
+        }
+        return new FSDataInputStream(new S3InputStream(s3, bucket(path), key(path), status.getLen()));
+    }
+
+    @Override
+    public FSDataOutputStream append(Path path, int bufferSize, Progressable progress) {
+        throw new UnsupportedOperationException("S3 objects can't be appended to");
+    }
+
+    // copies then deletes every object, so a directory is only moved once all of it has been copied; false
+    // rather than moving into dst when it exists
+    @Override
+    public boolean rename(Path src, Path dst) throws IOException {
+        FileStatus from;
+        try {
+            from = getFileStatus(src);
+        } catch (FileNotFoundException e) {
+            return false;
+        }
+        if (key(src).isEmpty() || key(dst).isEmpty() || exists(dst)) {
+            return false;
+        }
+        String bucket = bucket(src);
+        try {
+            if (from.isFile()) {
+                s3.copyObject(bucket, key(src), bucket(dst), key(dst));
+                s3.deleteObject(bucket, key(src));
+            } else {
+                String srcPrefix = key(src) + "/";
+                String dstPrefix = key(dst) + "/";
+                List<String> keys = keys(bucket, srcPrefix);
+                for (String key : keys) {
+                    s3.copyObject(bucket, key, bucket(dst), dstPrefix + key.substring(srcPrefix.length()));
+                }
+                deleteObjects(bucket, keys);
+            }
+        } catch (RuntimeException e) {
+            throw new IOException("Renaming " + src + " to " + dst + " failed", e);
+        }
+        return true;
+    }
+
+    // like S3A, never deletes a whole bucket
+    @Override
+    public boolean delete(Path path, boolean recursive) throws IOException {
+        FileStatus status;
+        try {
+            status = getFileStatus(path);
+        } catch (FileNotFoundException e) {
+            return false;
+        }
+        String bucket = bucket(path);
+        String key = key(path);
+        if (key.isEmpty()) {
+            return false;
+        }
+        try {
+            if (status.isFile()) {
+                s3.deleteObject(bucket, key);
+                return true;
+            }
+            List<String> keys = keys(bucket, key + "/");
+            if (!recursive && !keys.isEmpty()) {
+                throw new PathIsNotEmptyDirectoryException(path.toString());
+            }
+            deleteObjects(bucket, keys);
+        } catch (RuntimeException e) {
+            throw new IOException("Deleting " + path + " failed", e);
+        }
+        return true;
+    }
+
+    // the objects and common prefixes one level below path, as files and directories
+    @Override
+    public FileStatus[] listStatus(Path path) throws IOException {
+        FileStatus status = getFileStatus(path);
+        if (status.isFile()) {
+            return new FileStatus[]{status};
+        }
+        String bucket = bucket(path);
+        String prefix = key(path).isEmpty() ? "" : key(path) + "/";
+        List<FileStatus> statuses = new ArrayList<>();
+        try {
+            ObjectListing listing = s3.listObjects(new ListObjectsRequest()
+                    .withBucketName(bucket)
+                    .withPrefix(prefix)
+                    .withDelimiter("/"));
+            while (true) {
+                for (S3ObjectSummary object : listing.getObjectSummaries()) {
+                    // an empty "directory/" marker object
+                    if (!object.getKey().equals(prefix)) {
+                        statuses.add(new FileStatus(object.getSize(), false, 1, partSize,
+                                object.getLastModified().getTime(), path(bucket, object.getKey())));
+                    }
+                }
+                for (String directory : listing.getCommonPrefixes()) {
+                    statuses.add(directory(path(bucket, directory.substring(0, directory.length() - 1))));
+                }
+                if (!listing.isTruncated()) {
+                    break;
+                }
+                listing = s3.listNextBatchOfObjects(listing);
+            }
+        } catch (RuntimeException e) {
+            throw new IOException("Listing " + path + " failed", e);
+        }
+        return statuses.toArray(new FileStatus[0]);
+    }
+
+    @Override
+    public void setWorkingDirectory(Path dir) {
+    }
+
+    @Override
+    public Path getWorkingDirectory() {
+        return new Path("/");
+    }
+
+    // S3 has no directories, a key prefix is one as soon as an object is put under it
+    @Override
+    public boolean mkdirs(Path path, FsPermission permission) {
+        return true;
+    }
+
+    // an object, or a directory if there are objects under path/
+    @Override
+    public FileStatus getFileStatus(Path path) throws IOException {
+        String bucket = bucket(path);
+        String key = key(path);
+        if (key.isEmpty()) {
+            return directory(path);
+        }
+        try {
+            ObjectMetadata metadata = s3.getObjectMetadata(bucket, key);
+            return new FileStatus(metadata.getContentLength(), false, 1, partSize,
+                    metadata.getLastModified().getTime(), path(bucket, key));
+        } catch (AmazonServiceException e) {
+            if (e.getStatusCode() != 404) {
+                throw new IOException("Getting the status of " + path + " failed", e);
+            }
+        } catch (RuntimeException e) {
+            throw new IOException("Getting the status of " + path + " failed", e);
+        }
+        try {
+            ObjectListing listing = s3.listObjects(new ListObjectsRequest()
+                    .withBucketName(bucket)
+                    .withPrefix(key + "/")
+                    .withMaxKeys(1));
+            if (!listing.getObjectSummaries().isEmpty()) {
+                return directory(path(bucket, key));
+            }
+        } catch (RuntimeException e) {
+            throw new IOException("Getting the status of " + path + " failed", e);
+        }
+        throw new FileNotFoundException("No such file or directory " + path);
+    }
+
+    private static String bucket(Path path) {
+        String bucket = path.toUri().getHost();
+        if (bucket == null) {
+            throw new IllegalArgumentException("Expected s3://bucket/key but was " + path);
+        }
+        return bucket;
+    }
+
+    private static String key(Path path) {
+        String key = path.toUri().getPath();
+        int start = key.startsWith("/") ? 1 : 0;
+        int end = key.endsWith("/") && key.length() > start ? key.length() - 1 : key.length();
+        return key.substring(start, Math.max(start, end));
+    }
+
+    private static Path path(String bucket, String key) {
+        return new Path("s3://" + bucket + "/" + key);
+    }
+
+    private static FileStatus directory(Path path) {
+        return new FileStatus(0, true, 1, 0, 0, path);
+    }
+
+    private List<String> keys(String bucket, String prefix) {
+        List<String> keys = new ArrayList<>();
+        ObjectListing listing = s3.listObjects(bucket, prefix);
+        while (true) {
+            for (S3ObjectSummary object : listing.getObjectSummaries()) {
+                keys.add(object.getKey());
+            }
+            if (!listing.isTruncated()) {
+                return keys;
+            }
+            listing = s3.listNextBatchOfObjects(listing);
+        }
+    }
+
+    private void deleteObjects(String bucket, List<String> keys) {
+        // at most 1000 keys per request
+        for (int from = 0; from < keys.size(); from += 1000) {
+            s3.deleteObjects(new DeleteObjectsRequest(bucket)
+                    .withKeys(keys.subList(from, Math.min(from + 1000, keys.size())).toArray(new String[0]))
+                    .withQuiet(true));
+        }
+    }
+}
@@ -0,0 +1,386 @@
+package jheister;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hive.ql.exec.vector.BytesColumnVector;
+import org.apache.hadoop.hive.ql.exec.vector.ColumnVector;
+import org.apache.hadoop.hive.ql.exec.vector.DecimalColumnVector;
+import org.apache.hadoop.hive.ql.exec.vector.DoubleColumnVector;
+import org.apache.hadoop.hive.ql.exec.vector.ListColumnVector;
+import org.apache.hadoop.hive.ql.exec.vector.LongColumnVector;
+import org.apache.hadoop.hive.ql.exec.vector.MapColumnVector;
+import org.apache.hadoop.hive.ql.exec.vector.StructColumnVector;
+import org.apache.hadoop.hive.ql.exec.vector.TimestampColumnVector;
+import org.apache.hadoop.hive.ql.exec.vector.VectorizedRowBatch;
+import org.apache.orc.CompressionKind;
+import org.apache.orc.OrcFile;
+import org.apache.orc.RecordReader;
+import org.apache.orc.TypeDescription;
+import org.apache.orc.Writer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.Supplier;
+
+/*
+ * Buffers rows and hands them on sorted by a set of top-level key columns, so each stripe covers a narrow
+ * key range and its min/max statistics let readers skip it. When the buffered batches exceed the memory
+ * budget they are sorted and spilled to a temporary ORC file; close() merges the spilled runs. Batches are
+ * handed on once full or once their lists and maps hold maxChildElements elements, like unsorted ones.
+ */
+class SortingBatchSink implements BatchSink {
+    private final BatchSink downstream;
+    private final TypeDescription schema;
+    private final int[] keyColumns;
+    private final long memoryBudget;
+    private final Supplier<VectorizedRowBatch> batches;
+    private final File spillDirectory;
+    private final long maxChildElements;
+    private final boolean hasChildren;
+    private final Configuration conf = new Configuration();
+    private final FileSystem spillFs;
+
+    private final List<VectorizedRowBatch> buffered = new ArrayList<>();
+    private final Deque<VectorizedRowBatch> free = new ArrayDeque<>();
+    private final List<File> runs = new ArrayList<>();
+    private long bufferedBytes;
+    private VectorizedRowBatch out;
+
+    SortingBatchSink(BatchSink downstream, TypeDescription schema, List<String> keyFields, long memoryBudget,
+                     Supplier<VectorizedRowBatch> batches, File spillDirectory) throws IOException {
+        this(downstream, schema, keyFields, memoryBudget, batches, spillDirectory, Long.MAX_VALUE);
+    }
+
+    SortingBatchSink(BatchSink downstream, TypeDescription schema, List<String> keyFields, long memoryBudget,
+                     Supplier<VectorizedRowBatch> batches, File spillDirectory, long maxChildElements) throws IOException {
+        this.downstream = downstream;
+        this.schema = schema;
+        this.memoryBudget = memoryBudget;
+        this.batches = batches;
+        this.spillDirectory = spillDirectory;
+        this.maxChildElements = maxChildElements;
+        this.hasChildren = hasChildren(schema);
+        // no .crc side files for something that only lives until close()
+        this.spillFs = FileSystem.getLocal(conf).getRawFileSystem();
+        this.keyColumns = new int[keyFields.size()];
+        for (int k = 0; k < keyColumns.length; k++) {
+            keyColumns[k] = schema.getFieldNames().indexOf(keyFields.get(k));
+            if (keyColumns[k] < 0) {
+                throw new IllegalArgumentException("No field " + keyFields.get(k) + " in " + schema);
+            }
+            TypeDescription keyType = schema.getChildren().get(keyColumns[k]);
+            switch (keyType.getCategory()) {
+                case STRUCT:
+                case LIST:
+                case MAP:
+                case UNION:
+                    throw new IllegalArgumentException("Can't sort by " + keyType + " field " + keyFields.get(k));
+                default:
+                    break;
+            }
+        }
+    }
+
+    public VectorizedRowBatch flush(VectorizedRowBatch batch) throws IOException {
+        buffered.add(batch);
+        bufferedBytes += estimateBytes(batch);
+        if (bufferedBytes > memoryBudget) {
+            spill();
+        }
+        return free.isEmpty() ? batches.get() : free.pop();
+    }
+
+    public void close() throws IOException {
+        Exception failure = null;
+        try {
+            out = batches.get();
+            if (runs.isEmpty()) {
+                long[] order = sortBuffered();
+                for (long ref : order) {
+                    emit(buffered.get(batchOf(ref)), rowOf(ref));
+                }
+            } else {
+                if (!buffered.isEmpty()) {
+                    spill();
+                }
+                merge();
+            }
+            if (out.size > 0) {
+                downstream.flush(out);
+            }
+        } catch (IOException | RuntimeException e) {
+            failure = e;
+            throw e;
+        } finally {
+            // merge() deletes them, unless spilling or merging failed
+            for (File run : runs) {
+                run.delete();
+            }
+            runs.clear();
+            try {
+                downstream.close();
+            } catch (IOException | RuntimeException e) {
+                if (failure == null) {
+                    throw e;
+                }
+                failure.addSuppressed(e);
+            }
+        }
+    }
+
+    private void emit(VectorizedRowBatch from, int row) throws IOException {
+        copyRow(from, row, out, out.size++);
+        if (isFull(out)) {
+            out = downstream.flush(out);
+        }
+    }
+
+    private boolean isFull(VectorizedRowBatch batch) {
+        return batch.size == batch.getMaxSize() || hasChildren && childElements(batch.cols) >= maxChildElements;
+    }
+
+    private static boolean hasChildren(TypeDescription type) {
+        if (type.getCategory() == TypeDescription.Category.LIST || type.getCategory() == TypeDescription.Category.MAP) {
+            return true;
+        }
+        if (type.getChildren() != null) {
+            for (TypeDescription child : type.getChildren()) {
+                if (hasChildren(child)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // list and map elements at any depth, as the converter counts them
+    private static long childElements(ColumnVector... columns) {
+        long elements = 0;
+        for (ColumnVector column : columns) {
+            if (column instanceof StructColumnVector) {
+                elements += childElements(((StructColumnVector) column).fields);
+            } else if (column instanceof ListColumnVector) {
+                ListColumnVector list = (ListColumnVector) column;
+                elements += list.childCount + childElements(list.child);
+            } else if (column instanceof MapColumnVector) {
+                MapColumnVector map = (MapColumnVector) column;
+                elements += map.childCount + childElements(map.keys, map.values);
+            }
+        }
+        return elements;
+    }
+
+    private void spill() throws IOException {
+        File run = File.createTempFile("sort-run-", ".orc", spillDirectory);
+        run.deleteOnExit();
+        runs.add(run);
+
+        Writer writer = OrcFile.createWriter(new Path(run.getAbsolutePath()), OrcFile.writerOptions(conf)
+                .setSchema(schema)
+                .fileSystem(spillFs)
+                .overwrite(true)
+                .compress(CompressionKind.NONE));
+        VectorizedRowBatch scratch = free.isEmpty() ? batches.get() : free.pop();
+        for (long ref : sortBuffered()) {
+            copyRow(buffered.get(batchOf(ref)), rowOf(ref), scratch, scratch.size++);
+            if (isFull(scratch)) {
+                writer.addRowBatch(scratch);
+                scratch.reset();
+            }
+        }
+        if (scratch.size > 0) {
+            writer.addRowBatch(scratch);
+            scratch.reset();
+        }
+        writer.close();
+
+        free.push(scratch);
+        for (VectorizedRowBatch batch : buffered) {
+            batch.reset();
+            free.push(batch);
+        }
+        buffered.clear();
+        bufferedBytes = 0;
+    }
+
+    private void merge() throws IOException {
+        PriorityQueue<Run> heap = new PriorityQueue<>((a, b) -> compare(a.batch, a.row, b.batch, b.row));
+        List<Run> open = new ArrayList<>();
+        try {
+            for (File file : runs) {
+                Run run = new Run(file);
+                open.add(run);
+                if (run.advance()) {
+                    heap.add(run);
+                }
+            }
+            while (!heap.isEmpty()) {
+                Run run = heap.poll();
+                emit(run.batch, run.row);
+                if (run.advance()) {
+                    heap.add(run);
+                }
+            }
+        } finally {
+            for (Run run : open) {
+                run.close();
+            }
+        }
+    }
+
+    private class Run {
+        private final File file;
+        private final RecordReader rows;
+        private final VectorizedRowBatch batch = batches.get();
+        private int row = -1;
+
+        Run(File file) throws IOException {
+            this.file = file;
+            this.rows = OrcFile.createReader(new Path(file.getAbsolutePath()), OrcFile.readerOptions(conf).filesystem(spillFs)).rows();
+        }
+
+        boolean advance() throws IOException {
+            if (++row < batch.size) {
+                return true;
+            }
+            row = 0;
+            return rows.nextBatch(batch) && batch.size > 0;
+        }
+
+        void close() throws IOException {
+            rows.close();
+            file.delete();
+        }
+    }
+
+    private long[] sortBuffered() {
+        int rows = 0;
+        for (VectorizedRowBatch batch : buffered) {
+            rows += batch.size;
+        }
+        long[] refs = new long[rows];
+        int i = 0;
+        for (int b = 0; b < buffered.size(); b++) {
+            for (int r = 0; r < buffered.get(b).size; r++) {
+                refs[i++] = ((long) b << 32) | r;
+            }
+        }
+        mergeSort(refs, new long[refs.length], 0, refs.length);
+        return refs;
+    }
+
+    private void mergeSort(long[] refs, long[] tmp, int from, int to) {
+        if (to - from < 2) {
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        mergeSort(refs, tmp, from, mid);
+        mergeSort(refs, tmp, mid, to);
+        if (compareRefs(refs[mid - 1], refs[mid]) <= 0) {
+            return;
+        }
+        System.arraycopy(refs, from, tmp, from, to - from);
+        for (int i = from, l = from, r = mid; i < to; i++) {
+            if (r >= to || l < mid && compareRefs(tmp[l], tmp[r]) <= 0) {
+                refs[i] = tmp[l++];
+            } else {
+                refs[i] = tmp[r++];
+            }
+        }
+    }
+
+    private int compareRefs(long a, long b) {
+        return compare(buffered.get(batchOf(a)), rowOf(a), buffered.get(batchOf(b)), rowOf(b));
+    }
+
+    private static int batchOf(long ref) {
+        return (int) (ref >>> 32);
+    }
+
+    private static int rowOf(long ref) {
+        return (int) ref;
+    }
+
+    private int compare(VectorizedRowBatch a, int rowA, VectorizedRowBatch b, int rowB) {
+        for (int c : keyColumns) {
+            int result = compare(a.cols[c], rowA, b.cols[c], rowB);
+            if (result != 0) {
+                return result;
+            }
+        }
+        return 0;
+    }
+
+    // nulls first
+    static int compare(ColumnVector a, int rowA, ColumnVector b, int rowB) {
+        rowA = a.isRepeating ? 0 : rowA;
+        rowB = b.isRepeating ? 0 : rowB;
+        boolean nullA = !a.noNulls && a.isNull[rowA];
+        boolean nullB = !b.noNulls && b.isNull[rowB];
+        if (nullA || nullB) {
+            return Boolean.compare(!nullA, !nullB);
+        }
+        if (a instanceof LongColumnVector) {
+            return Long.compare(((LongColumnVector) a).vector[rowA], ((LongColumnVector) b).vector[rowB]);
+        } else if (a instanceof DoubleColumnVector) {
+            return Double.compare(((DoubleColumnVector) a).vector[rowA], ((DoubleColumnVector) b).vector[rowB]);
+        } else if (a instanceof BytesColumnVector) {
+            BytesColumnVector x = (BytesColumnVector) a;
+            BytesColumnVector y = (BytesColumnVector) b;
+            return Arrays.compareUnsigned(x.vector[rowA], x.start[rowA], x.start[rowA] + x.length[rowA],
+                    y.vector[rowB], y.start[rowB], y.start[rowB] + y.length[rowB]);
+        } else if (a instanceof DecimalColumnVector) {
+            return ((DecimalColumnVector) a).vector[rowA].compareTo(((DecimalColumnVector) b).vector[rowB]);
+        } else if (a instanceof TimestampColumnVector) {
+            return ((TimestampColumnVector) a).compareTo(rowA, (TimestampColumnVector) b, rowB);
+        }
+        throw new IllegalArgumentException("Can't sort by " + a.type + " columns");
+    }
+
+    private static void copyRow(VectorizedRowBatch from, int row, VectorizedRowBatch to, int toRow) {
+        for (int c = 0; c < from.numCols; c++) {
+            ColumnVectors.copyElement(from.cols[c], row, to.cols[c], toRow);
+        }
+    }
+
+    static long estimateBytes(VectorizedRowBatch batch) {
+        long bytes = 0;
+        for (ColumnVector col : batch.cols) {
+            bytes += estimateBytes(col, batch.size);
+        }
+        return bytes;
+    }
+
+    private static long estimateBytes(ColumnVector col, int rows) {
+        long bytes = rows;
+        if (col instanceof BytesColumnVector) {
+            BytesColumnVector bytesCol = (BytesColumnVector) col;
+            bytes += rows * 16L;
+            for (int r = 0; r < rows; r++) {
+                bytes += bytesCol.length[r];
+            }
+        } else if (col instanceof StructColumnVector) {
+            for (ColumnVector field : ((StructColumnVector) col).fields) {
+                bytes += estimateBytes(field, rows);
+            }
+        } else if (col instanceof ListColumnVector) {
+            ListColumnVector list = (ListColumnVector) col;
+            bytes += rows * 16L + estimateBytes(list.child, list.childCount);
+        } else if (col instanceof MapColumnVector) {
+            MapColumnVector map = (MapColumnVector) col;
+            bytes += rows * 16L + estimateBytes(map.keys, map.childCount) + estimateBytes(map.values, map.childCount);
+        } else if (col instanceof DecimalColumnVector) {
+            bytes += rows * 64L;
+        } else {
+            bytes += rows * 12L;
+        }
+        return bytes;
+    }
+}
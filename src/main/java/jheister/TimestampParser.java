@@ -0,0 +1,296 @@
+package jheister;
+
+import org.apache.hadoop.hive.ql.exec.vector.TimestampColumnVector;
+import org.threeten.bp.Instant;
+import org.threeten.bp.LocalDate;
+import org.threeten.bp.LocalDateTime;
+import org.threeten.bp.ZoneId;
+import org.threeten.bp.ZoneOffset;
+import org.threeten.bp.ZonedDateTime;
+import org.threeten.bp.format.DateTimeFormatter;
+import org.threeten.bp.temporal.TemporalAccessor;
+import org.threeten.bp.zone.ZoneOffsetTransition;
+import org.threeten.bp.zone.ZoneRules;
+
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/*
+ * Parses yyyy-MM-dd[T ]HH:mm:ss[.f][offset] and epoch millis/micros straight from bytes into a
+ * TimestampColumnVector. Anything else, and any pattern that isn't one of those layouts, goes through
+ * the DateTimeFormatter. The fast path only takes the separator, fraction digits and offsets the pattern
+ * does and leaves everything else to the formatter, so both accept the same values.
+ */
+class TimestampParser {
+    static final String EPOCH_MILLIS = "epoch_millis";
+    static final String EPOCH_MICROS = "epoch_micros";
+
+    private static final Pattern FIXED_LAYOUT = Pattern.compile(
+            "|iso|yyyy-MM-dd('T'| )HH:mm:ss(\\.S{1,9}|\\[\\.S{1,9}\\])?(\\[?(XXX|XX|X|xxx|xx|Z)\\]?)?");
+    private static final int SECONDS_PER_DAY = 86400;
+    // offset forms, as bits of offsetForms
+    private static final int OFFSET_Z = 1, OFFSET_HH = 2, OFFSET_HHMM = 4, OFFSET_HH_MM = 8;
+
+    private final String pattern;
+    private final ZoneId zone;
+    private final ZoneRules rules;
+    private final boolean fixedLayout;
+    private byte separator;
+    // digits the fraction must have, 0 for any number up to 9
+    private int fractionDigits;
+    private boolean fractionAllowed;
+    private boolean fractionRequired;
+    private int offsetForms;
+    private boolean offsetRequired;
+    private DateTimeFormatter formatter;
+
+    private long cachedDay = Long.MIN_VALUE;
+    private int cachedOffset;
+    private boolean cachedDayHasTransition;
+
+    TimestampParser(String pattern, ZoneId zone) {
+        this.pattern = pattern;
+        this.zone = zone;
+        this.rules = zone.getRules();
+        Matcher layout = FIXED_LAYOUT.matcher(pattern);
+        this.fixedLayout = layout.matches();
+        if (!fixedLayout) {
+            return;
+        }
+        if (pattern.isEmpty() || pattern.equals("iso")) {
+            // ISO_DATE_TIME: an optional fraction of up to 9 digits and an optional offset id
+            separator = 'T';
+            fractionAllowed = true;
+            offsetForms = OFFSET_Z | OFFSET_HH_MM;
+            return;
+        }
+        separator = (byte) (layout.group(1).equals(" ") ? ' ' : 'T');
+        String fraction = layout.group(2);
+        if (fraction != null) {
+            fractionAllowed = true;
+            fractionRequired = !fraction.startsWith("[");
+            fractionDigits = fraction.length() - (fractionRequired ? 1 : 3);
+        }
+        String offset = layout.group(4);
+        if (offset != null) {
+            offsetRequired = !layout.group(3).startsWith("[");
+            offsetForms = offsetForms(offset);
+        }
+    }
+
+    // what DateTimeFormatter.ofPattern parses for each offset pattern
+    private static int offsetForms(String letters) {
+        switch (letters) {
+            case "X": return OFFSET_Z | OFFSET_HH | OFFSET_HHMM;
+            case "XX": return OFFSET_Z | OFFSET_HHMM;
+            case "XXX": return OFFSET_Z | OFFSET_HH_MM;
+            case "x": return OFFSET_HH | OFFSET_HHMM;
+            case "xx":
+            case "Z": return OFFSET_HHMM;
+            case "xxx": return OFFSET_HH_MM;
+            default: throw new IllegalArgumentException("Unexpected offset pattern " + letters);
+        }
+    }
+
+    boolean parse(byte[] buf, int start, int length, TimestampColumnVector vector, int row) {
+        if (EPOCH_MILLIS.equals(pattern)) {
+            long millis = parseLong(buf, start, start + length);
+            set(vector, row, Math.floorDiv(millis, 1000), Math.floorMod(millis, 1000) * 1_000_000);
+            return true;
+        } else if (EPOCH_MICROS.equals(pattern)) {
+            long micros = parseLong(buf, start, start + length);
+            set(vector, row, Math.floorDiv(micros, 1_000_000), Math.floorMod(micros, 1_000_000) * 1000);
+            return true;
+        } else if (fixedLayout && parseFixedLayout(buf, start, length, vector, row)) {
+            return true;
+        }
+        return parseWithFormatter(new String(buf, start, length, StandardCharsets.UTF_8), vector, row);
+    }
+
+    private boolean parseFixedLayout(byte[] buf, int start, int length, TimestampColumnVector vector, int row) {
+        int end = start + length;
+        if (length < 19 || buf[start + 4] != '-' || buf[start + 7] != '-'
+                || buf[start + 10] != separator
+                || buf[start + 13] != ':' || buf[start + 16] != ':') {
+            return false;
+        }
+        int year = digits(buf, start, 4);
+        int month = digits(buf, start + 5, 2);
+        int day = digits(buf, start + 8, 2);
+        int hour = digits(buf, start + 11, 2);
+        int minute = digits(buf, start + 14, 2);
+        int second = digits(buf, start + 17, 2);
+        if ((year | month | day | hour | minute | second) < 0
+                || month < 1 || month > 12 || day < 1 || day > lengthOfMonth(year, month)
+                || hour > 23 || minute > 59 || second > 59) {
+            return false;
+        }
+
+        int i = start + 19;
+        int nanos = 0;
+        if (i < end && buf[i] == '.') {
+            if (!fractionAllowed) {
+                return false;
+            }
+            int scale = 100_000_000;
+            int digits = 0;
+            while (++i < end && buf[i] >= '0' && buf[i] <= '9') {
+                if (++digits > 9) {
+                    return false;
+                }
+                nanos += (buf[i] - '0') * scale;
+                scale /= 10;
+            }
+            if (digits == 0 || fractionDigits > 0 && digits != fractionDigits) {
+                return false;
+            }
+        } else if (fractionRequired) {
+            return false;
+        }
+
+        long epochDay = epochDay(year, month, day);
+        long localSeconds = epochDay * SECONDS_PER_DAY + hour * 3600 + minute * 60 + second;
+        if (i == end) {
+            if (offsetRequired) {
+                return false;
+            }
+            if (!cacheOffset(epochDay)) {
+                LocalDateTime local = LocalDateTime.ofEpochSecond(localSeconds, nanos, ZoneOffset.UTC);
+                set(vector, row, local.atZone(zone).toEpochSecond(), nanos);
+                return true;
+            }
+            set(vector, row, localSeconds - cachedOffset, nanos);
+            return true;
+        }
+
+        int offset = parseOffset(buf, i, end, offsetForms);
+        if (offset == Integer.MIN_VALUE) {
+            return false;
+        }
+        set(vector, row, localSeconds - offset, nanos);
+        return true;
+    }
+
+    // Z, +HH, +HHmm or +HH:mm, of the given forms
+    private static int parseOffset(byte[] buf, int i, int end, int forms) {
+        if (buf[i] == 'Z' && i + 1 == end) {
+            return (forms & OFFSET_Z) != 0 ? 0 : Integer.MIN_VALUE;
+        }
+        if (buf[i] != '+' && buf[i] != '-') {
+            return Integer.MIN_VALUE;
+        }
+        int sign = buf[i] == '-' ? -1 : 1;
+        int remaining = end - i - 1;
+        int hours = remaining >= 2 ? digits(buf, i + 1, 2) : -1;
+        int minutes;
+        if (remaining == 2 && (forms & OFFSET_HH) != 0) {
+            minutes = 0;
+        } else if (remaining == 4 && (forms & OFFSET_HHMM) != 0) {
+            minutes = digits(buf, i + 3, 2);
+        } else if (remaining == 5 && buf[i + 3] == ':' && (forms & OFFSET_HH_MM) != 0) {
+            minutes = digits(buf, i + 4, 2);
+        } else {
+            return Integer.MIN_VALUE;
+        }
+        if (hours < 0 || hours > 18 || minutes < 0 || minutes > 59) {
+            return Integer.MIN_VALUE;
+        }
+        return sign * (hours * 3600 + minutes * 60);
+    }
+
+    // Returns false on days with an offset transition, which are left to ZonedDateTime
+    private boolean cacheOffset(long epochDay) {
+        if (epochDay != cachedDay) {
+            cachedDay = epochDay;
+            LocalDateTime midnight = LocalDate.ofEpochDay(epochDay).atStartOfDay();
+            ZoneOffset offset = rules.getOffset(midnight);
+            long dayStart = midnight.toEpochSecond(offset);
+            ZoneOffsetTransition transition = rules.nextTransition(Instant.ofEpochSecond(dayStart - 1));
+            cachedOffset = offset.getTotalSeconds();
+            cachedDayHasTransition = transition != null
+                    && transition.getInstant().getEpochSecond() < dayStart + SECONDS_PER_DAY;
+        }
+        return !cachedDayHasTransition;
+    }
+
+    private boolean parseWithFormatter(String value, TimestampColumnVector vector, int row) {
+        TemporalAccessor temporalAccessor = formatter().parseBest(value, ZonedDateTime.FROM, LocalDateTime.FROM);
+        ZonedDateTime zonedDateTime;
+        if (temporalAccessor instanceof ZonedDateTime) {
+            zonedDateTime = (ZonedDateTime) temporalAccessor;
+        } else if (temporalAccessor instanceof LocalDateTime) {
+            zonedDateTime = ((LocalDateTime) temporalAccessor).atZone(zone);
+        } else {
+            return false;
+        }
+        set(vector, row, zonedDateTime.toEpochSecond(), zonedDateTime.getNano());
+        return true;
+    }
+
+    private DateTimeFormatter formatter() {
+        if (formatter == null) {
+            formatter = pattern.isEmpty() || pattern.equals("iso") ? DateTimeFormatter.ISO_DATE_TIME : DateTimeFormatter.ofPattern(pattern);
+        }
+        return formatter;
+    }
+
+    private static void set(TimestampColumnVector vector, int row, long epochSeconds, int nanos) {
+        vector.time[row] = epochSeconds * 1000 + nanos / 1_000_000;
+        vector.nanos[row] = nanos;
+    }
+
+    private static int digits(byte[] buf, int start, int count) {
+        int value = 0;
+        for (int i = start; i < start + count; ++i) {
+            int digit = buf[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    private static long parseLong(byte[] buf, int start, int end) {
+        boolean negative = start < end && buf[start] == '-';
+        int first = negative ? start + 1 : start;
+        if (first == end) {
+            throw notEpoch(buf, start, end);
+        }
+        // accumulated negatively so Long.MIN_VALUE fits too
+        long value = 0;
+        for (int i = first; i < end; ++i) {
+            int digit = buf[i] - '0';
+            if (digit < 0 || digit > 9 || value < (Long.MIN_VALUE + digit) / 10) {
+                throw notEpoch(buf, start, end);
+            }
+            value = value * 10 - digit;
+        }
+        if (!negative && value == Long.MIN_VALUE) {
+            throw notEpoch(buf, start, end);
+        }
+        return negative ? value : -value;
+    }
+
+    private static NumberFormatException notEpoch(byte[] buf, int start, int end) {
+        return new NumberFormatException("Expected epoch value but was " + new String(buf, start, end - start, StandardCharsets.UTF_8));
+    }
+
+    private static int lengthOfMonth(int year, int month) {
+        if (month == 2) {
+            return (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0)) ? 29 : 28;
+        }
+        return month == 4 || month == 6 || month == 9 || month == 11 ? 30 : 31;
+    }
+
+    // days from civil, proleptic Gregorian
+    private static long epochDay(int year, int month, int day) {
+        long y = month <= 2 ? year - 1 : year;
+        long era = Math.floorDiv(y, 400);
+        long yearOfEra = y - era * 400;
+        long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+}
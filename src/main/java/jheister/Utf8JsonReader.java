@@ -0,0 +1,425 @@
+package jheister;
+
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.MalformedJsonException;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Strings and numbers are exposed as slices of the input (or of scratch when a string has escapes)
+// so they can be copied into column vectors without going through String.
+class Utf8JsonReader {
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private byte[] buf;
+    private int pos;
+    private int limit;
+    // per open object or array, whether its next element is its first, so isn't preceded by a comma
+    private boolean[] first = new boolean[16];
+    private int depth;
+
+    private byte[] scratch = new byte[64];
+    private byte[] sliceBuf;
+    private int sliceStart;
+    private int sliceLength;
+
+    void reset(byte[] buf, int off, int len) {
+        this.buf = buf;
+        this.pos = off;
+        this.limit = off + len;
+        this.depth = 0;
+    }
+
+    byte[] sliceBuf() {
+        return sliceBuf;
+    }
+
+    int sliceStart() {
+        return sliceStart;
+    }
+
+    int sliceLength() {
+        return sliceLength;
+    }
+
+    String sliceAsString() {
+        return new String(sliceBuf, sliceStart, sliceLength, StandardCharsets.UTF_8);
+    }
+
+    JsonToken peek() throws IOException {
+        switch (nextNonWhitespace()) {
+            case '{': return JsonToken.BEGIN_OBJECT;
+            case '}': return JsonToken.END_OBJECT;
+            case '[': return JsonToken.BEGIN_ARRAY;
+            case ']': return JsonToken.END_ARRAY;
+            case '"': return JsonToken.STRING;
+            case 't':
+            case 'f': return JsonToken.BOOLEAN;
+            case 'n': return JsonToken.NULL;
+            case -1: return JsonToken.END_DOCUMENT;
+            default: return JsonToken.NUMBER;
+        }
+    }
+
+    void beginObject() throws IOException {
+        expect('{');
+        open();
+    }
+
+    void endObject() throws IOException {
+        expect('}');
+        depth--;
+    }
+
+    void beginArray() throws IOException {
+        expect('[');
+        open();
+    }
+
+    void endArray() throws IOException {
+        expect(']');
+        depth--;
+    }
+
+    // nothing but whitespace may follow the record
+    void endDocument() throws IOException {
+        if (nextNonWhitespace() != -1) {
+            throw syntaxError("Expected the end of the record");
+        }
+    }
+
+    private void open() {
+        if (depth == first.length) {
+            first = Arrays.copyOf(first, depth * 2);
+        }
+        first[depth++] = true;
+    }
+
+    // Consumes the comma before every element but the first, so call it once per element
+    boolean hasNext() throws IOException {
+        int c = nextNonWhitespace();
+        if (c == '}' || c == ']' || c == -1) {
+            return false;
+        }
+        if (first[depth - 1]) {
+            first[depth - 1] = false;
+            if (c == ',') {
+                throw syntaxError("Expected a value");
+            }
+            return true;
+        }
+        if (c != ',') {
+            throw syntaxError("Expected ','");
+        }
+        pos++;
+        c = nextNonWhitespace();
+        if (c == '}' || c == ']' || c == -1) {
+            throw syntaxError("Expected a value");
+        }
+        return true;
+    }
+
+    void nextName() throws IOException {
+        readString();
+        expect(':');
+    }
+
+    void nextSlice() throws IOException {
+        int c = nextNonWhitespace();
+        if (c == '"') {
+            readString();
+        } else if (c == '{' || c == '[' || c == -1) {
+            throw syntaxError("Expected a scalar value");
+        } else {
+            readLiteral();
+        }
+    }
+
+    String nextString() throws IOException {
+        nextSlice();
+        return sliceAsString();
+    }
+
+    void nextNull() throws IOException {
+        nextNonWhitespace();
+        readLiteral();
+        if (!sliceEquals("null")) {
+            throw syntaxError("Expected null");
+        }
+    }
+
+    boolean nextBoolean() throws IOException {
+        nextSlice();
+        if (sliceEquals("true")) {
+            return true;
+        } else if (sliceEquals("false")) {
+            return false;
+        }
+        throw syntaxError("Expected a boolean but was " + sliceAsString());
+    }
+
+    long nextLong() throws IOException {
+        nextSlice();
+        int i = sliceStart;
+        int end = sliceStart + sliceLength;
+        boolean negative = i < end && sliceBuf[i] == '-';
+        if (negative) {
+            i++;
+        }
+        if (i == end || end - i > 18) {
+            return parseLongSlowly();
+        }
+        long value = 0;
+        for (; i < end; ++i) {
+            int digit = sliceBuf[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return parseLongSlowly();
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    double nextDouble() throws IOException {
+        nextSlice();
+        int i = sliceStart;
+        int end = sliceStart + sliceLength;
+        boolean negative = i < end && sliceBuf[i] == '-';
+        if (negative) {
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int fractionDigits = -1;
+        for (; i < end; ++i) {
+            int b = sliceBuf[i];
+            if (b == '.' && fractionDigits < 0) {
+                fractionDigits = 0;
+            } else if (b >= '0' && b <= '9' && digits < 15) {
+                mantissa = mantissa * 10 + (b - '0');
+                digits++;
+                if (fractionDigits >= 0) {
+                    fractionDigits++;
+                }
+            } else {
+                // exponents, long mantissas and NaN/Infinity are left to the JDK
+                return Double.parseDouble(sliceAsString());
+            }
+        }
+        if (digits == 0) {
+            return Double.parseDouble(sliceAsString());
+        }
+        // exact: both operands are representable and the division is correctly rounded
+        double value = fractionDigits > 0 ? mantissa / POWERS_OF_TEN[fractionDigits] : mantissa;
+        return negative ? -value : value;
+    }
+
+    // checked as strictly as the values that are read
+    void skipValue() throws IOException {
+        int c = nextNonWhitespace();
+        if (c == '{') {
+            beginObject();
+            while (hasNext()) {
+                nextName();
+                skipValue();
+            }
+            endObject();
+        } else if (c == '[') {
+            beginArray();
+            while (hasNext()) {
+                skipValue();
+            }
+            endArray();
+        } else {
+            nextSlice();
+        }
+    }
+
+    // e.g. 1.5 or 1e3, truncated as Gson's getAsLong did
+    private long parseLongSlowly() throws IOException {
+        String text = sliceAsString();
+        try {
+            return Long.parseLong(text);
+        } catch (NumberFormatException e) {
+            return new BigDecimal(text).longValue();
+        }
+    }
+
+    private void readLiteral() throws IOException {
+        int start = pos;
+        while (pos < limit) {
+            byte b = buf[pos];
+            if (b == ',' || b == '}' || b == ']' || b == ':' || b == ' ' || b == '\t' || b == '\n' || b == '\r') {
+                break;
+            }
+            pos++;
+        }
+        if (pos == start) {
+            throw syntaxError("Expected a value");
+        }
+        setSlice(buf, start, pos - start);
+    }
+
+    private void readString() throws IOException {
+        expect('"');
+        int start = pos;
+        while (pos < limit) {
+            byte b = buf[pos];
+            if (b == '"') {
+                setSlice(buf, start, pos - start);
+                pos++;
+                return;
+            } else if (b == '\\') {
+                readEscapedString(start);
+                return;
+            }
+            pos++;
+        }
+        throw syntaxError("Unterminated string");
+    }
+
+    private void readEscapedString(int start) throws IOException {
+        int length = pos - start;
+        ensureScratch(length + 16);
+        System.arraycopy(buf, start, scratch, 0, length);
+        while (pos < limit) {
+            byte b = buf[pos++];
+            if (b == '"') {
+                setSlice(scratch, 0, length);
+                return;
+            }
+            ensureScratch(length + 4);
+            if (b != '\\') {
+                scratch[length++] = b;
+                continue;
+            }
+            if (pos == limit) {
+                break;
+            }
+            byte escaped = buf[pos++];
+            switch (escaped) {
+                case 'b': scratch[length++] = '\b'; break;
+                case 'f': scratch[length++] = '\f'; break;
+                case 'n': scratch[length++] = '\n'; break;
+                case 'r': scratch[length++] = '\r'; break;
+                case 't': scratch[length++] = '\t'; break;
+                case 'u':
+                    char c = (char) readHex4();
+                    if (Character.isHighSurrogate(c) && pos + 6 <= limit && buf[pos] == '\\' && buf[pos + 1] == 'u'
+                            && Character.isLowSurrogate((char) hex4(pos + 2))) {
+                        pos += 2;
+                        length = encodeUtf8(Character.toCodePoint(c, (char) readHex4()), length);
+                    } else if (Character.isSurrogate(c)) {
+                        // unpaired, as String.getBytes does
+                        scratch[length++] = '?';
+                    } else {
+                        length = encodeUtf8(c, length);
+                    }
+                    break;
+                default:
+                    scratch[length++] = escaped;
+            }
+        }
+        throw syntaxError("Unterminated string");
+    }
+
+    private int readHex4() throws IOException {
+        if (pos + 4 > limit) {
+            throw syntaxError("Unterminated escape sequence");
+        }
+        int value = hex4(pos);
+        if (value < 0) {
+            throw syntaxError("Malformed unicode escape");
+        }
+        pos += 4;
+        return value;
+    }
+
+    // the four hex digits at i, or -1
+    private int hex4(int i) {
+        if (i + 4 > limit) {
+            return -1;
+        }
+        int value = 0;
+        for (int end = i + 4; i < end; ++i) {
+            int digit = Character.digit(buf[i], 16);
+            if (digit < 0) {
+                return -1;
+            }
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+    private int encodeUtf8(int codePoint, int at) {
+        if (codePoint < 0x80) {
+            scratch[at++] = (byte) codePoint;
+        } else if (codePoint < 0x800) {
+            scratch[at++] = (byte) (0xc0 | (codePoint >> 6));
+            scratch[at++] = (byte) (0x80 | (codePoint & 0x3f));
+        } else if (codePoint < 0x10000) {
+            scratch[at++] = (byte) (0xe0 | (codePoint >> 12));
+            scratch[at++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+            scratch[at++] = (byte) (0x80 | (codePoint & 0x3f));
+        } else {
+            scratch[at++] = (byte) (0xf0 | (codePoint >> 18));
+            scratch[at++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+            scratch[at++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+            scratch[at++] = (byte) (0x80 | (codePoint & 0x3f));
+        }
+        return at;
+    }
+
+    private void ensureScratch(int size) {
+        if (scratch.length < size) {
+            byte[] bigger = new byte[Math.max(size, scratch.length * 2)];
+            System.arraycopy(scratch, 0, bigger, 0, scratch.length);
+            scratch = bigger;
+        }
+    }
+
+    private void setSlice(byte[] bytes, int start, int length) {
+        sliceBuf = bytes;
+        sliceStart = start;
+        sliceLength = length;
+    }
+
+    private boolean sliceEquals(String ascii) {
+        if (sliceLength != ascii.length()) {
+            return false;
+        }
+        for (int i = 0; i < sliceLength; ++i) {
+            if (sliceBuf[sliceStart + i] != ascii.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int nextNonWhitespace() {
+        while (pos < limit) {
+            byte b = buf[pos];
+            if (b != ' ' && b != '\t' && b != '\n' && b != '\r') {
+                return b & 0xff;
+            }
+            pos++;
+        }
+        return -1;
+    }
+
+    private void expect(char c) throws IOException {
+        if (nextNonWhitespace() != c) {
+            throw syntaxError("Expected '" + c + "'");
+        }
+        pos++;
+    }
+
+    private IOException syntaxError(String message) {
+        return new MalformedJsonException(message + " at offset " + pos);
+    }
+}
@@ -0,0 +1,260 @@
+package jheister;
+
+import com.amazonaws.services.glue.AbstractAWSGlue;
+import com.amazonaws.services.glue.model.GetPartitionsRequest;
+import com.amazonaws.services.glue.model.GetPartitionsResult;
+import com.amazonaws.services.glue.model.Partition;
+import com.amazonaws.services.glue.model.StorageDescriptor;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsResult;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import static java.util.stream.Collectors.toList;
+import static java.util.stream.Collectors.toSet;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+
+public class CleanupTest {
+    private static final String BUCKET = "bucket";
+
+    private File root;
+    private FailingS3 s3;
+    private Cleanup cleanup;
+
+    @Before
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory("cleanup-test").toFile();
+        new File(root, BUCKET).mkdir();
+        s3 = new FailingS3(root);
+        cleanup = new Cleanup(s3, BUCKET, new Cleanup.Options().parallelism(4).backoff(Duration.ZERO));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        cleanup.close();
+        try (Stream<java.nio.file.Path> files = Files.walk(root.toPath())) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    @Test
+    public void deletesEverythingUnderThePrefix() {
+        put("feed/month=2019-06/data.orc", "feed/month=2019-07/data.orc", "feed/_manifest", "other/data.orc");
+
+        assertEquals(3, cleanup.deleteAll("feed"));
+
+        assertEquals(set("other/data.orc"), keys());
+    }
+
+    @Test
+    public void deletesInBatchesOfAtMost1000Keys() {
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < 2500; i++) {
+            keys.add(String.format("feed/month=2019-%02d/part-%05d.orc", i % 3 + 1, i));
+        }
+        put(keys.toArray(new String[0]));
+
+        assertEquals(2500, cleanup.deleteAll("feed/"));
+
+        assertEquals(Arrays.asList(500, 1000, 1000), s3.requestSizes());
+        assertEquals(set(), keys());
+    }
+
+    @Test
+    public void retriesOnlyTheKeysThatFailed() {
+        put("feed/a", "feed/b", "feed/c", "feed/d");
+        s3.fail("feed/b", 1);
+        s3.fail("feed/c", 2);
+
+        assertEquals(4, cleanup.deleteAll("feed"));
+
+        assertEquals(Arrays.asList(
+                Arrays.asList("feed/a", "feed/b", "feed/c", "feed/d"),
+                Arrays.asList("feed/b", "feed/c"),
+                Collections.singletonList("feed/c")), s3.requests);
+        assertEquals(set(), keys());
+    }
+
+    @Test
+    public void failsOnceAKeyIsOutOfAttempts() {
+        put("feed/a", "feed/b");
+        s3.fail("feed/b", Integer.MAX_VALUE);
+        Cleanup threeAttempts = new Cleanup(s3, BUCKET, new Cleanup.Options().maxAttempts(3).backoff(Duration.ZERO));
+
+        MultiObjectDeleteException e = assertThrows(MultiObjectDeleteException.class, () -> threeAttempts.deleteAll("feed"));
+        threeAttempts.close();
+
+        assertEquals("feed/b", e.getErrors().get(0).getKey());
+        assertEquals(3, s3.requests.size());
+        assertEquals(set("feed/b"), keys());
+    }
+
+    @Test
+    public void deletesThePartitionsBeforeADate() {
+        put("feed/month=2019-05/data.orc",
+                "feed/month=2019-06/data.orc",
+                "feed/month=2019-06/region=eu/data.orc",
+                "feed/month=2019-07/data.orc",
+                "feed/day=2019-06-30/data.orc",
+                "feed/day=2019-07-01/data.orc",
+                "feed/year=2018/data.orc",
+                "feed/year=2019/data.orc",
+                "feed/region=eu/data.orc",
+                "feed/data.orc");
+
+        assertEquals(5, cleanup.deletePartitionsBefore("feed", LocalDate.parse("2019-07-01")));
+
+        assertEquals(set("feed/month=2019-07/data.orc",
+                "feed/day=2019-07-01/data.orc",
+                "feed/year=2019/data.orc",
+                "feed/region=eu/data.orc",
+                "feed/data.orc"), keys());
+    }
+
+    @Test
+    public void deletesTheFilesOfPartitionsGlueDoesNotHave() {
+        put("feed/month=2019-06/data.orc",
+                "feed/month=2019-06/region=eu/data.orc",
+                "feed/month=2019-07/data.orc",
+                "feed/month=2019-07/region=eu/data.orc",
+                "feed/month=2019-08/data.orc",
+                "feed/data.orc");
+        Instant cutoff = Instant.now().minus(Duration.ofHours(1));
+        for (String key : keys()) {
+            if (!key.startsWith("feed/month=2019-08/")) {
+                new File(new File(root, BUCKET), key).setLastModified(cutoff.minus(Duration.ofHours(1)).toEpochMilli());
+            }
+        }
+        Set<String> registered = cleanup.registeredPartitions(new Glue(Arrays.asList(
+                Arrays.asList("s3://bucket/feed/month=2019-05/", "s3a://bucket/feed/month=2019-06"),
+                Collections.singletonList("s3://other-bucket/feed/month=2019-07/"))), "db", "feed");
+
+        assertEquals(set("feed/month=2019-05/", "feed/month=2019-06/"), registered);
+        assertEquals(2, cleanup.deleteOrphans("feed", registered, cutoff));
+
+        // the August file is newer than the cutoff, so its partition may just not be crawled yet
+        assertEquals(set("feed/month=2019-06/data.orc",
+                "feed/month=2019-06/region=eu/data.orc",
+                "feed/month=2019-08/data.orc",
+                "feed/data.orc"), keys());
+    }
+
+    @Test
+    public void findsTheEndOfDatePartitions() {
+        assertEquals(LocalDate.parse("2020-01-01"), Cleanup.partitionEnd("feed/year=2019/"));
+        assertEquals(LocalDate.parse("2019-07-01"), Cleanup.partitionEnd("feed/month=2019-06/"));
+        assertEquals(LocalDate.parse("2019-07-01"), Cleanup.partitionEnd("feed/day=2019-06-30/"));
+        assertNull(Cleanup.partitionEnd("feed/region=eu/"));
+        assertNull(Cleanup.partitionEnd("feed/month=2019-13/"));
+    }
+
+    private void put(String... keys) {
+        for (String key : keys) {
+            ObjectMetadata metadata = new ObjectMetadata();
+            metadata.setContentLength(1);
+            s3.putObject(new PutObjectRequest(BUCKET, key, new ByteArrayInputStream(new byte[1]), metadata));
+        }
+    }
+
+    private Set<String> keys() {
+        return cleanup.list("", summary -> true).stream().map(S3ObjectSummary::getKey).collect(toSet());
+    }
+
+    private static Set<String> set(String... keys) {
+        return new HashSet<>(Arrays.asList(keys));
+    }
+
+    // fails chosen keys of DeleteObjects requests a number of times, recording the keys of every request
+    private static class FailingS3 extends LocalS3 {
+        private final Map<String, Integer> failures = new HashMap<>();
+        private final List<List<String>> requests = Collections.synchronizedList(new ArrayList<>());
+
+        FailingS3(File root) {
+            super(root);
+        }
+
+        void fail(String key, int times) {
+            failures.put(key, times);
+        }
+
+        @Override
+        public DeleteObjectsResult deleteObjects(DeleteObjectsRequest request) {
+            List<String> keys = request.getKeys().stream().map(DeleteObjectsRequest.KeyVersion::getKey).collect(toList());
+            requests.add(keys);
+            List<MultiObjectDeleteException.DeleteError> errors = new ArrayList<>();
+            List<String> deleted = new ArrayList<>();
+            synchronized (failures) {
+                for (String key : keys) {
+                    if (failures.getOrDefault(key, 0) > 0) {
+                        failures.merge(key, -1, Integer::sum);
+                        MultiObjectDeleteException.DeleteError error = new MultiObjectDeleteException.DeleteError();
+                        error.setKey(key);
+                        error.setCode("SlowDown");
+                        errors.add(error);
+                    } else {
+                        deleted.add(key);
+                    }
+                }
+            }
+            DeleteObjectsResult result = super.deleteObjects(new DeleteObjectsRequest(request.getBucketName())
+                    .withQuiet(request.getQuiet())
+                    .withKeys(deleted.toArray(new String[0])));
+            if (!errors.isEmpty()) {
+                throw new MultiObjectDeleteException(errors, result.getDeletedObjects());
+            }
+            return result;
+        }
+
+        List<Integer> requestSizes() {
+            synchronized (requests) {
+                return requests.stream().map(List::size).sorted().collect(toList());
+            }
+        }
+    }
+
+    // a table's partition locations, a page per list
+    private static class Glue extends AbstractAWSGlue {
+        private final List<List<String>> pages;
+
+        Glue(List<List<String>> pages) {
+            this.pages = pages;
+        }
+
+        @Override
+        public GetPartitionsResult getPartitions(GetPartitionsRequest request) {
+            int page = request.getNextToken() == null ? 0 : Integer.parseInt(request.getNextToken());
+            List<Partition> partitions = new ArrayList<>();
+            for (String location : pages.get(page)) {
+                partitions.add(new Partition().withStorageDescriptor(new StorageDescriptor().withLocation(location)));
+            }
+            return new GetPartitionsResult()
+                    .withPartitions(partitions)
+                    .withNextToken(page + 1 < pages.size() ? Integer.toString(page + 1) : null);
+        }
+    }
+}
@@ -0,0 +1,408 @@
+package jheister;
+
+import com.amazonaws.services.s3.AbstractAmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.CopyObjectRequest;
+import com.amazonaws.services.s3.model.CopyObjectResult;
+import com.amazonaws.services.s3.model.DeleteObjectRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsResult;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+import static java.util.stream.Collectors.toList;
+
+/*
+ * Stand-in for S3 backed by a local directory, one sub directory per bucket, for testing uploads and
+ * reads without an AWS account. Covers the calls this project makes: put, multipart upload, (ranged) get,
+ * metadata, listing, copy and deletes. Objects appear atomically once their put or multipart upload completes.
+ */
+public class LocalS3 extends AbstractAmazonS3 {
+    private static final int MAX_KEYS = 1000;
+
+    private final Path root;
+    private final Path uploads;
+
+    public LocalS3(File root) {
+        this.root = root.toPath();
+        this.uploads = this.root.resolve(".uploads");
+        try {
+            Files.createDirectories(uploads);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public PutObjectResult putObject(String bucket, String key, File file) {
+        return putObject(new PutObjectRequest(bucket, key, file));
+    }
+
+    @Override
+    public PutObjectResult putObject(PutObjectRequest request) {
+        try (InputStream in = request.getFile() != null
+                ? Files.newInputStream(request.getFile().toPath())
+                : request.getInputStream()) {
+            Path tmp = uploads.resolve("put-" + UUID.randomUUID());
+            String etag = copy(in, tmp);
+            publish(tmp, request.getBucketName(), request.getKey());
+            PutObjectResult result = new PutObjectResult();
+            result.setETag(etag);
+            return result;
+        } catch (IOException e) {
+            throw new AmazonS3Exception("Put of " + request.getKey() + " failed", e);
+        }
+    }
+
+    @Override
+    public InitiateMultipartUploadResult initiateMultipartUpload(InitiateMultipartUploadRequest request) {
+        String uploadId = UUID.randomUUID().toString();
+        try {
+            Files.createDirectories(uploads.resolve(uploadId));
+        } catch (IOException e) {
+            throw new AmazonS3Exception("Initiating upload of " + request.getKey() + " failed", e);
+        }
+        InitiateMultipartUploadResult result = new InitiateMultipartUploadResult();
+        result.setBucketName(request.getBucketName());
+        result.setKey(request.getKey());
+        result.setUploadId(uploadId);
+        return result;
+    }
+
+    @Override
+    public UploadPartResult uploadPart(UploadPartRequest request) {
+        Path upload = upload(request.getUploadId());
+        try (InputStream in = request.getFile() != null
+                ? Files.newInputStream(request.getFile().toPath())
+                : request.getInputStream()) {
+            UploadPartResult result = new UploadPartResult();
+            result.setPartNumber(request.getPartNumber());
+            result.setETag(copy(in, upload.resolve(Integer.toString(request.getPartNumber()))));
+            return result;
+        } catch (IOException e) {
+            throw new AmazonS3Exception("Upload of part " + request.getPartNumber() + " failed", e);
+        }
+    }
+
+    @Override
+    public CompleteMultipartUploadResult completeMultipartUpload(CompleteMultipartUploadRequest request) {
+        Path upload = upload(request.getUploadId());
+        Path tmp = uploads.resolve("complete-" + request.getUploadId());
+        try (OutputStream out = Files.newOutputStream(tmp)) {
+            for (PartETag part : request.getPartETags()) {
+                Files.copy(upload.resolve(Integer.toString(part.getPartNumber())), out);
+            }
+        } catch (IOException e) {
+            throw new AmazonS3Exception("Completing upload of " + request.getKey() + " failed", e);
+        }
+        publish(tmp, request.getBucketName(), request.getKey());
+        delete(upload);
+
+        CompleteMultipartUploadResult result = new CompleteMultipartUploadResult();
+        result.setBucketName(request.getBucketName());
+        result.setKey(request.getKey());
+        result.setETag(request.getUploadId() + "-" + request.getPartETags().size());
+        return result;
+    }
+
+    @Override
+    public void abortMultipartUpload(AbortMultipartUploadRequest request) {
+        delete(upload(request.getUploadId()));
+    }
+
+    @Override
+    public S3Object getObject(String bucket, String key) {
+        return getObject(new GetObjectRequest(bucket, key));
+    }
+
+    @Override
+    public S3Object getObject(GetObjectRequest request) {
+        Path file = object(request.getBucketName(), request.getKey());
+        try {
+            byte[] data = Files.readAllBytes(file);
+            int start = 0;
+            int end = data.length;
+            long[] range = request.getRange();
+            if (range != null) {
+                start = (int) Math.min(range[0], data.length);
+                end = (int) Math.min(range[1] + 1, data.length);
+            }
+            S3Object object = new S3Object();
+            object.setBucketName(request.getBucketName());
+            object.setKey(request.getKey());
+            object.setObjectContent(new ByteArrayInputStream(data, start, end - start));
+            object.getObjectMetadata().setContentLength(end - start);
+            object.getObjectMetadata().setLastModified(new Date(Files.getLastModifiedTime(file).toMillis()));
+            return object;
+        } catch (IOException e) {
+            throw new AmazonS3Exception("Get of " + request.getKey() + " failed", e);
+        }
+    }
+
+    @Override
+    public ObjectMetadata getObjectMetadata(String bucket, String key) {
+        Path file = object(bucket, key);
+        try {
+            ObjectMetadata metadata = new ObjectMetadata();
+            metadata.setContentLength(Files.size(file));
+            metadata.setLastModified(new Date(Files.getLastModifiedTime(file).toMillis()));
+            return metadata;
+        } catch (IOException e) {
+            throw new AmazonS3Exception("Head of " + key + " failed", e);
+        }
+    }
+
+    @Override
+    public CopyObjectResult copyObject(String sourceBucket, String sourceKey, String destinationBucket,
+                                       String destinationKey) {
+        return copyObject(new CopyObjectRequest(sourceBucket, sourceKey, destinationBucket, destinationKey));
+    }
+
+    @Override
+    public CopyObjectResult copyObject(CopyObjectRequest request) {
+        Path file = object(request.getSourceBucketName(), request.getSourceKey());
+        try (InputStream in = Files.newInputStream(file)) {
+            Path tmp = uploads.resolve("copy-" + UUID.randomUUID());
+            String etag = copy(in, tmp);
+            publish(tmp, request.getDestinationBucketName(), request.getDestinationKey());
+            CopyObjectResult result = new CopyObjectResult();
+            result.setETag(etag);
+            result.setLastModifiedDate(new Date());
+            return result;
+        } catch (IOException e) {
+            throw new AmazonS3Exception("Copy of " + request.getSourceKey() + " failed", e);
+        }
+    }
+
+    @Override
+    public boolean doesObjectExist(String bucket, String key) {
+        return Files.isRegularFile(root.resolve(bucket).resolve(key));
+    }
+
+    @Override
+    public ObjectListing listObjects(String bucket, String prefix) {
+        return listObjects(new ListObjectsRequest().withBucketName(bucket).withPrefix(prefix));
+    }
+
+    // Pages of up to 1000 keys in key order, as S3 does; continue with listNextBatchOfObjects
+    @Override
+    public ObjectListing listObjects(ListObjectsRequest request) {
+        String prefix = request.getPrefix() == null ? "" : request.getPrefix();
+        String marker = request.getMarker() == null ? "" : request.getMarker();
+        String delimiter = request.getDelimiter();
+        int maxKeys = request.getMaxKeys() == null ? MAX_KEYS : Math.min(request.getMaxKeys(), MAX_KEYS);
+
+        ObjectListing listing = new ObjectListing();
+        listing.setBucketName(request.getBucketName());
+        listing.setPrefix(request.getPrefix());
+        listing.setDelimiter(delimiter);
+        listing.setMarker(request.getMarker());
+        listing.setMaxKeys(maxKeys);
+
+        TreeSet<String> commonPrefixes = new TreeSet<>();
+        int returned = 0;
+        for (String key : keys(request.getBucketName())) {
+            if (!key.startsWith(prefix) || key.compareTo(marker) <= 0) {
+                continue;
+            }
+            int split = delimiter == null ? -1 : key.indexOf(delimiter, prefix.length());
+            String common = split < 0 ? null : key.substring(0, split + delimiter.length());
+            if (common != null && commonPrefixes.contains(common)) {
+                continue;
+            }
+            if (returned == maxKeys) {
+                listing.setTruncated(true);
+                break;
+            }
+            if (common != null) {
+                commonPrefixes.add(common);
+                returned++;
+            } else {
+                Path file = object(request.getBucketName(), key);
+                S3ObjectSummary summary = new S3ObjectSummary();
+                summary.setBucketName(request.getBucketName());
+                summary.setKey(key);
+                try {
+                    summary.setSize(Files.size(file));
+                    summary.setLastModified(new Date(Files.getLastModifiedTime(file).toMillis()));
+                } catch (IOException e) {
+                    // deleted since it was listed
+                    continue;
+                }
+                listing.getObjectSummaries().add(summary);
+                returned++;
+            }
+            listing.setNextMarker(key);
+        }
+        listing.setCommonPrefixes(List.copyOf(commonPrefixes));
+        return listing;
+    }
+
+    @Override
+    public ObjectListing listNextBatchOfObjects(ObjectListing previous) {
+        if (!previous.isTruncated()) {
+            ObjectListing empty = new ObjectListing();
+            empty.setBucketName(previous.getBucketName());
+            return empty;
+        }
+        return listObjects(new ListObjectsRequest()
+                .withBucketName(previous.getBucketName())
+                .withPrefix(previous.getPrefix())
+                .withDelimiter(previous.getDelimiter())
+                .withMarker(previous.getNextMarker())
+                .withMaxKeys(previous.getMaxKeys()));
+    }
+
+    @Override
+    public void deleteObject(String bucket, String key) {
+        deleteObject(new DeleteObjectRequest(bucket, key));
+    }
+
+    // Deleting a key that doesn't exist succeeds, as on S3
+    @Override
+    public void deleteObject(DeleteObjectRequest request) {
+        try {
+            Files.deleteIfExists(root.resolve(request.getBucketName()).resolve(request.getKey()));
+        } catch (IOException e) {
+            throw new AmazonS3Exception("Delete of " + request.getKey() + " failed", e);
+        }
+    }
+
+    // Up to 1000 keys; keys that couldn't be deleted are reported in a MultiObjectDeleteException, as the client does
+    @Override
+    public DeleteObjectsResult deleteObjects(DeleteObjectsRequest request) {
+        if (request.getKeys().size() > MAX_KEYS) {
+            AmazonS3Exception e = new AmazonS3Exception("At most " + MAX_KEYS + " keys can be deleted at once");
+            e.setStatusCode(400);
+            e.setErrorCode("MalformedXML");
+            throw e;
+        }
+        List<DeleteObjectsResult.DeletedObject> deleted = new ArrayList<>();
+        List<MultiObjectDeleteException.DeleteError> errors = new ArrayList<>();
+        for (DeleteObjectsRequest.KeyVersion key : request.getKeys()) {
+            try {
+                Files.deleteIfExists(root.resolve(request.getBucketName()).resolve(key.getKey()));
+                DeleteObjectsResult.DeletedObject object = new DeleteObjectsResult.DeletedObject();
+                object.setKey(key.getKey());
+                deleted.add(object);
+            } catch (IOException e) {
+                MultiObjectDeleteException.DeleteError error = new MultiObjectDeleteException.DeleteError();
+                error.setKey(key.getKey());
+                error.setCode("InternalError");
+                error.setMessage(e.toString());
+                errors.add(error);
+            }
+        }
+        if (request.getQuiet()) {
+            deleted.clear();
+        }
+        if (!errors.isEmpty()) {
+            throw new MultiObjectDeleteException(errors, deleted);
+        }
+        return new DeleteObjectsResult(deleted);
+    }
+
+    private List<String> keys(String bucket) {
+        Path dir = root.resolve(bucket);
+        if (!Files.isDirectory(dir)) {
+            throw new AmazonS3Exception("No such bucket " + bucket);
+        }
+        try (Stream<Path> files = Files.walk(dir)) {
+            return files.filter(Files::isRegularFile)
+                    .map(file -> dir.relativize(file).toString().replace(File.separatorChar, '/'))
+                    .sorted()
+                    .collect(toList());
+        } catch (IOException e) {
+            throw new AmazonS3Exception("Listing " + bucket + " failed", e);
+        }
+    }
+
+    private Path object(String bucket, String key) {
+        Path file = root.resolve(bucket).resolve(key);
+        if (!Files.isRegularFile(file)) {
+            AmazonS3Exception e = new AmazonS3Exception("No such key " + key);
+            e.setStatusCode(404);
+            e.setErrorCode("NoSuchKey");
+            throw e;
+        }
+        return file;
+    }
+
+    private Path upload(String uploadId) {
+        Path upload = uploads.resolve(uploadId);
+        if (!Files.isDirectory(upload)) {
+            AmazonS3Exception e = new AmazonS3Exception("No such upload " + uploadId);
+            e.setStatusCode(404);
+            e.setErrorCode("NoSuchUpload");
+            throw e;
+        }
+        return upload;
+    }
+
+    private void publish(Path tmp, String bucket, String key) {
+        Path file = root.resolve(bucket).resolve(key);
+        try {
+            Files.createDirectories(file.getParent());
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new AmazonS3Exception("Writing " + key + " failed", e);
+        }
+    }
+
+    private static String copy(InputStream in, Path to) throws IOException {
+        MessageDigest md5;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        Files.copy(new DigestInputStream(in, md5), to, StandardCopyOption.REPLACE_EXISTING);
+        StringBuilder hex = new StringBuilder();
+        for (byte b : md5.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    private static void delete(Path dir) {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted((a, b) -> b.compareTo(a)).forEach(file -> file.toFile().delete());
+        } catch (IOException e) {
+            throw new AmazonS3Exception("Deleting " + dir + " failed", e);
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package jheister;
+
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+public class S3MultipartOutputStreamTest {
+    private static final int PART_SIZE = 16;
+
+    private File root;
+    private RecordingS3 s3;
+    private ExecutorService uploads;
+
+    @Before
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory("s3-test").toFile();
+        new File(root, "bucket").mkdir();
+        s3 = new RecordingS3(root);
+        uploads = Executors.newFixedThreadPool(2);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        uploads.shutdownNow();
+        try (Stream<java.nio.file.Path> files = Files.walk(root.toPath())) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    @Test
+    public void splitsOutputIntoParts() throws IOException {
+        byte[] data = data(40);
+        try (S3MultipartOutputStream out = stream(4)) {
+            out.write(data, 0, 5);
+            out.write(data[5]);
+            out.write(data, 6, 34);
+        }
+
+        assertEquals(Arrays.asList(16, 16, 8), s3.partSizes());
+        assertEquals(0, s3.puts);
+        assertArrayEquals(data, read());
+    }
+
+    @Test
+    public void doesNotUploadAnEmptyLastPart() throws IOException {
+        byte[] data = data(2 * PART_SIZE);
+        try (S3MultipartOutputStream out = stream(4)) {
+            out.write(data);
+        }
+
+        assertEquals(Arrays.asList(16, 16), s3.partSizes());
+        assertArrayEquals(data, read());
+    }
+
+    @Test
+    public void putsOutputThatFitsOnePart() throws IOException {
+        byte[] data = data(PART_SIZE);
+        try (S3MultipartOutputStream out = stream(4)) {
+            out.write(data);
+        }
+
+        assertEquals(1, s3.puts);
+        assertEquals(0, s3.initiated);
+        assertArrayEquals(data, read());
+    }
+
+    @Test
+    public void putsAnEmptyObject() throws IOException {
+        stream(4).close();
+
+        assertEquals(1, s3.puts);
+        assertArrayEquals(new byte[0], read());
+    }
+
+    @Test
+    public void abortsTheUploadWhenAPartFails() {
+        s3.failPart = 2;
+        S3MultipartOutputStream out = stream(1);
+
+        IOException failure = assertThrows(IOException.class, () -> {
+            out.write(data(5 * PART_SIZE));
+            out.close();
+        });
+
+        assertTrue(failure.getCause() instanceof AmazonS3Exception);
+        assertEquals(1, s3.aborted);
+        assertFalse(s3.doesObjectExist("bucket", "key"));
+        assertThrows(IOException.class, () -> out.write(data(PART_SIZE + 1)));
+    }
+
+    @Test
+    public void closeRethrowsAFailedPart() {
+        s3.failPart = 1;
+        S3MultipartOutputStream out = stream(1);
+
+        IOException failure = assertThrows(IOException.class, () -> {
+            out.write(data(3 * PART_SIZE));
+            out.close();
+        });
+
+        IOException again = assertThrows(IOException.class, out::close);
+        assertSame(failure, again.getCause());
+        assertEquals(1, s3.aborted);
+    }
+
+    @Test
+    public void closeRethrowsAFailedPut() {
+        s3.failPut = true;
+        S3MultipartOutputStream out = stream(1);
+
+        IOException failure = assertThrows(IOException.class, out::close);
+
+        assertTrue(failure.getCause() instanceof AmazonS3Exception);
+        IOException again = assertThrows(IOException.class, out::close);
+        assertSame(failure, again.getCause());
+        assertFalse(s3.doesObjectExist("bucket", "key"));
+    }
+
+    private S3MultipartOutputStream stream(int maxPartsInFlight) {
+        return new S3MultipartOutputStream(s3, "bucket", "key", PART_SIZE, uploads, maxPartsInFlight);
+    }
+
+    private byte[] read() throws IOException {
+        return s3.getObject("bucket", "key").getObjectContent().readAllBytes();
+    }
+
+    private static byte[] data(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+
+    // counts the calls made and fails the chosen ones
+    private static class RecordingS3 extends LocalS3 {
+        private final List<int[]> parts = Collections.synchronizedList(new ArrayList<>());
+        private volatile int failPart = -1;
+        private volatile boolean failPut;
+        private volatile int puts;
+        private volatile int initiated;
+        private volatile int aborted;
+
+        RecordingS3(File root) {
+            super(root);
+        }
+
+        @Override
+        public PutObjectResult putObject(PutObjectRequest request) {
+            puts++;
+            if (failPut) {
+                throw new AmazonS3Exception("Put failed");
+            }
+            return super.putObject(request);
+        }
+
+        @Override
+        public InitiateMultipartUploadResult initiateMultipartUpload(InitiateMultipartUploadRequest request) {
+            initiated++;
+            return super.initiateMultipartUpload(request);
+        }
+
+        @Override
+        public UploadPartResult uploadPart(UploadPartRequest request) {
+            if (request.getPartNumber() == failPart) {
+                throw new AmazonS3Exception("Part " + failPart + " failed");
+            }
+            parts.add(new int[]{request.getPartNumber(), (int) request.getPartSize()});
+            return super.uploadPart(request);
+        }
+
+        @Override
+        public void abortMultipartUpload(AbortMultipartUploadRequest request) {
+            aborted++;
+            super.abortMultipartUpload(request);
+        }
+
+        // in part number order, as they upload concurrently
+        List<Integer> partSizes() {
+            List<Integer> sizes = new ArrayList<>();
+            synchronized (parts) {
+                parts.stream().sorted(Comparator.comparingInt(part -> part[0])).forEach(part -> sizes.add(part[1]));
+            }
+            return sizes;
+        }
+    }
+}